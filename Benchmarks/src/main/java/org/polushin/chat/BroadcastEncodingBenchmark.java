@@ -0,0 +1,80 @@
+package org.polushin.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketNewMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время процессора на рассылку одного сообщения чата в зависимости от количества получателей:
+ * кодирование пакета для каждого получателя против одного общего кадра {@link PreparedPacket}.
+ * Рассылка выполняется одним потоком, поэтому время операции совпадает со временем процессора.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastEncodingBenchmark {
+
+	private static final String MESSAGE = "Привет всем! Это сообщение чата средней длины, которое рассылается " +
+	                                      "всем пользователям онлайн.";
+
+	@Param({"1", "10", "100", "1000", "10000"})
+	public int recipients;
+
+	@Param({"JSON", "BYTES", "BINARY"})
+	public ProtocolCommunicator.CommunicateType type;
+
+	private DiscardingCommunicator[] communicators;
+	private long seq;
+
+	@Setup
+	public void setUp() {
+		communicators = new DiscardingCommunicator[recipients];
+		for (int i = 0; i < recipients; i++) {
+			communicators[i] = new DiscardingCommunicator();
+			communicators[i].setDefaultCommunicationType(type);
+		}
+	}
+
+	/**
+	 * Рассылка пакета, который кодируется отдельно для каждого получателя.
+	 */
+	@Benchmark
+	public void encodePerRecipient() throws InterruptedException {
+		Packet packet = newMessage();
+		for (DiscardingCommunicator communicator : communicators)
+			communicator.sendPacket(packet);
+	}
+
+	/**
+	 * Рассылка подготовленного пакета, который кодируется один раз для всех получателей.
+	 */
+	@Benchmark
+	public void encodeOnce() throws InterruptedException {
+		PreparedPacket prepared = new PreparedPacket(newMessage());
+		try {
+			for (DiscardingCommunicator communicator : communicators)
+				communicator.sendPacket(prepared);
+		} finally {
+			prepared.release();
+		}
+	}
+
+	private Packet newMessage() {
+		return new PacketNewMessage("sender", MESSAGE, seq++);
+	}
+}
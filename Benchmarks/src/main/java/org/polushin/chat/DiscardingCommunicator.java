@@ -0,0 +1,62 @@
+package org.polushin.chat;
+
+import org.polushin.chat.protocol.Packet;
+
+import java.io.IOException;
+
+/**
+ * Коммуникатор бенчмарков без соединения. Исходящие пакеты кодируются в кадры так же, как настоящими
+ * коммуникаторами, но вместо постановки в очередь кадры сразу освобождаются, поэтому отправка
+ * может вызываться любым количеством потоков. Входящих пакетов коммуникатор не принимает.
+ */
+public class DiscardingCommunicator extends ProtocolCommunicator {
+
+	public DiscardingCommunicator() {
+		super((packet, communicator) -> {
+		});
+	}
+
+	@Override
+	public void sendPacket(Packet packet, CommunicateType type) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		try {
+			BufferPool.release(encodeFrame(packet, type));
+		} catch (IOException e) {
+			handler.ioException(e, this);
+		}
+	}
+
+	@Override
+	public void sendPacket(PreparedPacket packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		try {
+			prepareFrame(packet).release();
+		} catch (IOException e) {
+			handler.ioException(e, this);
+		}
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void pauseReading() {
+	}
+
+	@Override
+	public void resumeReading() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	protected void abortOutput(SharedFrame last) {
+		if (last != null)
+			last.release();
+	}
+}
@@ -0,0 +1,163 @@
+package org.polushin.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пропускная способность очереди исходящих кадров с 1, 8 и 64 производителями и одним потребителем:
+ * {@link MpscQueue} против прежней справедливой {@link ArrayBlockingQueue} на 10 элементов.
+ * Как и в {@link OutputQueue}, количество элементов в {@link MpscQueue} ограничивается счетчиком,
+ * иначе производители обгоняют потребителя. Ожидающие операции проверяют окончание измерения,
+ * поэтому потоки группы не зависают, когда остальные потоки уже остановлены.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MpscQueueBenchmark {
+
+	private static final int FAIR_QUEUE_CAPACITY = 10;
+	private static final int MAX_PENDING = 1024;
+	private static final Object ELEMENT = new Object();
+
+	private final MpscQueue<Object> mpsc = new MpscQueue<>();
+	private final AtomicLong pending = new AtomicLong();
+	private final ArrayBlockingQueue<Object> fair = new ArrayBlockingQueue<>(FAIR_QUEUE_CAPACITY, true);
+
+	@Benchmark
+	@Group("mpsc1")
+	@GroupThreads(1)
+	public boolean mpsc1Offer(Control control) {
+		return offerMpsc(control);
+	}
+
+	@Benchmark
+	@Group("mpsc1")
+	@GroupThreads(1)
+	public Object mpsc1Poll(Control control) {
+		return pollMpsc(control);
+	}
+
+	@Benchmark
+	@Group("mpsc8")
+	@GroupThreads(8)
+	public boolean mpsc8Offer(Control control) {
+		return offerMpsc(control);
+	}
+
+	@Benchmark
+	@Group("mpsc8")
+	@GroupThreads(1)
+	public Object mpsc8Poll(Control control) {
+		return pollMpsc(control);
+	}
+
+	@Benchmark
+	@Group("mpsc64")
+	@GroupThreads(64)
+	public boolean mpsc64Offer(Control control) {
+		return offerMpsc(control);
+	}
+
+	@Benchmark
+	@Group("mpsc64")
+	@GroupThreads(1)
+	public Object mpsc64Poll(Control control) {
+		return pollMpsc(control);
+	}
+
+	@Benchmark
+	@Group("fair1")
+	@GroupThreads(1)
+	public boolean fair1Offer(Control control) throws InterruptedException {
+		return offerFair(control);
+	}
+
+	@Benchmark
+	@Group("fair1")
+	@GroupThreads(1)
+	public Object fair1Poll(Control control) throws InterruptedException {
+		return pollFair(control);
+	}
+
+	@Benchmark
+	@Group("fair8")
+	@GroupThreads(8)
+	public boolean fair8Offer(Control control) throws InterruptedException {
+		return offerFair(control);
+	}
+
+	@Benchmark
+	@Group("fair8")
+	@GroupThreads(1)
+	public Object fair8Poll(Control control) throws InterruptedException {
+		return pollFair(control);
+	}
+
+	@Benchmark
+	@Group("fair64")
+	@GroupThreads(64)
+	public boolean fair64Offer(Control control) throws InterruptedException {
+		return offerFair(control);
+	}
+
+	@Benchmark
+	@Group("fair64")
+	@GroupThreads(1)
+	public Object fair64Poll(Control control) throws InterruptedException {
+		return pollFair(control);
+	}
+
+	private boolean offerMpsc(Control control) {
+		while (pending.get() >= MAX_PENDING) {
+			if (control.stopMeasurement)
+				return false;
+			Thread.yield();
+		}
+		pending.incrementAndGet();
+		mpsc.offer(ELEMENT);
+		return true;
+	}
+
+	private Object pollMpsc(Control control) {
+		Object element;
+		while ((element = mpsc.poll()) == null) {
+			if (control.stopMeasurement)
+				return null;
+			Thread.yield();
+		}
+		pending.decrementAndGet();
+		return element;
+	}
+
+	private boolean offerFair(Control control) throws InterruptedException {
+		while (!fair.offer(ELEMENT, 1, TimeUnit.MILLISECONDS))
+			if (control.stopMeasurement)
+				return false;
+		return true;
+	}
+
+	private Object pollFair(Control control) throws InterruptedException {
+		Object element;
+		while ((element = fair.poll(1, TimeUnit.MILLISECONDS)) == null)
+			if (control.stopMeasurement)
+				return null;
+		return element;
+	}
+}
@@ -0,0 +1,77 @@
+package org.polushin.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketHistory;
+import org.polushin.chat.protocol.PacketNewMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность кодирования и разбора кадров каждым типом коммуникации
+ * для сообщения чата и истории из 20 сообщений, которая отправляется при входе.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+	private static final String MESSAGE = "Привет всем! Это сообщение чата средней длины, которое рассылается " +
+	                                      "всем пользователям онлайн.";
+	private static final int HISTORY_SIZE = 20;
+
+	@Param({"JSON", "BYTES", "BINARY"})
+	public ProtocolCommunicator.CommunicateType type;
+
+	@Param({"NewMessage", "History"})
+	public String packetType;
+
+	private Packet packet;
+	private ByteBuffer payload;
+
+	@Setup
+	public void setUp() throws IOException {
+		if (packetType.equals("History")) {
+			List<PacketNewMessage> messages = new ArrayList<>(HISTORY_SIZE);
+			for (int i = 0; i < HISTORY_SIZE; i++)
+				messages.add(new PacketNewMessage("sender" + i, MESSAGE, i));
+			packet = new PacketHistory(0, messages);
+		} else
+			packet = new PacketNewMessage("sender", MESSAGE, 0);
+		ByteBuffer frame = PacketCodec.encodeFrame(packet, type);
+		payload = ByteBuffer.allocate(frame.remaining() - PacketCodec.HEADER_SIZE);
+		frame.position(frame.position() + PacketCodec.HEADER_SIZE);
+		payload.put(frame).flip();
+		BufferPool.release(frame);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		ByteBuffer frame = PacketCodec.encodeFrame(packet, type);
+		int size = frame.remaining();
+		BufferPool.release(frame);
+		return size;
+	}
+
+	@Benchmark
+	public Packet decode() throws Packet.InvalidPacketException {
+		return PacketCodec.decode(payload.duplicate(), type);
+	}
+}
@@ -0,0 +1,243 @@
+package org.polushin.chat.server;
+
+import org.polushin.chat.BufferPool;
+import org.polushin.chat.PacketCodec;
+import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketConnect;
+import org.polushin.chat.protocol.PacketFatalError;
+import org.polushin.chat.protocol.PacketSendMessage;
+import org.polushin.chat.protocol.PacketSuccessLogin;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Клиенты нагрузочных тестов сервера. Клиенты подключаются по JSON протоколу и входят пакетом подключения,
+ * а все их соединения читает один поток, чтобы клиенты не отнимали у сервера потоки и ядра.
+ * Клиенты подсчитывают входы и сообщения чата, остальные пакеты пропускаются.
+ */
+class ChatClients extends Thread implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long TIMEOUT_SECONDS = 60;
+
+	private final InetSocketAddress address;
+	private final Selector selector = Selector.open();
+	private final Queue<Client> registering = new ConcurrentLinkedQueue<>();
+	private final List<Client> clients = new ArrayList<>();
+
+	private volatile CountDownLatch logins = new CountDownLatch(0);
+	private volatile CountDownLatch messages = new CountDownLatch(0);
+	private volatile Client sender;
+	private volatile String failure;
+
+	/**
+	 * @param port Порт сервера на локальном адресе.
+	 *
+	 * @throws IOException Ошибка создания селектора.
+	 */
+	ChatClients(int port) throws IOException {
+		super("ChatClients");
+		address = new InetSocketAddress("localhost", port);
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * @return Свободный порт для запуска сервера.
+	 *
+	 * @throws IOException Ошибка поиска порта.
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Настраивает рассылки и обработку пакетов сервера так же, как {@link Main} по умолчанию, и запускает сервер.
+	 * Проверки соединений не включаются, поскольку клиенты не отвечают на них.
+	 *
+	 * @param server Сервер.
+	 */
+	static void start(Server server) {
+		server.setPresenceWindow(Main.DEFAULT_PRESENCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+		server.setDispatchLanes(Main.DEFAULT_DISPATCH_LANES);
+		server.setParallelBroadcastThreshold(Main.DEFAULT_PARALLEL_BROADCAST);
+		server.start();
+	}
+
+	/**
+	 * Подключает клиентов и ожидает их входа.
+	 *
+	 * @param count Количество клиентов.
+	 * @param prefix Префикс имен клиентов.
+	 *
+	 * @throws IOException Ошибка подключения или отказ сервера во входе.
+	 * @throws InterruptedException Прерывание ожидания.
+	 */
+	void connect(int count, String prefix) throws IOException, InterruptedException {
+		CountDownLatch logins = new CountDownLatch(count);
+		this.logins = logins;
+		for (int i = 0; i < count; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel);
+			write(client, new PacketConnect(ProtocolCommunicator.CommunicateType.JSON, false, prefix + i, 0));
+			channel.configureBlocking(false);
+			clients.add(client);
+			registering.offer(client);
+			selector.wakeup();
+		}
+		await(logins);
+	}
+
+	/**
+	 * Отправляет сообщение чата от клиента и ожидает его получения всеми остальными клиентами.
+	 *
+	 * @param index Номер отправителя.
+	 * @param message Сообщение.
+	 *
+	 * @throws IOException Ошибка отправки или отказ сервера.
+	 * @throws InterruptedException Прерывание ожидания.
+	 */
+	void broadcast(int index, String message) throws IOException, InterruptedException {
+		Client client = clients.get(index);
+		CountDownLatch messages = new CountDownLatch(clients.size() - 1);
+		sender = client;
+		this.messages = messages;
+		write(client, new PacketSendMessage(client.uuid, message));
+		await(messages);
+	}
+
+	/**
+	 * @return Количество подключенных клиентов.
+	 */
+	int size() {
+		return clients.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		interrupt();
+		selector.close();
+		for (Client client : clients)
+			client.channel.close();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				selector.select();
+				Client added;
+				while ((added = registering.poll()) != null)
+					added.channel.register(selector, SelectionKey.OP_READ, added);
+				for (SelectionKey key : selector.selectedKeys())
+					read((Client) key.attachment());
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!isInterrupted())
+				fail(e.toString());
+		}
+	}
+
+	private void read(Client client) throws IOException {
+		if (client.channel.read(client.buffer) < 0)
+			throw new EOFException("Server closed connection.");
+		ByteBuffer buffer = client.buffer;
+		buffer.flip();
+		while (buffer.remaining() >= PacketCodec.HEADER_SIZE) {
+			int length = PacketCodec.payloadLength(buffer.getInt(buffer.position()));
+			if (buffer.remaining() < PacketCodec.HEADER_SIZE + length)
+				break;
+			buffer.position(buffer.position() + PacketCodec.HEADER_SIZE);
+			ByteBuffer payload = buffer.slice();
+			payload.limit(length);
+			buffer.position(buffer.position() + length);
+			try {
+				receive(client, PacketCodec.decode(payload, ProtocolCommunicator.CommunicateType.JSON));
+			} catch (Packet.InvalidPacketException e) {
+				throw new IOException(e);
+			}
+		}
+		buffer.compact();
+		if (!buffer.hasRemaining()) {
+			ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			grown.put(buffer);
+			client.buffer = grown;
+		}
+	}
+
+	private void receive(Client client, Packet packet) {
+		switch (packet.getType()) {
+			case "SuccessLogin":
+				client.uuid = ((PacketSuccessLogin) packet).getUuid();
+				logins.countDown();
+				break;
+			case "NewMessage":
+				if (client != sender)
+					messages.countDown();
+				break;
+			case "FatalError":
+				fail(((PacketFatalError) packet).getReason());
+				break;
+		}
+	}
+
+	private void fail(String reason) {
+		failure = reason;
+		while (logins.getCount() > 0)
+			logins.countDown();
+		while (messages.getCount() > 0)
+			messages.countDown();
+	}
+
+	private void await(CountDownLatch latch) throws IOException, InterruptedException {
+		if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			throw new IOException("Server did not respond in " + TIMEOUT_SECONDS + " seconds.");
+		if (failure != null)
+			throw new IOException("Server failure: " + failure);
+	}
+
+	private static void write(Client client, Packet packet) throws IOException {
+		ByteBuffer frame = PacketCodec.encodeFrame(packet, ProtocolCommunicator.CommunicateType.JSON);
+		try {
+			// Кадры клиентов малы, поэтому запись в неблокирующий канал завершается почти сразу.
+			while (frame.hasRemaining())
+				if (client.channel.write(frame) == 0)
+					Thread.yield();
+		} finally {
+			BufferPool.release(frame);
+		}
+	}
+
+	private static class Client {
+
+		private final SocketChannel channel;
+
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private volatile UUID uuid;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
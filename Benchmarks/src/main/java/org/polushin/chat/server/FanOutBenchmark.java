@@ -0,0 +1,68 @@
+package org.polushin.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polushin.chat.DiscardingCommunicator;
+import org.polushin.chat.PreparedPacket;
+import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.protocol.PacketNewMessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Задержка между началом рассылки сообщения и передачей его последнему получателю при последовательной
+ * и параллельной рассылке {@link FanOut}. Рассылка завершается после передачи пакета всем получателям,
+ * поэтому распределение времени операции, включая верхние процентили, и есть задержка последнего получателя.
+ * Порог 0 выключает параллельную рассылку.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+	private static final String MESSAGE = "Сообщение для всех пользователей онлайн.";
+
+	@Param({"1000", "10000", "50000"})
+	public int recipients;
+
+	@Param({"0", "4096"})
+	public int threshold;
+
+	private final FanOut fanOut = new FanOut();
+	private final ConcurrentHashMap<ProtocolCommunicator, Boolean> communicators = new ConcurrentHashMap<>();
+	private long seq;
+
+	@Setup
+	public void setUp() {
+		fanOut.setParallelThreshold(threshold);
+		for (int i = 0; i < recipients; i++) {
+			DiscardingCommunicator communicator = new DiscardingCommunicator();
+			communicator.setDefaultCommunicationType(ProtocolCommunicator.CommunicateType.BINARY);
+			communicators.put(communicator, true);
+		}
+	}
+
+	@Benchmark
+	public int send() throws InterruptedException {
+		PreparedPacket prepared = new PreparedPacket(new PacketNewMessage("sender", MESSAGE, seq++));
+		try {
+			return fanOut.send(communicators, prepared, Function.identity());
+		} finally {
+			prepared.release();
+		}
+	}
+}
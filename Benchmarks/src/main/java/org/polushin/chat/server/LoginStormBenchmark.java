@@ -0,0 +1,146 @@
+package org.polushin.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polushin.chat.DiscardingCommunicator;
+import org.polushin.chat.PreparedPacket;
+import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketConnect;
+import org.polushin.chat.protocol.PacketFatalError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время одновременного входа множества клиентов в новый сервер. Пакеты подключения со входом передаются
+ * серверу пулом потоков, как потоками чтения соединений, а вход считается завершенным после отправки
+ * клиенту списка пользователей. Соединения заменены коммуникаторами без сети и не входят в рассылки сервера,
+ * поэтому измеряется сам вход: занятие имени, выдача ключа сессии и отправка списка пользователей.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoginStormBenchmark {
+
+	private static final long TIMEOUT_SECONDS = 60;
+
+	@Param({"10000"})
+	public int logins;
+
+	@Param({"64"})
+	public int threads;
+
+	private ExecutorService executor;
+	private Server server;
+	private LoginCommunicator[] communicators;
+	private CountDownLatch completed;
+
+	@Setup(Level.Trial)
+	public void setUpExecutor() {
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		server = new Server(ChatClients.freePort(), logins, 1);
+		ChatClients.start(server);
+		completed = new CountDownLatch(logins);
+		communicators = new LoginCommunicator[logins];
+		for (int i = 0; i < logins; i++) {
+			communicators[i] = new LoginCommunicator(completed);
+			communicators[i].attach(new Session(communicators[i]));
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws InterruptedException {
+		server.interrupt();
+		server.join();
+	}
+
+	@Benchmark
+	public void login() throws Exception {
+		List<Future<?>> tasks = new ArrayList<>(threads);
+		for (int thread = 0; thread < threads; thread++) {
+			int first = thread;
+			tasks.add(executor.submit(() -> {
+				for (int i = first; i < logins; i += threads)
+					server.inputPacket(new PacketConnect(ProtocolCommunicator.CommunicateType.JSON, false, "user" + i,
+					                                     0), communicators[i]);
+				return null;
+			}));
+		}
+		for (Future<?> task : tasks)
+			task.get();
+		if (!completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			throw new IllegalStateException("Logins are not completed in " + TIMEOUT_SECONDS + " seconds.");
+		for (LoginCommunicator communicator : communicators)
+			if (communicator.failure != null)
+				throw new IllegalStateException("Login failed: " + communicator.failure);
+	}
+
+	/**
+	 * Коммуникатор, отмечающий завершение входа при получении списка пользователей.
+	 */
+	private static class LoginCommunicator extends DiscardingCommunicator {
+
+		private final CountDownLatch completed;
+
+		private volatile String failure;
+
+		LoginCommunicator(CountDownLatch completed) {
+			this.completed = completed;
+		}
+
+		@Override
+		public void sendPacket(Packet packet, CommunicateType type) {
+			super.sendPacket(packet, type);
+			received(packet);
+		}
+
+		@Override
+		public void sendPacket(PreparedPacket packet) {
+			super.sendPacket(packet);
+			received(packet.getPacket());
+		}
+
+		private void received(Packet packet) {
+			switch (packet.getType()) {
+				case "UsersList":
+				case "UsersListDelta":
+					completed.countDown();
+					break;
+				case "FatalError":
+					failure = ((PacketFatalError) packet).getReason();
+					completed.countDown();
+					break;
+			}
+		}
+	}
+}
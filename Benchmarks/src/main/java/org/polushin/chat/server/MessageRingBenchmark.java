@@ -0,0 +1,75 @@
+package org.polushin.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность {@link MessageRing}: добавление сообщений одним и несколькими писателями,
+ * а также добавление одновременно со снимками истории, которые копируются при входе клиентов.
+ * Емкость 20 совпадает с историей сервера.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageRingBenchmark {
+
+	private static final String SENDER = "sender";
+	private static final String MESSAGE = "Сообщение чата.";
+
+	@Param({"20", "1024"})
+	public int capacity;
+
+	private MessageRing ring;
+
+	@Setup
+	public void setUp() {
+		ring = new MessageRing(capacity);
+		for (int i = 0; i < capacity; i++)
+			ring.append(SENDER, MESSAGE);
+	}
+
+	@Benchmark
+	@Group("append")
+	@GroupThreads(1)
+	public SavedMessage append() {
+		return ring.append(SENDER, MESSAGE);
+	}
+
+	@Benchmark
+	@Group("appendConcurrent")
+	@GroupThreads(4)
+	public SavedMessage appendConcurrent() {
+		return ring.append(SENDER, MESSAGE);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public SavedMessage mixedAppend() {
+		return ring.append(SENDER, MESSAGE);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public List<SavedMessage> mixedSnapshot() {
+		return ring.snapshot(Long.MAX_VALUE, capacity);
+	}
+}
@@ -0,0 +1,67 @@
+package org.polushin.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polushin.chat.ThreadMode;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка доставки сообщения чата всем клиентам сервера с блокирующими соединениями в каждом режиме потоков:
+ * от отправки сообщения одним клиентом до его получения последним из остальных.
+ * Виртуальные потоки требуют Java 21+.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadModeBroadcastBenchmark {
+
+	@Param({"PLATFORM", "VIRTUAL"})
+	public ThreadMode mode;
+
+	@Param({"100", "1000", "5000"})
+	public int connections;
+
+	private Server server;
+	private ChatClients clients;
+	private int sent;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		if (!mode.isSupported())
+			throw new IllegalStateException("Thread mode " + mode + " is not supported by this JVM.");
+		int port = ChatClients.freePort();
+		server = new Server(port, connections, mode);
+		ChatClients.start(server);
+		clients = new ChatClients(port);
+		clients.connect(connections, "user");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		clients.close();
+		server.interrupt();
+		server.join();
+	}
+
+	@Benchmark
+	public void broadcast() throws IOException, InterruptedException {
+		clients.broadcast(sent % connections, "Message " + sent);
+		sent++;
+	}
+}
@@ -1,25 +1,63 @@
 package org.polushin.chat.client;
 
+import org.polushin.chat.FrameCompressor;
 import org.polushin.chat.PacketsHandler;
 import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.StreamCommunicator;
 import org.polushin.chat.protocol.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Реализация клиента.
  */
 public class Client implements PacketsHandler {
 
+	/**
+	 * Наибольшее время ожидания подтверждения отключения сервером.
+	 */
+	private static final long GOODBYE_TIMEOUT_MS = 1000;
+
+	/**
+	 * Общий поток отправки проверок соединения всех клиентов.
+	 */
+	private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "Heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private final InputEventsHandler handler;
+	private final Set<String> onlineUsers = new HashSet<>();
 
 	private ProtocolCommunicator communicator;
+	private String address;
+	private int port;
 	private String login;
 	private volatile UUID uuid;
 	private ProtocolCommunicator.CommunicateType type;
+	private volatile long oldestSeq = Long.MAX_VALUE;
+	private long lastSeq = -1;
+	private long presenceVersion;
+	private boolean presenceResync;
+	private boolean established;
+	private boolean loginWithConnect;
+	private boolean resumable;
+	private boolean resuming;
+	private volatile CountDownLatch goodbye;
+	private volatile ScheduledFuture<?> heartbeat;
 
 	/**
 	 * @param handler Обработчик событий.
@@ -41,12 +79,20 @@ public class Client implements PacketsHandler {
 			throw new IllegalStateException("Previous connection is not closed!");
 		if (address == null)
 			throw new IllegalArgumentException("Address cannot be null!");
+		this.address = address;
+		this.port = port;
 		this.login = login;
 		this.type = type;
+		oldestSeq = Long.MAX_VALUE;
+		lastSeq = -1;
+		resumable = false;
+		resuming = false;
 		try {
 			Socket socket = new Socket(address, port);
-			communicator = new ProtocolCommunicator(this, socket.getInputStream(), socket.getOutputStream());
-			communicator.sendPacket(new PacketConnect(type));
+			communicator = new StreamCommunicator(this, socket.getInputStream(), socket.getOutputStream());
+			communicator.start();
+			// Вход запрашивается вместе с подключением, чтобы не ждать подтверждения подключения.
+			communicator.sendPacket(new PacketConnect(type, true, login, presenceVersion));
 		} catch (IOException | InterruptedException e) {
 			handler.fatalException(e);
 		}
@@ -67,20 +113,106 @@ public class Client implements PacketsHandler {
 		}
 	}
 
+	/**
+	 * Запрашивает страницу истории сообщений, предшествующих самому раннему полученному сообщению.
+	 * Страница передается в {@link InputEventsHandler#historyPage(List, boolean)}.
+	 *
+	 * @param limit Наибольшее количество сообщений.
+	 */
+	public void requestHistory(int limit) {
+		if (uuid == null)
+			throw new IllegalStateException("No connection!");
+		try {
+			communicator.sendPacket(new PacketGetHistory(uuid, oldestSeq, limit));
+		} catch (InterruptedException e) {
+			handler.fatalException(e);
+		}
+	}
+
+	/**
+	 * Отправляет личное сообщение пользователю. Если сообщение не доставлено, вызывается
+	 * {@link InputEventsHandler#privateMessageError(String, String)}.
+	 *
+	 * @param target Имя получателя.
+	 * @param message Сообщение.
+	 */
+	public void sendPrivateMessage(String target, String message) {
+		if (uuid == null)
+			throw new IllegalStateException("No connection!");
+		try {
+			communicator.sendPacket(new PacketSendPrivateMessage(uuid, target, message));
+		} catch (InterruptedException e) {
+			handler.fatalException(e);
+		}
+	}
+
+	/**
+	 * Подключается к комнате чата. Участники и последние сообщения комнаты передаются
+	 * в {@link InputEventsHandler#roomJoined(String, Collection, List)}.
+	 *
+	 * @param room Название комнаты.
+	 */
+	public void joinRoom(String room) {
+		if (uuid == null)
+			throw new IllegalStateException("No connection!");
+		try {
+			communicator.sendPacket(new PacketJoinRoom(uuid, room));
+		} catch (InterruptedException e) {
+			handler.fatalException(e);
+		}
+	}
+
+	/**
+	 * Отключается от комнаты чата.
+	 *
+	 * @param room Название комнаты.
+	 */
+	public void leaveRoom(String room) {
+		if (uuid == null)
+			throw new IllegalStateException("No connection!");
+		try {
+			communicator.sendPacket(new PacketLeaveRoom(uuid, room));
+		} catch (InterruptedException e) {
+			handler.fatalException(e);
+		}
+	}
+
+	/**
+	 * Отправляет сообщение в комнату чата, к которой подключен клиент.
+	 *
+	 * @param room Название комнаты.
+	 * @param message Сообщение.
+	 */
+	public void sendRoomMessage(String room, String message) {
+		if (uuid == null)
+			throw new IllegalStateException("No connection!");
+		try {
+			communicator.sendPacket(new PacketSendRoomMessage(uuid, room, message));
+		} catch (InterruptedException e) {
+			handler.fatalException(e);
+		}
+	}
+
 	/**
 	 * Отключается от сервера.
 	 */
 	public void disconnect() {
+		stopHeartbeat();
 		if (communicator == null) {
 			handler.disconnected();
 			return;
 		}
 		if (uuid != null) {
+			// Имя освобождается сервером только после обработки отключения, поэтому повторный вход под тем же
+			// именем сразу после отключения возможен лишь после подтверждения.
+			goodbye = new CountDownLatch(1);
 			try {
 				communicator.sendPacket(new PacketDisconnect(uuid));
+				goodbye.await(GOODBYE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
+			goodbye = null;
 		}
 		communicator.close();
 		communicator = null;
@@ -94,30 +226,144 @@ public class Client implements PacketsHandler {
 	public void inputPacket(Packet packet, ProtocolCommunicator communicator) throws InterruptedException {
 		switch (packet.getType()) {
 			case "ConnectionAccept":
+				PacketConnectionAccept accept = (PacketConnectionAccept) packet;
+				if (accept.isCompression())
+					communicator.enableCompression(FrameCompressor.DEFAULT_THRESHOLD);
 				communicator.setDefaultCommunicationType(type);
+				// Сервер без входа вместе с подключением ожидает отдельного пакета входа.
+				loginWithConnect = accept.isLogin();
+				resumable = accept.isResume();
+				startHeartbeat(communicator, accept.getHeartbeatInterval());
+				if (!loginWithConnect && !resuming)
+					communicator.sendPacket(new PacketLogin(login));
+				break;
+			case "ResumeResult":
+				resuming = false;
+				if (((PacketResumeResult) packet).isResumed()) {
+					// Пропущенные сообщения и изменения списка онлайн пользователей отправляются сервером.
+					presenceResync = true;
+					break;
+				}
+				// Сессия уже закрыта сервером, поэтому клиент входит в чат заново.
+				uuid = null;
+				oldestSeq = Long.MAX_VALUE;
+				lastSeq = -1;
 				communicator.sendPacket(new PacketLogin(login));
 				break;
 			case "SuccessLogin":
 				uuid = ((PacketSuccessLogin) packet).getUuid();
-				communicator.sendPacket(new PacketGetUsersList(uuid));
+				established = false;
+				// Список онлайн пользователей уже отправлен сервером вслед за входом.
+				presenceResync = loginWithConnect;
+				// После переподключения достаточно изменений списка с прошлой сессии.
+				if (!loginWithConnect)
+					requestPresence(presenceVersion);
 				break;
 			case "FatalError":
 				handler.fatalException(new RuntimeException(
 						"Received Fatal Error! Reason: " + ((PacketFatalError) packet).getReason()));
 				break;
 			case "UsersList":
-				handler.connectionEstablished(((PacketUsersList) packet).getUsers());
+				PacketUsersList list = (PacketUsersList) packet;
+				Set<String> users = new HashSet<>(list.getUsers());
+				for (String username : new ArrayList<>(onlineUsers))
+					if (!users.contains(username))
+						applyPresence(username, false);
+				for (String username : users)
+					applyPresence(username, true);
+				presenceUpdated(list.getVersion());
 				break;
 			case "UsersListUpdate":
 				PacketUsersListUpdate update = (PacketUsersListUpdate) packet;
-				handler.onlineListUpdate(update.isNewMember(), update.getUsername());
+				if (!established || update.getVersion() <= presenceVersion)
+					break;
+				if (update.getVersion() != presenceVersion + 1) {
+					requestPresence(presenceVersion);
+					break;
+				}
+				applyPresence(update.getUsername(), update.isNewMember());
+				presenceVersion = update.getVersion();
+				break;
+			case "UsersListBatchUpdate":
+				PacketUsersListBatchUpdate batch = (PacketUsersListBatchUpdate) packet;
+				if (!established || batch.getVersion() <= presenceVersion)
+					break;
+				// Более ранняя начальная версия допустима: пакет содержит итоговое состояние каждого имени.
+				if (batch.getFromVersion() > presenceVersion) {
+					requestPresence(presenceVersion);
+					break;
+				}
+				for (String username : batch.getLeft())
+					applyPresence(username, false);
+				for (String username : batch.getJoined())
+					applyPresence(username, true);
+				presenceVersion = batch.getVersion();
+				break;
+			case "UsersListDelta":
+				PacketUsersListDelta delta = (PacketUsersListDelta) packet;
+				presenceResync = false;
+				if (delta.getFromVersion() != presenceVersion) {
+					requestPresence(0);
+					break;
+				}
+				for (String username : delta.getLeft())
+					applyPresence(username, false);
+				for (String username : delta.getJoined())
+					applyPresence(username, true);
+				presenceUpdated(delta.getVersion());
 				break;
 			case "NewMessage":
 				PacketNewMessage message = (PacketNewMessage) packet;
+				// Сообщения могут быть вытеснены из очереди сервера, поэтому номер берется из пакета, а не считается.
+				lastSeq = Math.max(lastSeq, message.getSeq());
 				handler.newMessage(message.getSender(), message.getMessage());
 				break;
+			case "History":
+				PacketHistory history = (PacketHistory) packet;
+				// После возобновления сессии история содержит только пропущенные сообщения.
+				oldestSeq = Math.min(oldestSeq, history.getFirstSeq());
+				lastSeq = Math.max(lastSeq, history.getFirstSeq() + history.getMessages().size() - 1);
+				for (PacketNewMessage saved : history.getMessages())
+					handler.newMessage(saved.getSender(), saved.getMessage());
+				break;
+			case "HistoryPage":
+				PacketHistoryPage page = (PacketHistoryPage) packet;
+				if (!page.getMessages().isEmpty())
+					oldestSeq = page.getFirstSeq();
+				handler.historyPage(page.getMessages(), page.hasMore());
+				break;
+			case "RoomJoined":
+				PacketRoomJoined joined = (PacketRoomJoined) packet;
+				handler.roomJoined(joined.getRoom(), joined.getMembers(), joined.getHistory());
+				break;
+			case "RoomMessage":
+				PacketRoomMessage roomMessage = (PacketRoomMessage) packet;
+				handler.roomMessage(roomMessage.getRoom(), roomMessage.getSender(), roomMessage.getMessage());
+				break;
+			case "RoomMembersUpdate":
+				PacketRoomMembersUpdate membersUpdate = (PacketRoomMembersUpdate) packet;
+				handler.roomMembersUpdate(membersUpdate.getRoom(), membersUpdate.isJoined(),
+				                          membersUpdate.getUsername());
+				break;
+			case "PrivateMessage":
+				PacketPrivateMessage privateMessage = (PacketPrivateMessage) packet;
+				handler.privateMessage(privateMessage.getSender(), privateMessage.getMessage());
+				break;
+			case "MessageError":
+				handler.messageError(((PacketMessageError) packet).getReason());
+				break;
+			case "PrivateMessageError":
+				PacketPrivateMessageError error = (PacketPrivateMessageError) packet;
+				handler.privateMessageError(error.getTarget(), error.getReason());
+				break;
+			case "Pong":
+				break;
 			case "Goodbye":
-				handler.disconnected();
+				CountDownLatch goodbye = this.goodbye;
+				if (goodbye != null)
+					goodbye.countDown();
+				else
+					handler.disconnected();
 				break;
 			default:
 				handler.invalidPacketException(
@@ -125,9 +371,100 @@ public class Client implements PacketsHandler {
 		}
 	}
 
+	/**
+	 * Начинает периодическую отправку проверок соединения, прекращая отправку в прежнее соединение.
+	 *
+	 * @param communicator Коммуникатор соединения.
+	 * @param interval Интервал отправки в миллисекундах, 0 - сервер не ожидает проверок.
+	 */
+	private void startHeartbeat(ProtocolCommunicator communicator, int interval) {
+		stopHeartbeat();
+		if (interval <= 0)
+			return;
+		heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+			try {
+				communicator.sendPacket(new PacketPing(System.currentTimeMillis()));
+			} catch (InterruptedException ignored) {
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private void stopHeartbeat() {
+		ScheduledFuture<?> heartbeat = this.heartbeat;
+		if (heartbeat != null)
+			heartbeat.cancel(false);
+		this.heartbeat = null;
+	}
+
+	/**
+	 * Запрашивает изменения списка онлайн пользователей после заданной версии, если запрос еще не отправлен.
+	 *
+	 * @param sinceVersion Известная версия списка, либо 0 для запроса полного списка.
+	 */
+	private void requestPresence(long sinceVersion) throws InterruptedException {
+		if (presenceResync)
+			return;
+		presenceResync = true;
+		communicator.sendPacket(new PacketGetUsersList(uuid, sinceVersion));
+	}
+
+	/**
+	 * Применяет изменение списка онлайн пользователей и уведомляет о нем обработчик после установления соединения.
+	 *
+	 * @param username Имя пользователя.
+	 * @param joined Подключился пользователь или отключился.
+	 */
+	private void applyPresence(String username, boolean joined) {
+		boolean changed = joined ? onlineUsers.add(username) : onlineUsers.remove(username);
+		if (changed && established)
+			handler.onlineListUpdate(joined, username);
+	}
+
+	/**
+	 * Завершает получение списка или изменений списка онлайн пользователей.
+	 *
+	 * @param version Версия полученного списка.
+	 */
+	private void presenceUpdated(long version) {
+		presenceVersion = version;
+		presenceResync = false;
+		if (!established) {
+			established = true;
+			handler.connectionEstablished(new ArrayList<>(onlineUsers));
+		}
+	}
+
+	/**
+	 * Переподключается к серверу после разрыва соединения и запрашивает возобновление сессии.
+	 * Запрос отправляется вслед за подключением, не дожидаясь его подтверждения.
+	 *
+	 * @return Отправлен ли запрос возобновления.
+	 */
+	private boolean resume() {
+		try {
+			Socket socket = new Socket(address, port);
+			resuming = true;
+			communicator = new StreamCommunicator(this, socket.getInputStream(), socket.getOutputStream());
+			communicator.start();
+			communicator.sendPacket(new PacketConnect(type, true));
+			communicator.sendPacket(new PacketResume(uuid, lastSeq, presenceVersion), type);
+			return true;
+		} catch (IOException | InterruptedException e) {
+			resuming = false;
+			return false;
+		}
+	}
+
 	@Override
 	public void ioException(IOException e, ProtocolCommunicator communicator) {
 		communicator.close();
+		// Ошибка прежнего соединения после возобновления сессии в новом.
+		if (communicator != this.communicator)
+			return;
+		stopHeartbeat();
+		// Разрыв соединения до ответа на возобновление не возобновляется повторно.
+		if (uuid != null && resumable && !resuming && resume())
+			return;
 		uuid = null;
 		login = null;
 		type = null;
@@ -159,6 +496,14 @@ public class Client implements PacketsHandler {
 		 */
 		void newMessage(String username, String message);
 
+		/**
+		 * Страница более ранней истории сообщений чата.
+		 *
+		 * @param messages Сообщения в порядке отправки.
+		 * @param hasMore Есть ли в истории еще более ранние сообщения.
+		 */
+		void historyPage(List<PacketNewMessage> messages, boolean hasMore);
+
 		/**
 		 * Уведомляет об изменении списка пользователей онлайн.
 		 *
@@ -167,6 +512,62 @@ public class Client implements PacketsHandler {
 		 */
 		void onlineListUpdate(boolean isNew, String username);
 
+		/**
+		 * Новое личное сообщение.
+		 *
+		 * @param username Имя отправителя.
+		 * @param message Сообщение.
+		 */
+		default void privateMessage(String username, String message) {
+		}
+
+		/**
+		 * Сообщение чата не отправлено.
+		 *
+		 * @param reason Причина ошибки.
+		 */
+		default void messageError(String reason) {
+		}
+
+		/**
+		 * Личное сообщение не доставлено.
+		 *
+		 * @param target Имя получателя.
+		 * @param reason Причина ошибки.
+		 */
+		default void privateMessageError(String target, String reason) {
+		}
+
+		/**
+		 * Подключение к комнате чата. Обработчикам, не использующим комнаты, реализовывать не требуется.
+		 *
+		 * @param room Название комнаты.
+		 * @param members Участники комнаты.
+		 * @param history Последние сообщения комнаты в порядке отправки.
+		 */
+		default void roomJoined(String room, Collection<String> members, List<PacketNewMessage> history) {
+		}
+
+		/**
+		 * Новое сообщение в комнате чата.
+		 *
+		 * @param room Название комнаты.
+		 * @param username Имя отправителя.
+		 * @param message Сообщение.
+		 */
+		default void roomMessage(String room, String username, String message) {
+		}
+
+		/**
+		 * Уведомляет об изменении состава комнаты чата.
+		 *
+		 * @param room Название комнаты.
+		 * @param isJoined Подключился участник или отключился.
+		 * @param username Участник.
+		 */
+		default void roomMembersUpdate(String room, boolean isJoined, String username) {
+		}
+
 		/**
 		 * Новое исключение сети.
 		 *
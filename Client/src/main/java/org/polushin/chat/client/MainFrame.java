@@ -3,6 +3,7 @@ package org.polushin.chat.client;
 import org.polushin.chat.ProtocolCommunicator;
 import org.polushin.chat.protocol.Packet;
 import org.polushin.chat.protocol.PacketLogin;
+import org.polushin.chat.protocol.PacketNewMessage;
 
 import javax.swing.*;
 import java.awt.*;
@@ -13,6 +14,8 @@ import java.util.regex.Pattern;
 public class MainFrame extends JFrame {
 
 	private static final Font DEFAULT_FONT = new Font("Arial", Font.PLAIN, 25);
+	private static final int HISTORY_PAGE_SIZE = 20;
+	private static final String PRIVATE_MESSAGE_COMMAND = "/w ";
 
 	private final JTextArea messagesArea;
 	private final JTextField messageField;
@@ -22,10 +25,13 @@ public class MainFrame extends JFrame {
 	private final JButton connectButton;
 	private final JButton disconnectButton;
 	private final JButton sendButton;
+	private final JButton historyButton;
 	private final JComboBox<String> connectionType;
 
 	private final Client client = new Client(new ChatHandler());
 
+	private int historyOffset;
+
 	public MainFrame() {
 		maximize();
 		setTitle("Чатик");
@@ -108,7 +114,7 @@ public class MainFrame extends JFrame {
 		// Панель подключения
 		final JPanel connectPanel = new JPanel();
 		connectPanel.setBackground(mainPanel.getBackground());
-		connectPanel.setLayout(new GridLayout(7, 1));
+		connectPanel.setLayout(new GridLayout(8, 1));
 		final JLabel addressLabel = new JLabel("Адрес:порт");
 		addressLabel.setFont(DEFAULT_FONT);
 		connectPanel.add(addressLabel);
@@ -129,7 +135,11 @@ public class MainFrame extends JFrame {
 		disconnectButton.addActionListener(e -> disconnect());
 		disconnectButton.setEnabled(false);
 		disconnectButton.setFont(DEFAULT_FONT);
-		connectPanel.add(connectionType = new JComboBox<>(new String[] {"JSON", "Bytes"}));
+		connectPanel.add(historyButton = new JButton("Ранее"));
+		historyButton.addActionListener(e -> client.requestHistory(HISTORY_PAGE_SIZE));
+		historyButton.setEnabled(false);
+		historyButton.setFont(DEFAULT_FONT);
+		connectPanel.add(connectionType = new JComboBox<>(new String[] {"JSON", "Bytes", "Binary"}));
 		connectionType.setSelectedIndex(0);
 		cn.gridx = 9;
 		cn.gridy = 9;
@@ -150,7 +160,15 @@ public class MainFrame extends JFrame {
 	private void send() {
 		if (messageField.getText().isEmpty())
 			return;
-		client.sendMessage(messageField.getText());
+		String text = messageField.getText();
+		int split = text.indexOf(' ', PRIVATE_MESSAGE_COMMAND.length());
+		if (text.startsWith(PRIVATE_MESSAGE_COMMAND) && split != -1) {
+			String target = text.substring(PRIVATE_MESSAGE_COMMAND.length(), split);
+			String message = text.substring(split + 1);
+			client.sendPrivateMessage(target, message);
+			messagesArea.setText(String.format("%s\n[-> %s]: %s", messagesArea.getText(), target, message));
+		} else
+			client.sendMessage(text);
 		messageField.setText("");
 	}
 
@@ -182,16 +200,21 @@ public class MainFrame extends JFrame {
 			case 1:
 				type = ProtocolCommunicator.CommunicateType.BYTES;
 				break;
+			case 2:
+				type = ProtocolCommunicator.CommunicateType.BINARY;
+				break;
 			default:
 				type = ProtocolCommunicator.CommunicateType.JSON;
 		}
 
 		messagesArea.setText("Подключение к " + address + "...");
+		historyOffset = messagesArea.getText().length();
 		client.connect(address.substring(0, split), port, (String) username.getValue(), type);
 	}
 
 	private void disconnect() {
 		disconnectButton.setEnabled(false);
+		historyButton.setEnabled(false);
 		messageField.setEnabled(false);
 		sendButton.setEnabled(false);
 		client.disconnect();
@@ -224,6 +247,7 @@ public class MainFrame extends JFrame {
 				messagesArea.setText(String.format("%s\nПодключено к %s", messagesArea.getText(), address.getValue()));
 				messageField.setEnabled(true);
 				disconnectButton.setEnabled(true);
+				historyButton.setEnabled(true);
 				sendButton.setEnabled(true);
 				currentOnline.clear();
 				currentOnline.addAll(onlineUsers);
@@ -240,6 +264,17 @@ public class MainFrame extends JFrame {
 			});
 		}
 
+		@Override
+		public void historyPage(java.util.List<PacketNewMessage> messages, boolean hasMore) {
+			SwingUtilities.invokeLater(() -> {
+				StringBuilder page = new StringBuilder();
+				for (PacketNewMessage message : messages)
+					page.append(String.format("\n[%s]: %s", message.getSender(), message.getMessage()));
+				messagesArea.insert(page.toString(), historyOffset);
+				historyButton.setEnabled(hasMore);
+			});
+		}
+
 		@Override
 		public void onlineListUpdate(boolean isNew, String username) {
 			SwingUtilities.invokeLater(() -> {
@@ -258,6 +293,28 @@ public class MainFrame extends JFrame {
 			});
 		}
 
+		@Override
+		public void privateMessage(String username, String message) {
+			SwingUtilities.invokeLater(() -> {
+				messagesArea.setText(String.format("%s\n[%s ->]: %s", messagesArea.getText(), username, message));
+			});
+		}
+
+		@Override
+		public void messageError(String reason) {
+			SwingUtilities.invokeLater(() -> {
+				messagesArea.setText(String.format("%s\nСообщение не отправлено: %s", messagesArea.getText(), reason));
+			});
+		}
+
+		@Override
+		public void privateMessageError(String target, String reason) {
+			SwingUtilities.invokeLater(() -> {
+				messagesArea.setText(String.format("%s\nСообщение для %s не доставлено: %s", messagesArea.getText(),
+				                                   target, reason));
+			});
+		}
+
 		@Override
 		public void fatalException(Exception e) {
 			SwingUtilities.invokeLater(() -> {
@@ -0,0 +1,368 @@
+package org.polushin.chat.server;
+
+import org.polushin.chat.*;
+import org.polushin.chat.protocol.Packet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Коммуникатор поверх неблокирующего канала.
+ * Чтение и запись выполняются в потоке цикла событий, к которому привязан канал,
+ * отправка пакетов никогда не блокирует вызывающий поток.
+ */
+class ChannelCommunicator extends ProtocolCommunicator {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+	private static final int MAX_LEGACY_BUFFER_SIZE = PacketCodec.MAX_FRAME_SIZE + 16;
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private ByteBuffer inputBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private final Deque<SharedFrame> writingFrames = new ArrayDeque<>();
+	private final Deque<ByteBuffer> writingViews = new ArrayDeque<>();
+	private SelectionKey key;
+	private boolean streamChecked;
+	private boolean readingPaused;
+	private volatile boolean closing;
+	private volatile boolean closed;
+
+	/**
+	 * @param handler Обработчик входящих пакетов.
+	 * @param channel Неблокирующий канал соединения.
+	 * @param loop Цикл событий, обслуживающий канал.
+	 */
+	ChannelCommunicator(PacketsHandler handler, SocketChannel channel, EventLoop loop) {
+		super(handler);
+		if (channel == null)
+			throw new IllegalArgumentException("Channel cannot be null!");
+		if (loop == null)
+			throw new IllegalArgumentException("Event loop cannot be null!");
+		this.channel = channel;
+		this.loop = loop;
+		log.info("Communicator enabled.");
+	}
+
+	/**
+	 * Регистрирует канал в цикле событий. До регистрации исходящие кадры накапливаются в очереди.
+	 */
+	@Override
+	public void start() {
+		loop.register(channel, this);
+	}
+
+	/**
+	 * Снимает интерес к чтению канала в потоке цикла. Изменения выполняются в порядке вызовов.
+	 */
+	@Override
+	public void pauseReading() {
+		execute(() -> setReadingPaused(true));
+	}
+
+	@Override
+	public void resumeReading() {
+		execute(() -> setReadingPaused(false));
+	}
+
+	private void setReadingPaused(boolean paused) {
+		readingPaused = paused;
+		if (key != null && key.isValid())
+			key.interestOps(paused ? key.interestOps() & ~SelectionKey.OP_READ :
+			                key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @return Интерес к чтению канала с учетом приостановки чтения.
+	 */
+	private int readOps() {
+		return readingPaused ? 0 : SelectionKey.OP_READ;
+	}
+
+	@Override
+	public void sendPacket(Packet packet, CommunicateType type) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		if (closing)
+			return;
+		SharedFrame frame;
+		try {
+			frame = new SharedFrame(encodeFrame(packet, type));
+		} catch (IOException e) {
+			handler.ioException(e, this);
+			return;
+		}
+		if (!queueFrame(frame, packet))
+			return;
+		log.info("Queued packet " + packet.getType() + " using " + type);
+		scheduleFlush();
+	}
+
+	@Override
+	public void sendPacket(PreparedPacket packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		if (closing)
+			return;
+		SharedFrame frame;
+		try {
+			frame = prepareFrame(packet);
+		} catch (IOException e) {
+			handler.ioException(e, this);
+			return;
+		}
+		if (!queueFrame(frame, packet.getPacket()))
+			return;
+		log.info("Queued prepared packet " + packet.getPacket().getType());
+		scheduleFlush();
+	}
+
+	/**
+	 * Закрывает соединение после отправки уже поставленных в очередь пакетов.
+	 */
+	@Override
+	public void close() {
+		closing = true;
+		scheduleFlush();
+	}
+
+	/**
+	 * Цикл событий пытается дописать в канал последний кадр без ожидания, закрывает канал
+	 * и уведомляет обработчик об ошибке ввода-вывода.
+	 */
+	@Override
+	protected void abortOutput(SharedFrame last) {
+		closing = true;
+		outputQueue.abort(last);
+		execute(() -> {
+			if (closed)
+				return;
+			flush();
+			closeNow();
+			handler.ioException(new IOException(SLOW_CONSUMER_REASON), this);
+		});
+	}
+
+	/**
+	 * Вызывается циклом после регистрации канала.
+	 *
+	 * @param key Ключ регистрации.
+	 */
+	void registered(SelectionKey key) {
+		this.key = key;
+		flush();
+	}
+
+	/**
+	 * Читает доступные данные из канала и обрабатывает все полностью принятые кадры.
+	 */
+	void read() {
+		try {
+			readInput();
+		} catch (CancelledKeyException ignored) {
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private void readInput() {
+		try {
+			int read = channel.read(inputBuffer);
+			if (read < 0)
+				throw new EOFException("Connection closed by peer.");
+			inputBuffer.flip();
+			if (!streamChecked) {
+				if (inputBuffer.remaining() < PacketCodec.HEADER_SIZE) {
+					inputBuffer.compact();
+					return;
+				}
+				streamChecked = true;
+				if (inputBuffer.getInt(inputBuffer.position()) == LegacyFraming.STREAM_MAGIC) {
+					inputBuffer.getInt();
+					enableLegacyFraming();
+					outputQueue.offer(new SharedFrame(LegacyFraming.header()), false);
+					flush();
+				}
+			}
+			if (isLegacyFraming())
+				readLegacyFrames();
+			else
+				readFrames();
+		} catch (IOException e) {
+			closeNow();
+			handler.ioException(e, this);
+		}
+	}
+
+	private void readFrames() throws IOException {
+		while (!closing && inputBuffer.remaining() >= PacketCodec.HEADER_SIZE) {
+			int header = inputBuffer.getInt(inputBuffer.position());
+			int length = PacketCodec.payloadLength(header);
+			if (!PacketCodec.isValidLength(length))
+				throw new StreamCorruptedException("Invalid frame length: " + length);
+			int frameSize = PacketCodec.HEADER_SIZE + length;
+			if (inputBuffer.remaining() < frameSize) {
+				if (inputBuffer.capacity() < frameSize)
+					inputBuffer = ByteBuffer.allocate(frameSize).put(inputBuffer);
+				else
+					inputBuffer.compact();
+				return;
+			}
+			ByteBuffer payload = inputBuffer.duplicate();
+			payload.position(inputBuffer.position() + PacketCodec.HEADER_SIZE);
+			payload.limit(inputBuffer.position() + frameSize);
+			inputBuffer.position(inputBuffer.position() + frameSize);
+			if (PacketCodec.isCompressed(header))
+				receiveCompressedFrame(payload.slice());
+			else
+				receiveFrame(payload.slice());
+		}
+		compactInput();
+	}
+
+	/**
+	 * Длина строки заранее неизвестна, поэтому заполненный буфер увеличивается вдвое.
+	 */
+	private void readLegacyFrames() throws IOException {
+		String json;
+		while (!closing && (json = LegacyFraming.next(inputBuffer)) != null)
+			receiveLegacyFrame(json);
+		if (inputBuffer.position() == 0 && inputBuffer.limit() == inputBuffer.capacity())
+			inputBuffer = ByteBuffer.allocate(Math.min(inputBuffer.capacity() * 2, MAX_LEGACY_BUFFER_SIZE))
+			                        .put(inputBuffer);
+		else
+			compactInput();
+	}
+
+	/**
+	 * Переносит непрочитанные данные в начало буфера чтения. Буфер, увеличенный для большого кадра,
+	 * заменяется буфером начального размера, если непрочитанные данные в нем помещаются,
+	 * иначе каждое соединение удерживало бы буфер размером с наибольший полученный кадр до закрытия.
+	 */
+	private void compactInput() {
+		if (inputBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE && inputBuffer.remaining() <= INITIAL_BUFFER_SIZE)
+			inputBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).put(inputBuffer);
+		else
+			inputBuffer.compact();
+	}
+
+	/**
+	 * Записывает в канал поставленные в очередь кадры, пока канал принимает данные.
+	 * Накопившиеся кадры записываются одной операцией.
+	 */
+	void flush() {
+		try {
+			writeOutput();
+		} catch (CancelledKeyException ignored) {
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private void writeOutput() {
+		if (key == null || closed)
+			return;
+		flushScheduled.set(false);
+		int maxBatch = getMaxWriteBatch();
+		try {
+			SharedFrame frame;
+			while (true) {
+				while (writingFrames.size() < maxBatch && (frame = outputQueue.poll()) != null) {
+					writingFrames.add(frame);
+					writingViews.add(frame.view());
+				}
+				if (writingFrames.isEmpty())
+					break;
+				long written = channel.write(writingViews.toArray(new ByteBuffer[0]));
+				int frames = 0;
+				while (!writingViews.isEmpty() && !writingViews.peek().hasRemaining()) {
+					writingViews.poll();
+					writingFrames.poll().release();
+					frames++;
+				}
+				getWriteStats().record(frames, written);
+				if (!writingViews.isEmpty())
+					break;
+			}
+		} catch (IOException e) {
+			closeNow();
+			handler.ioException(e, this);
+			return;
+		}
+		if (writingFrames.isEmpty() && outputQueue.isEmpty()) {
+			if (closing)
+				closeNow();
+			else
+				key.interestOps(readOps());
+		} else
+			key.interestOps(readOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Немедленно закрывает канал без отправки оставшихся пакетов.
+	 */
+	void closeNow() {
+		closing = true;
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		writingViews.clear();
+		SharedFrame frame;
+		while ((frame = writingFrames.poll()) != null)
+			frame.release();
+		outputQueue.close();
+	}
+
+	/**
+	 * Выполняет задачу соединения в потоке цикла. Ошибка задачи закрывает только это соединение.
+	 *
+	 * @param task Задача.
+	 */
+	private void execute(Runnable task) {
+		loop.execute(() -> {
+			try {
+				task.run();
+			} catch (CancelledKeyException ignored) {
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		});
+	}
+
+	/**
+	 * Закрывает соединение после ошибки обработки его событий, чтобы она не остановила цикл
+	 * и остальные соединения, и сообщает обработчику о недопустимом пакете.
+	 *
+	 * @param e Ошибка.
+	 */
+	private void fail(RuntimeException e) {
+		if (closed)
+			return;
+		log.log(Level.WARNING, "Closing connection after processing failure.", e);
+		closeNow();
+		handler.invalidPacketException(new Packet.InvalidPacketException(e), this);
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true))
+			execute(this::flush);
+	}
+}
@@ -0,0 +1,76 @@
+package org.polushin.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика очередей обработчиков пакетов.
+ */
+public class DispatchStats {
+
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+	private final LongAdder readPauses = new LongAdder();
+
+	/**
+	 * Учитывает пакет, поставленный в очередь обработчика.
+	 *
+	 * @param depth Длина очереди обработчика вместе с этим пакетом.
+	 */
+	void recordQueued(int depth) {
+		packets.increment();
+		queued.increment();
+		long max;
+		while ((max = maxQueueDepth.get()) < depth && !maxQueueDepth.compareAndSet(max, depth))
+			;
+	}
+
+	/**
+	 * Учитывает пакет, взятый обработчиком из очереди.
+	 */
+	void recordTaken() {
+		queued.decrement();
+	}
+
+	/**
+	 * Учитывает приостановку чтения соединения с переполненной очередью задач.
+	 */
+	void recordReadPause() {
+		readPauses.increment();
+	}
+
+	/**
+	 * @return Количество пакетов, переданных обработчикам.
+	 */
+	public long getPackets() {
+		return packets.sum();
+	}
+
+	/**
+	 * @return Количество пакетов, ожидающих обработки во всех очередях.
+	 */
+	public long getQueueDepth() {
+		return queued.sum();
+	}
+
+	/**
+	 * @return Наибольшая длина очереди одного обработчика.
+	 */
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * @return Количество приостановок чтения соединений.
+	 */
+	public long getReadPauses() {
+		return readPauses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d packets dispatched, %d queued, max lane queue depth %d, %d read pauses",
+		                     getPackets(), getQueueDepth(), getMaxQueueDepth(), getReadPauses());
+	}
+}
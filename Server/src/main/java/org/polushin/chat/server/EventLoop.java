@@ -0,0 +1,122 @@
+package org.polushin.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Цикл обработки событий неблокирующих соединений.
+ * Все операции с каналами, зарегистрированными в цикле, выполняются в его потоке.
+ */
+class EventLoop extends Thread {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean interrupted;
+
+	/**
+	 * @param name Имя потока цикла.
+	 *
+	 * @throws IOException Ошибка открытия селектора.
+	 */
+	EventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		start();
+	}
+
+	/**
+	 * Регистрирует канал коммуникатора в цикле.
+	 *
+	 * @param channel Неблокирующий канал.
+	 * @param communicator Коммуникатор, обслуживающий канал.
+	 */
+	void register(SocketChannel channel, ChannelCommunicator communicator) {
+		execute(() -> {
+			try {
+				communicator.registered(channel.register(selector, SelectionKey.OP_READ, communicator));
+			} catch (ClosedChannelException e) {
+				communicator.close();
+			}
+		});
+	}
+
+	/**
+	 * Выполняет задачу в потоке цикла.
+	 *
+	 * @param task Задача.
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return Выполняется ли текущий код в потоке цикла.
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	@Override
+	public void run() {
+		while (!interrupted) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			runTasks();
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				ChannelCommunicator communicator = (ChannelCommunicator) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable())
+						communicator.flush();
+					if (key.isValid() && key.isReadable())
+						communicator.read();
+				} catch (CancelledKeyException ignored) {
+				} catch (RuntimeException e) {
+					// Коммуникатор закрывает соединение при ошибках обработки, сюда попадают только ошибки закрытия.
+					e.printStackTrace();
+					communicator.closeNow();
+				}
+			}
+		}
+
+		runTasks();
+		for (SelectionKey key : selector.keys())
+			((ChannelCommunicator) key.attachment()).closeNow();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void interrupt() {
+		interrupted = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Выполняет поставленные задачи. Ошибка задачи не останавливает цикл.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.polushin.chat.server;
+
+import org.polushin.chat.PreparedPacket;
+import org.polushin.chat.ProtocolCommunicator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Рассылка подготовленного пакета множеству получателей.
+ * Небольшие рассылки выполняются в вызывающем потоке. Если получателей не меньше порога, таблица получателей
+ * делится на части не меньше порога, которые обходятся параллельно в общем {@link java.util.concurrent.ForkJoinPool}.
+ * В обоих случаях рассылка завершается после постановки пакета в очереди всех получателей, поэтому
+ * последовательные рассылки из одного потока доходят до каждого получателя в порядке отправки.
+ */
+class FanOut {
+
+	private volatile long parallelThreshold = Long.MAX_VALUE;
+
+	/**
+	 * @param threshold Наименьшее количество получателей для параллельной рассылки, 0 - только последовательная.
+	 */
+	void setParallelThreshold(int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Parallel threshold cannot be negative!");
+		parallelThreshold = threshold == 0 ? Long.MAX_VALUE : threshold;
+	}
+
+	/**
+	 * Отправляет пакет получателям из таблицы.
+	 *
+	 * @param recipients Таблица, ключи которой определяют получателей.
+	 * @param packet Пакет или {@code null}, чтобы только подсчитать получателей.
+	 * @param target Коммуникатор получателя по ключу таблицы или {@code null}, если ключ пропускается.
+	 * @param <K> Тип ключа таблицы.
+	 *
+	 * @return Количество получателей.
+	 *
+	 * @throws InterruptedException Прерывание отправки.
+	 */
+	<K> int send(ConcurrentHashMap<K, ?> recipients, PreparedPacket packet,
+	             Function<? super K, ? extends ProtocolCommunicator> target) throws InterruptedException {
+		long threshold = parallelThreshold;
+		if (recipients.size() < threshold) {
+			int sent = 0;
+			for (K key : recipients.keySet()) {
+				ProtocolCommunicator communicator = target.apply(key);
+				if (communicator == null)
+					continue;
+				if (packet != null)
+					communicator.sendPacket(packet);
+				sent++;
+			}
+			return sent;
+		}
+		LongAdder sent = new LongAdder();
+		recipients.forEachKey(threshold, key -> {
+			ProtocolCommunicator communicator = target.apply(key);
+			if (communicator == null)
+				return;
+			if (packet != null) {
+				try {
+					communicator.sendPacket(packet);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			sent.increment();
+		});
+		return sent.intValue();
+	}
+}
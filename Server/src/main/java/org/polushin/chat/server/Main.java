@@ -1,25 +1,139 @@
 package org.polushin.chat.server;
 
+import org.polushin.chat.FrameCompressor;
+import org.polushin.chat.OverflowPolicy;
+import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.ThreadMode;
+
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
 	public static final int DEFAULT_PORT = 13337;
 	public static final int DEFAULT_MAX_CONNECTIONS = 50;
+	public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_WRITE_BATCH = ProtocolCommunicator.DEFAULT_MAX_WRITE_BATCH;
+	public static final int DEFAULT_WRITE_LINGER_MS = 0;
+	public static final int DEFAULT_OUTPUT_BUDGET_KB = (int) (OverflowPolicy.DEFAULT_MAX_PENDING_BYTES / 1024);
+	public static final int DEFAULT_OUTPUT_SPILL_KB = (int) (OverflowPolicy.DEFAULT_MAX_SPILL_BYTES / 1024);
+	public static final int DEFAULT_OUTPUT_STALL_MS = 10000;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = FrameCompressor.DEFAULT_THRESHOLD;
+	public static final long DEFAULT_HISTORY_DEPTH = MessageJournal.DEFAULT_MAX_MESSAGES;
+	public static final int DEFAULT_PRESENCE_WINDOW_MS = 100;
+	public static final int DEFAULT_DISPATCH_LANES = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_PARALLEL_BROADCAST = 4096;
+	public static final int DEFAULT_RESUME_GRACE_MS = 15000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_LOGIN_TIMEOUT_MS = 30000;
+	public static final int DEFAULT_HEARTBEAT_MS = 15000;
+	public static final int DEFAULT_IDLE_TIMEOUT_MS = 45000;
 
 	private static final String PORT_ARG_PREFIX = "--port=";
 	private static final String SLOTS_ARG_PREFIX = "--slots=";
+	private static final String LOOPS_ARG_PREFIX = "--loops=";
+	private static final String THREADS_ARG_PREFIX = "--threads=";
+	private static final String WRITE_BATCH_ARG_PREFIX = "--write-batch=";
+	private static final String WRITE_LINGER_ARG_PREFIX = "--write-linger-ms=";
+	private static final String OVERFLOW_ARG_PREFIX = "--overflow=";
+	private static final String OUTPUT_BUDGET_ARG_PREFIX = "--output-budget-kb=";
+	private static final String OUTPUT_SPILL_ARG_PREFIX = "--output-spill-kb=";
+	private static final String OUTPUT_STALL_ARG_PREFIX = "--output-stall-ms=";
+	private static final String COMPRESSION_THRESHOLD_ARG_PREFIX = "--compression-threshold=";
+	private static final String NO_COMPRESSION_ARG = "--no-compression";
+	private static final String JOURNAL_ARG_PREFIX = "--journal=";
+	private static final String HISTORY_DEPTH_ARG_PREFIX = "--history-depth=";
+	private static final String JOURNAL_SYNC_ARG_PREFIX = "--journal-sync=";
+	private static final String PRESENCE_WINDOW_ARG_PREFIX = "--presence-window-ms=";
+	private static final String DISPATCH_LANES_ARG_PREFIX = "--dispatch-lanes=";
+	private static final String PARALLEL_BROADCAST_ARG_PREFIX = "--parallel-broadcast=";
+	private static final String RESUME_GRACE_ARG_PREFIX = "--resume-grace-ms=";
+	private static final String HANDSHAKE_TIMEOUT_ARG_PREFIX = "--handshake-timeout-ms=";
+	private static final String LOGIN_TIMEOUT_ARG_PREFIX = "--login-timeout-ms=";
+	private static final String HEARTBEAT_ARG_PREFIX = "--heartbeat-ms=";
+	private static final String IDLE_TIMEOUT_ARG_PREFIX = "--idle-timeout-ms=";
+	private static final String NIO_THREADS = "nio";
+	private static final String DROP_OVERFLOW = "drop";
+	private static final String DISCONNECT_OVERFLOW = "disconnect";
+	private static final String SPILL_OVERFLOW = "spill";
 
 	public static void main(String[] args) {
 		int port = DEFAULT_PORT;
 		int slots = DEFAULT_MAX_CONNECTIONS;
+		int loops = DEFAULT_EVENT_LOOPS;
+		ThreadMode threadMode = null;
+		int writeBatch = DEFAULT_WRITE_BATCH;
+		int writeLinger = DEFAULT_WRITE_LINGER_MS;
+		String overflow = SPILL_OVERFLOW;
+		int outputBudget = DEFAULT_OUTPUT_BUDGET_KB;
+		int outputSpill = DEFAULT_OUTPUT_SPILL_KB;
+		int outputStall = DEFAULT_OUTPUT_STALL_MS;
+		int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		boolean compression = true;
+		String journalDirectory = null;
+		long historyDepth = DEFAULT_HISTORY_DEPTH;
+		String journalSync = MessageJournal.Sync.BATCH.name();
+		int presenceWindow = DEFAULT_PRESENCE_WINDOW_MS;
+		int dispatchLanes = DEFAULT_DISPATCH_LANES;
+		int parallelBroadcast = DEFAULT_PARALLEL_BROADCAST;
+		int resumeGrace = DEFAULT_RESUME_GRACE_MS;
+		int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+		int loginTimeout = DEFAULT_LOGIN_TIMEOUT_MS;
+		int heartbeat = DEFAULT_HEARTBEAT_MS;
+		int idleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
 		try {
 			for (String arg : args) {
 				if (arg.startsWith(PORT_ARG_PREFIX))
 					port = Integer.parseInt(arg.substring(PORT_ARG_PREFIX.length()));
 				else if (arg.startsWith(SLOTS_ARG_PREFIX))
 					slots = Integer.parseInt(arg.substring(SLOTS_ARG_PREFIX.length()));
-				else {
+				else if (arg.startsWith(LOOPS_ARG_PREFIX))
+					loops = Integer.parseInt(arg.substring(LOOPS_ARG_PREFIX.length()));
+				else if (arg.startsWith(WRITE_BATCH_ARG_PREFIX))
+					writeBatch = Integer.parseInt(arg.substring(WRITE_BATCH_ARG_PREFIX.length()));
+				else if (arg.startsWith(WRITE_LINGER_ARG_PREFIX))
+					writeLinger = Integer.parseInt(arg.substring(WRITE_LINGER_ARG_PREFIX.length()));
+				else if (arg.startsWith(OVERFLOW_ARG_PREFIX))
+					overflow = arg.substring(OVERFLOW_ARG_PREFIX.length());
+				else if (arg.startsWith(OUTPUT_BUDGET_ARG_PREFIX))
+					outputBudget = Integer.parseInt(arg.substring(OUTPUT_BUDGET_ARG_PREFIX.length()));
+				else if (arg.startsWith(OUTPUT_SPILL_ARG_PREFIX))
+					outputSpill = Integer.parseInt(arg.substring(OUTPUT_SPILL_ARG_PREFIX.length()));
+				else if (arg.startsWith(OUTPUT_STALL_ARG_PREFIX))
+					outputStall = Integer.parseInt(arg.substring(OUTPUT_STALL_ARG_PREFIX.length()));
+				else if (arg.startsWith(COMPRESSION_THRESHOLD_ARG_PREFIX))
+					compressionThreshold = Integer.parseInt(arg.substring(COMPRESSION_THRESHOLD_ARG_PREFIX.length()));
+				else if (arg.equals(NO_COMPRESSION_ARG))
+					compression = false;
+				else if (arg.startsWith(JOURNAL_ARG_PREFIX))
+					journalDirectory = arg.substring(JOURNAL_ARG_PREFIX.length());
+				else if (arg.startsWith(HISTORY_DEPTH_ARG_PREFIX))
+					historyDepth = Long.parseLong(arg.substring(HISTORY_DEPTH_ARG_PREFIX.length()));
+				else if (arg.startsWith(JOURNAL_SYNC_ARG_PREFIX))
+					journalSync = arg.substring(JOURNAL_SYNC_ARG_PREFIX.length());
+				else if (arg.startsWith(PRESENCE_WINDOW_ARG_PREFIX))
+					presenceWindow = Integer.parseInt(arg.substring(PRESENCE_WINDOW_ARG_PREFIX.length()));
+				else if (arg.startsWith(DISPATCH_LANES_ARG_PREFIX))
+					dispatchLanes = Integer.parseInt(arg.substring(DISPATCH_LANES_ARG_PREFIX.length()));
+				else if (arg.startsWith(PARALLEL_BROADCAST_ARG_PREFIX))
+					parallelBroadcast = Integer.parseInt(arg.substring(PARALLEL_BROADCAST_ARG_PREFIX.length()));
+				else if (arg.startsWith(RESUME_GRACE_ARG_PREFIX))
+					resumeGrace = Integer.parseInt(arg.substring(RESUME_GRACE_ARG_PREFIX.length()));
+				else if (arg.startsWith(HANDSHAKE_TIMEOUT_ARG_PREFIX))
+					handshakeTimeout = Integer.parseInt(arg.substring(HANDSHAKE_TIMEOUT_ARG_PREFIX.length()));
+				else if (arg.startsWith(LOGIN_TIMEOUT_ARG_PREFIX))
+					loginTimeout = Integer.parseInt(arg.substring(LOGIN_TIMEOUT_ARG_PREFIX.length()));
+				else if (arg.startsWith(HEARTBEAT_ARG_PREFIX))
+					heartbeat = Integer.parseInt(arg.substring(HEARTBEAT_ARG_PREFIX.length()));
+				else if (arg.startsWith(IDLE_TIMEOUT_ARG_PREFIX))
+					idleTimeout = Integer.parseInt(arg.substring(IDLE_TIMEOUT_ARG_PREFIX.length()));
+				else if (arg.startsWith(THREADS_ARG_PREFIX)) {
+					String threads = arg.substring(THREADS_ARG_PREFIX.length());
+					threadMode = threads.equals(NIO_THREADS) ? null : ThreadMode.valueOf(
+							threads.toUpperCase(Locale.ROOT));
+				} else {
 					System.err.println("Unrecognised option: " + arg);
 					System.exit(-1);
 				}
@@ -27,14 +141,123 @@ public class Main {
 		} catch (NumberFormatException e) {
 			System.err.println("Invalid parameters type.");
 			System.exit(-1);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown threads type, expected: nio, platform or virtual.");
+			System.exit(-1);
+		}
+
+		if (writeBatch < 1 || writeLinger < 0) {
+			System.err.println("Write batch must be positive and write linger cannot be negative.");
+			System.exit(-1);
+		}
+
+		if (compressionThreshold < 0) {
+			System.err.println("Compression threshold cannot be negative.");
+			System.exit(-1);
+		}
+
+		if (outputBudget < 1 || outputSpill < 0 || outputStall < 0) {
+			System.err.println("Output budget must be positive, output spill and stall cannot be negative.");
+			System.exit(-1);
+		}
+
+		if (historyDepth < 1) {
+			System.err.println("History depth must be positive.");
+			System.exit(-1);
+		}
+
+		if (presenceWindow < 0) {
+			System.err.println("Presence window cannot be negative.");
+			System.exit(-1);
+		}
+
+		if (resumeGrace < 0) {
+			System.err.println("Resume grace cannot be negative.");
+			System.exit(-1);
 		}
 
-		System.out.println(String.format("Staring server on port %d with %d slots...", port, slots));
+		if (handshakeTimeout < 0 || loginTimeout < 0) {
+			System.err.println("Handshake and login timeouts cannot be negative.");
+			System.exit(-1);
+		}
+
+		if (heartbeat < 0 || idleTimeout < 0 || (idleTimeout > 0 && idleTimeout <= heartbeat)) {
+			System.err.println("Heartbeat and idle timeout cannot be negative, idle timeout must exceed heartbeat.");
+			System.exit(-1);
+		}
+
+		if (dispatchLanes < 0 || parallelBroadcast < 0) {
+			System.err.println("Dispatch lanes count and parallel broadcast threshold cannot be negative.");
+			System.exit(-1);
+		}
+
+		MessageJournal.Sync sync = null;
+		for (MessageJournal.Sync value : MessageJournal.Sync.values())
+			if (value.name().equalsIgnoreCase(journalSync))
+				sync = value;
+		if (sync == null) {
+			System.err.println("Unknown journal sync policy, expected: message, batch or os.");
+			System.exit(-1);
+		}
+
+		OverflowPolicy overflowPolicy;
+		long budgetBytes = outputBudget * 1024L;
+		switch (overflow) {
+			case DROP_OVERFLOW:
+				overflowPolicy = OverflowPolicy.dropOldest(budgetBytes);
+				break;
+			case DISCONNECT_OVERFLOW:
+				overflowPolicy = OverflowPolicy.disconnect(budgetBytes, outputStall, TimeUnit.MILLISECONDS);
+				break;
+			case SPILL_OVERFLOW:
+				overflowPolicy = OverflowPolicy.spill(budgetBytes, outputSpill * 1024L);
+				break;
+			default:
+				System.err.println("Unknown overflow policy, expected: drop, disconnect or spill.");
+				System.exit(-1);
+				return;
+		}
+
+		if (threadMode == null)
+			System.out.println(String.format("Staring server on port %d with %d slots and %d event loops...", port,
+			                                 slots, loops));
+		else
+			System.out.println(String.format("Staring server on port %d with %d slots and %s threads...", port,
+			                                 slots, threadMode.name().toLowerCase(Locale.ROOT)));
+
+		MessageJournal journal = null;
+		if (journalDirectory != null) {
+			try {
+				long start = System.nanoTime();
+				journal = new MessageJournal(Paths.get(journalDirectory), historyDepth, sync);
+				System.out.println(String.format("Journal opened with %d messages in %d ms.",
+				                                 journal.getNextSeq() - journal.getFirstSeq(),
+				                                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+				return;
+			}
+		}
 
 		Server server;
 		try {
-			server = new Server(port, slots);
-		} catch (IOException e) {
+			if (threadMode == null)
+				server = new Server(port, slots, loops);
+			else
+				server = new Server(port, slots, threadMode);
+			server.setWriteBatching(writeBatch, writeLinger, TimeUnit.MILLISECONDS);
+			server.setOverflowPolicy(overflowPolicy);
+			server.setCompressionThreshold(compression ? compressionThreshold : -1);
+			server.setPresenceWindow(presenceWindow, TimeUnit.MILLISECONDS);
+			server.setResumeGrace(resumeGrace, TimeUnit.MILLISECONDS);
+			server.setConnectTimeouts(handshakeTimeout, loginTimeout, TimeUnit.MILLISECONDS);
+			server.setHeartbeat(heartbeat, idleTimeout, TimeUnit.MILLISECONDS);
+			server.setDispatchLanes(dispatchLanes);
+			server.setParallelBroadcastThreshold(parallelBroadcast);
+			if (journal != null)
+				server.setJournal(journal);
+			server.start();
+		} catch (IOException | UnsupportedOperationException e) {
 			e.printStackTrace(System.err);
 			return;
 		}
@@ -53,6 +276,18 @@ public class Main {
 		} catch (InterruptedException ignored) {
 		}
 
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+
+		System.out.println("Writes: " + server.getWriteStats());
+		System.out.println("Compression: " + server.getCompressionStats());
+		System.out.println("Presence: " + server.getPresenceStats());
+		System.out.println("Dispatch: " + server.getDispatchStats());
 		System.out.println("Goodbye!");
 	}
 
@@ -0,0 +1,442 @@
+package org.polushin.chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал сообщений чата на диске, отображаемый в память.
+ * Журнал состоит из сегментов: файла записей сообщений и файла индекса со смещениями записей,
+ * поэтому сообщение находится по номеру без просмотра журнала, а сами сообщения не хранятся в куче.
+ * Номер каждого сообщения на единицу больше предыдущего, сегмент называется номером своего первого сообщения.
+ * Самые старые сегменты удаляются целиком, когда остальные сегменты вмещают всю глубину истории.
+ * Конец журнала периодически сохраняется в контрольной точке, при открытии журнала
+ * проверяются только записи после нее.
+ */
+public class MessageJournal implements Closeable {
+
+	public static final long DEFAULT_MAX_MESSAGES = 1000000;
+
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int SEGMENT_MESSAGES = 64 * 1024;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int CHECKPOINT_SIZE = 20;
+	private static final int BATCH_MESSAGES = 256;
+	private static final long BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int CHECKPOINT_MESSAGES = 4096;
+	private static final String DATA_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	private final Path directory;
+	private final long maxMessages;
+	private final Sync sync;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private final FileChannel checkpoint;
+	private final CRC32 crc = new CRC32();
+
+	private Segment head;
+	private int unsynced;
+	private long lastSync = System.nanoTime();
+	private boolean closed;
+
+	/**
+	 * Открывает журнал, создавая его при необходимости.
+	 *
+	 * @param directory Каталог журнала.
+	 * @param maxMessages Глубина истории: сколько последних сообщений хранит журнал.
+	 * @param sync Политика сброса журнала на диск.
+	 *
+	 * @throws IOException Ошибка открытия журнала.
+	 */
+	public MessageJournal(Path directory, long maxMessages, Sync sync) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("Directory cannot be null!");
+		if (maxMessages < 1)
+			throw new IllegalArgumentException("Max messages must be positive!");
+		if (sync == null)
+			throw new IllegalArgumentException("Sync policy cannot be null!");
+		this.directory = directory;
+		this.maxMessages = maxMessages;
+		this.sync = sync;
+
+		Files.createDirectories(directory);
+		List<Long> bases = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + DATA_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length())));
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+		Collections.sort(bases);
+		for (int i = 0; i < bases.size(); i++) {
+			Segment segment = new Segment(bases.get(i));
+			// Размер закрытого сегмента следует из номера первого сообщения следующего.
+			if (i + 1 < bases.size())
+				segment.count = (int) (bases.get(i + 1) - segment.base);
+			segments.put(segment.base, segment);
+		}
+
+		checkpoint = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+		                              StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (segments.isEmpty()) {
+			head = new Segment(0);
+			head.map(true);
+			segments.put(head.base, head);
+		} else {
+			head = segments.lastEntry().getValue();
+			head.map(true);
+			recover();
+		}
+	}
+
+	/**
+	 * Дописывает сообщение в конец журнала.
+	 *
+	 * @param sender Имя отправителя.
+	 * @param message Сообщение.
+	 *
+	 * @return Номер сообщения.
+	 *
+	 * @throws IOException Ошибка записи в журнал.
+	 */
+	public synchronized long append(String sender, String message) throws IOException {
+		if (sender == null)
+			throw new IllegalArgumentException("Sender cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		if (closed)
+			throw new IOException("Journal is closed!");
+		return append(sender.getBytes(StandardCharsets.UTF_8), message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private long append(byte[] sender, byte[] text) throws IOException {
+		int length = 8 + sender.length + text.length;
+		if (length > SEGMENT_SIZE - RECORD_HEADER_SIZE)
+			throw new IOException("Message is too large for journal!");
+		if (head.count == SEGMENT_MESSAGES || head.position + RECORD_HEADER_SIZE + length > SEGMENT_SIZE)
+			roll();
+
+		MappedByteBuffer data = head.data;
+		int position = head.position;
+		data.position(position + RECORD_HEADER_SIZE);
+		data.putInt(sender.length).put(sender).putInt(text.length).put(text);
+		data.putInt(position + 4, checksum(data, position + RECORD_HEADER_SIZE, length));
+		data.putInt(position, length);
+		head.index.putInt(head.count * 4, position);
+		head.position += RECORD_HEADER_SIZE + length;
+		head.count++;
+
+		unsynced++;
+		switch (sync) {
+			case MESSAGE:
+				force();
+				break;
+			case BATCH:
+				if (unsynced >= BATCH_MESSAGES || System.nanoTime() - lastSync >= BATCH_NANOS)
+					force();
+				break;
+			case OS:
+				if (unsynced >= CHECKPOINT_MESSAGES) {
+					writeCheckpoint(false);
+					unsynced = 0;
+				}
+				break;
+		}
+		return head.base + head.count - 1;
+	}
+
+	/**
+	 * Читает сообщения журнала по порядку.
+	 *
+	 * @param fromSeq Номер первого сообщения. Сообщения старше глубины истории пропускаются.
+	 * @param limit Наибольшее количество сообщений.
+	 *
+	 * @return Сообщения в порядке отправки.
+	 *
+	 * @throws IOException Ошибка чтения журнала.
+	 */
+	public synchronized List<SavedMessage> read(long fromSeq, int limit) throws IOException {
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit cannot be negative!");
+		if (closed)
+			throw new IOException("Journal is closed!");
+		long seq = Math.max(fromSeq, getFirstSeq());
+		long end = seq + Math.max(0, Math.min(limit, getNextSeq() - seq));
+		List<SavedMessage> messages = new ArrayList<>((int) (end - seq));
+		while (seq < end) {
+			Segment segment = segments.floorEntry(seq).getValue();
+			segment.map(false);
+			for (int i = (int) (seq - segment.base); i < segment.count && seq < end; i++, seq++)
+				messages.add(readRecord(segment, i, seq));
+		}
+		return messages;
+	}
+
+	/**
+	 * Читает сообщения, предшествующие заданному. Первое из них находится по индексу сегмента
+	 * без просмотра журнала.
+	 *
+	 * @param beforeSeq Номер сообщения, предшествующие которому читаются.
+	 * @param limit Наибольшее количество сообщений.
+	 *
+	 * @return Сообщения в порядке отправки.
+	 *
+	 * @throws IOException Ошибка чтения журнала.
+	 */
+	public synchronized List<SavedMessage> readBefore(long beforeSeq, int limit) throws IOException {
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit cannot be negative!");
+		long end = Math.min(beforeSeq, getNextSeq());
+		long from = Math.max(getFirstSeq(), end - limit);
+		return read(from, (int) Math.max(0, end - from));
+	}
+
+	/**
+	 * @param count Наибольшее количество сообщений.
+	 *
+	 * @return Последние сообщения журнала в порядке отправки.
+	 *
+	 * @throws IOException Ошибка чтения журнала.
+	 */
+	public List<SavedMessage> readLast(int count) throws IOException {
+		return readBefore(Long.MAX_VALUE, count);
+	}
+
+	/**
+	 * @return Номер самого старого сообщения в пределах глубины истории.
+	 */
+	public synchronized long getFirstSeq() {
+		return Math.max(segments.firstKey(), getNextSeq() - maxMessages);
+	}
+
+	/**
+	 * @return Номер, который получит следующее сообщение.
+	 */
+	public synchronized long getNextSeq() {
+		return head.base + head.count;
+	}
+
+	/**
+	 * Сбрасывает журнал на диск и закрывает его.
+	 *
+	 * @throws IOException Ошибка сброса журнала.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			force();
+		} finally {
+			checkpoint.close();
+			for (Segment segment : segments.values())
+				segment.unmap();
+		}
+	}
+
+	/**
+	 * Восстанавливает конец последнего сегмента: доверяет контрольной точке, если запись перед ней цела,
+	 * и проверяет записи после нее до первой отсутствующей или поврежденной.
+	 */
+	private void recover() throws IOException {
+		int count = 0;
+		int position = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		while (buffer.hasRemaining() && checkpoint.read(buffer, buffer.position()) > 0)
+			;
+		if (!buffer.hasRemaining()) {
+			buffer.flip();
+			long base = buffer.getLong();
+			int savedCount = buffer.getInt();
+			int savedPosition = buffer.getInt();
+			crc.reset();
+			crc.update(buffer.array(), 0, CHECKPOINT_SIZE - 4);
+			if ((int) crc.getValue() == buffer.getInt() && base == head.base && savedCount > 0 &&
+					savedCount <= SEGMENT_MESSAGES) {
+				int last = head.index.getInt((savedCount - 1) * 4);
+				int size = checkRecord(head.data, last);
+				if (size > 0 && last + size == savedPosition) {
+					count = savedCount;
+					position = savedPosition;
+				}
+			}
+		}
+		int size;
+		while (count < SEGMENT_MESSAGES && (size = checkRecord(head.data, position)) > 0) {
+			head.index.putInt(count * 4, position);
+			position += size;
+			count++;
+		}
+		head.count = count;
+		head.position = position;
+	}
+
+	/**
+	 * Закрывает последний сегмент и начинает новый. Удаляет сегменты старше глубины истории.
+	 */
+	private void roll() throws IOException {
+		if (sync != Sync.OS) {
+			head.data.force();
+			head.index.force();
+		}
+		Segment segment = new Segment(head.base + head.count);
+		segment.map(true);
+		segments.put(segment.base, segment);
+		head = segment;
+		writeCheckpoint(sync != Sync.OS);
+		unsynced = 0;
+		lastSync = System.nanoTime();
+
+		Map.Entry<Long, Segment> next;
+		while ((next = segments.higherEntry(segments.firstKey())) != null &&
+				getNextSeq() - next.getKey() >= maxMessages)
+			segments.pollFirstEntry().getValue().delete();
+	}
+
+	private void force() throws IOException {
+		head.data.force();
+		head.index.force();
+		writeCheckpoint(true);
+		unsynced = 0;
+		lastSync = System.nanoTime();
+	}
+
+	private void writeCheckpoint(boolean force) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		buffer.putLong(head.base).putInt(head.count).putInt(head.position);
+		crc.reset();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		while (buffer.hasRemaining())
+			checkpoint.write(buffer, buffer.position());
+		if (force)
+			checkpoint.force(false);
+	}
+
+	/**
+	 * @return Размер целой записи по смещению либо -1, если запись отсутствует или повреждена.
+	 */
+	private int checkRecord(ByteBuffer data, int position) {
+		if (position < 0 || position > data.capacity() - RECORD_HEADER_SIZE)
+			return -1;
+		int length = data.getInt(position);
+		if (length < 8 || length > data.capacity() - position - RECORD_HEADER_SIZE)
+			return -1;
+		if (checksum(data, position + RECORD_HEADER_SIZE, length) != data.getInt(position + 4))
+			return -1;
+		return RECORD_HEADER_SIZE + length;
+	}
+
+	private int checksum(ByteBuffer data, int offset, int length) {
+		ByteBuffer body = data.duplicate();
+		body.limit(offset + length).position(offset);
+		crc.reset();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	private SavedMessage readRecord(Segment segment, int index, long seq) {
+		ByteBuffer data = segment.data.duplicate();
+		data.position(segment.index.getInt(index * 4) + RECORD_HEADER_SIZE);
+		return new SavedMessage(seq, readString(data), readString(data));
+	}
+
+	private static String readString(ByteBuffer data) {
+		byte[] bytes = new byte[data.getInt()];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Политика сброса журнала на диск.
+	 */
+	public enum Sync {
+
+		/**
+		 * Сброс после каждого сообщения.
+		 */
+		MESSAGE,
+
+		/**
+		 * Сброс после 256 сообщений или 100 мс с прошлого сброса, а также при закрытии журнала.
+		 */
+		BATCH,
+
+		/**
+		 * Сброс на усмотрение ОС, журнал сбрасывается только при закрытии.
+		 */
+		OS
+	}
+
+	/**
+	 * Сегмент журнала: файл записей и файл индекса.
+	 * Файлы последнего сегмента отображаются для записи, остальные отображаются для чтения при первом обращении.
+	 */
+	private class Segment {
+
+		private final long base;
+
+		private int count;
+		private int position;
+		private MappedByteBuffer data;
+		private MappedByteBuffer index;
+
+		Segment(long base) {
+			this.base = base;
+		}
+
+		void map(boolean writable) throws IOException {
+			if (data != null)
+				return;
+			data = map(DATA_SUFFIX, SEGMENT_SIZE, writable);
+			index = map(INDEX_SUFFIX, SEGMENT_MESSAGES * 4, writable);
+		}
+
+		void unmap() {
+			data = null;
+			index = null;
+		}
+
+		void delete() throws IOException {
+			unmap();
+			Files.deleteIfExists(path(DATA_SUFFIX));
+			Files.deleteIfExists(path(INDEX_SUFFIX));
+		}
+
+		private MappedByteBuffer map(String suffix, int size, boolean writable) throws IOException {
+			if (!writable) {
+				try (FileChannel channel = FileChannel.open(path(suffix), StandardOpenOption.READ)) {
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+			}
+			try (FileChannel channel = FileChannel.open(path(suffix), StandardOpenOption.CREATE,
+			                                            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+			}
+		}
+
+		private Path path(String suffix) {
+			return directory.resolve(String.format("%020d%s", base, suffix));
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package org.polushin.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Кольцевой буфер последних сообщений чата фиксированной емкости.
+ * Ячейки выделяются заранее, в каждой хранится неизменяемое сообщение вместе с его номером.
+ * Писатели занимают номер одной атомарной операцией и публикуют сообщение в ячейке без блокировок.
+ * Читатели копируют снимок без блокировок и без ожидания: сообщение берется из ячейки, только если номер
+ * в ней совпадает с ожидаемым, поэтому снимок не содержит перезаписанных или чужих сообщений, а заканчивается
+ * снимок перед первым номером, который уже занят писателем, но еще не опубликован.
+ */
+class MessageRing {
+
+	private final AtomicReferenceArray<SavedMessage> slots;
+	private final AtomicLong next = new AtomicLong();
+
+	private volatile long start;
+
+	/**
+	 * @param capacity Емкость буфера.
+	 */
+	MessageRing(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		slots = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * Добавляет сообщение, присваивая ему следующий номер.
+	 *
+	 * @param sender Имя отправителя.
+	 * @param message Сообщение.
+	 *
+	 * @return Добавленное сообщение.
+	 */
+	SavedMessage append(String sender, String message) {
+		// Занятый номер обязан быть опубликован, иначе снимки остановятся перед ним, поэтому проверки выполняются до.
+		if (sender == null)
+			throw new IllegalArgumentException("Sender cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		SavedMessage saved = new SavedMessage(next.getAndIncrement(), sender, message);
+		publish(saved);
+		return saved;
+	}
+
+	/**
+	 * Добавляет сообщение, номер которому присвоен журналом.
+	 *
+	 * @param message Сообщение.
+	 */
+	void put(SavedMessage message) {
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		next.accumulateAndGet(message.getSeq() + 1, Math::max);
+		publish(message);
+	}
+
+	/**
+	 * Заполняет буфер заново. Не может выполняться одновременно с записью или чтением.
+	 *
+	 * @param nextSeq Номер следующего сообщения.
+	 * @param recent Последние сообщения в порядке отправки.
+	 */
+	void reset(long nextSeq, List<SavedMessage> recent) {
+		for (int i = 0; i < slots.length(); i++)
+			slots.set(i, null);
+		start = recent.isEmpty() ? nextSeq : recent.get(0).getSeq();
+		next.set(nextSeq);
+		for (SavedMessage message : recent)
+			publish(message);
+	}
+
+	/**
+	 * Копирует последние опубликованные сообщения с номерами меньше заданного.
+	 * Снимок не ожидает писателей и заканчивается перед {@link #getPublishedSeq()}.
+	 *
+	 * @param beforeSeq Номер, сообщения до которого копируются.
+	 * @param limit Наибольшее количество сообщений.
+	 *
+	 * @return Сообщения в порядке отправки.
+	 */
+	List<SavedMessage> snapshot(long beforeSeq, int limit) {
+		long end = Math.min(beforeSeq, getPublishedSeq());
+		long from = Math.max(getFirstSeq(), end - limit);
+		List<SavedMessage> messages = new ArrayList<>((int) Math.max(0, end - from));
+		for (long seq = from; seq < end; seq++) {
+			SavedMessage message = get(seq);
+			// Отсутствие сообщения означает, что оно уже вытеснено из буфера более новым.
+			if (message != null)
+				messages.add(message);
+		}
+		return messages;
+	}
+
+	/**
+	 * @param seq Номер сообщения.
+	 *
+	 * @return Опубликованное сообщение с данным номером, либо {@code null}, если оно еще не опубликовано
+	 * или уже вытеснено.
+	 */
+	SavedMessage get(long seq) {
+		SavedMessage message = slots.get((int) (seq % slots.length()));
+		return message != null && message.getSeq() == seq ? message : null;
+	}
+
+	/**
+	 * Находит первый номер, который занят писателем, но сообщение с которым еще не опубликовано.
+	 * Все сообщения с меньшими номерами опубликованы или уже вытеснены.
+	 *
+	 * @return Номер первого неопубликованного сообщения, либо {@link #getNextSeq()}, если опубликованы все.
+	 */
+	long getPublishedSeq() {
+		long end = next.get();
+		for (long seq = getFirstSeq(); seq < end; seq++) {
+			SavedMessage message = slots.get((int) (seq % slots.length()));
+			// Более новое сообщение в ячейке означает, что искомое опубликовано и уже вытеснено.
+			if (message == null || message.getSeq() < seq)
+				return seq;
+		}
+		return end;
+	}
+
+	/**
+	 * @return Номер, который получит следующее сообщение.
+	 */
+	long getNextSeq() {
+		return next.get();
+	}
+
+	/**
+	 * @return Номер самого старого сообщения, которое может находиться в буфере.
+	 */
+	long getFirstSeq() {
+		return Math.max(start, next.get() - slots.length());
+	}
+
+	private void publish(SavedMessage message) {
+		int index = (int) (message.getSeq() % slots.length());
+		SavedMessage current;
+		do {
+			current = slots.get(index);
+			// Отставший на полный круг писатель не затирает более новое сообщение.
+			if (current != null && current.getSeq() > message.getSeq())
+				return;
+		} while (!slots.compareAndSet(index, current, message));
+	}
+}
@@ -0,0 +1,138 @@
+package org.polushin.chat.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Набор обработчиков пакетов, между которыми сессии распределяются по хешу.
+ * Пакеты одной сессии всегда обрабатываются одним обработчиком в порядке поступления,
+ * а пакеты разных сессий - параллельно. Постановка задачи никогда не блокирует вызывающий поток:
+ * когда у сессии накапливается слишком много необработанных задач, приостанавливается чтение
+ * ее соединения, и оно возобновляется, когда обработчик разберет половину из них.
+ */
+class PacketDispatcher {
+
+	private final Lane[] lanes;
+	private final int maxQueued;
+	private final DispatchStats stats;
+
+	/**
+	 * @param lanes Количество обработчиков.
+	 * @param maxQueued Количество необработанных задач сессии, при котором приостанавливается чтение соединения.
+	 * @param stats Статистика очередей.
+	 */
+	PacketDispatcher(int lanes, int maxQueued, DispatchStats stats) {
+		if (lanes < 1)
+			throw new IllegalArgumentException("Lanes count must be positive!");
+		if (maxQueued < 1)
+			throw new IllegalArgumentException("Max queued tasks must be positive!");
+		if (stats == null)
+			throw new IllegalArgumentException("Stats cannot be null!");
+		this.maxQueued = maxQueued;
+		this.stats = stats;
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++)
+			this.lanes[i] = new Lane("Dispatcher-" + i);
+	}
+
+	/**
+	 * Ставит задачу в очередь обработчика сессии.
+	 *
+	 * @param session Сессия, которой принадлежит задача.
+	 * @param task Задача.
+	 */
+	void dispatch(Session session, Task task) {
+		Lane lane = laneOf(session);
+		// Длина учитывается до постановки, чтобы обработчик не уменьшил ее раньше, чем она увеличена.
+		stats.recordQueued(lane.depth.incrementAndGet());
+		if (session.taskQueued(maxQueued))
+			stats.recordReadPause();
+		lane.tasks.offer(() -> {
+			try {
+				task.run();
+			} finally {
+				session.taskDone(maxQueued);
+			}
+		});
+	}
+
+	/**
+	 * @param session Сессия.
+	 *
+	 * @return Выполняется ли текущий код в потоке обработчика сессии.
+	 */
+	boolean inLane(Session session) {
+		return Thread.currentThread() == laneOf(session);
+	}
+
+	private Lane laneOf(Session session) {
+		return lanes[(session.hashCode() & Integer.MAX_VALUE) % lanes.length];
+	}
+
+	/**
+	 * Останавливает обработчики, отбрасывая необработанные задачи.
+	 */
+	void interrupt() {
+		for (Lane lane : lanes)
+			lane.shutdown();
+	}
+
+	/**
+	 * Ожидает остановки обработчиков.
+	 */
+	void join() throws InterruptedException {
+		for (Lane lane : lanes)
+			lane.join();
+	}
+
+	/**
+	 * Задача обработчика.
+	 */
+	interface Task {
+		void run() throws InterruptedException;
+	}
+
+	private class Lane extends Thread {
+
+		private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+		private final AtomicInteger depth = new AtomicInteger();
+
+		private volatile boolean stopped;
+
+		Lane(String name) {
+			super(name);
+			start();
+		}
+
+		/**
+		 * Обработчик останавливается только вызовом {@link #shutdown()}: прерывание, полученное или оставленное
+		 * задачей, завершает лишь эту задачу, иначе сессии обработчика перестали бы обслуживаться.
+		 */
+		@Override
+		public void run() {
+			while (!stopped) {
+				Task task;
+				try {
+					task = tasks.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				depth.decrementAndGet();
+				stats.recordTaken();
+				try {
+					task.run();
+				} catch (InterruptedException | RuntimeException e) {
+					e.printStackTrace();
+				}
+				if (!stopped)
+					Thread.interrupted();
+			}
+		}
+
+		void shutdown() {
+			stopped = true;
+			interrupt();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.polushin.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Версионированный список онлайн пользователей.
+ * Каждое подключение или отключение увеличивает версию на единицу и запоминается в кольцевом журнале
+ * последних изменений, по которому отстающему клиенту собираются изменения после известной ему версии.
+ * Начальная версия выбирается случайно, поэтому версия, полученная от другого запуска сервера,
+ * почти наверняка не попадет в журнал и клиент получит полный список.
+ * Не потокобезопасен: вызывающий синхронизируется на объекте журнала.
+ */
+class PresenceLog {
+
+	private final Set<String> online = new HashSet<>();
+	private final String[] names;
+	private final boolean[] joined;
+
+	private long version = ThreadLocalRandom.current().nextLong(1L << 32, 1L << 62);
+
+	/**
+	 * @param capacity Количество последних изменений, по которым собираются изменения списка.
+	 */
+	PresenceLog(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		names = new String[capacity];
+		joined = new boolean[capacity];
+	}
+
+	/**
+	 * Записывает подключение или отключение пользователя.
+	 *
+	 * @param username Имя пользователя.
+	 * @param isJoined Подключился пользователь или отключился.
+	 *
+	 * @return Версия списка после изменения.
+	 */
+	long change(String username, boolean isJoined) {
+		if (username == null)
+			throw new IllegalArgumentException("Username cannot be null!");
+		if (isJoined)
+			online.add(username);
+		else
+			online.remove(username);
+		version++;
+		int index = (int) (version % names.length);
+		names[index] = username;
+		joined[index] = isJoined;
+		return version;
+	}
+
+	/**
+	 * Собирает изменения после заданной версии. Для каждого имени остается только последнее изменение.
+	 *
+	 * @param sinceVersion Известная клиенту версия.
+	 *
+	 * @return Имена с признаком подключения, либо null, если изменения уже вытеснены из журнала
+	 * или версия неизвестна.
+	 */
+	Map<String, Boolean> changesSince(long sinceVersion) {
+		if (sinceVersion > version || version - sinceVersion > names.length)
+			return null;
+		Map<String, Boolean> changes = new LinkedHashMap<>();
+		for (long v = sinceVersion + 1; v <= version; v++) {
+			int index = (int) (v % names.length);
+			changes.remove(names[index]);
+			changes.put(names[index], joined[index]);
+		}
+		return changes;
+	}
+
+	/**
+	 * @return Неизменяемая копия списка онлайн пользователей.
+	 */
+	List<String> snapshot() {
+		return Collections.unmodifiableList(new ArrayList<>(online));
+	}
+
+	/**
+	 * @return Текущая версия списка.
+	 */
+	long getVersion() {
+		return version;
+	}
+}
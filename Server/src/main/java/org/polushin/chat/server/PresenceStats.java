@@ -0,0 +1,82 @@
+package org.polushin.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика рассылки изменений списка онлайн пользователей.
+ */
+public class PresenceStats {
+
+	private final LongAdder changes = new LongAdder();
+	private final LongAdder cancelled = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder saved = new LongAdder();
+
+	/**
+	 * Учитывает рассылку изменений, накопившихся за окно объединения.
+	 *
+	 * @param changes Количество изменений списка за окно.
+	 * @param remaining Количество изменений, оставшихся после взаимного сокращения.
+	 * @param recipients Количество клиентов, которым рассылались изменения.
+	 * @param sent Количество отправленных пакетов.
+	 */
+	void record(int changes, int remaining, int recipients, long sent) {
+		this.changes.add(changes);
+		cancelled.add(changes - remaining);
+		if (sent > 0)
+			batches.increment();
+		packets.add(sent);
+		saved.add((long) changes * recipients - sent);
+	}
+
+	/**
+	 * Учитывает пакеты изменений, отправленные без объединения клиентам первой версии протокола.
+	 *
+	 * @param sent Количество отправленных пакетов.
+	 */
+	void recordUnbatched(long sent) {
+		packets.add(sent);
+	}
+
+	/**
+	 * @return Количество изменений списка.
+	 */
+	public long getChanges() {
+		return changes.sum();
+	}
+
+	/**
+	 * @return Количество изменений, сокращенных парным изменением того же пользователя.
+	 */
+	public long getCancelled() {
+		return cancelled.sum();
+	}
+
+	/**
+	 * @return Количество рассылок изменений.
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	/**
+	 * @return Количество отправленных пакетов изменений.
+	 */
+	public long getPackets() {
+		return packets.sum();
+	}
+
+	/**
+	 * @return Количество пакетов, сэкономленных объединением изменений.
+	 */
+	public long getSaved() {
+		return saved.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d changes, %d cancelled, %d broadcasts, %d packets sent, %d packets saved",
+		                     getChanges(), getCancelled(), getBatches(), getPackets(), getSaved());
+	}
+}
@@ -0,0 +1,121 @@
+package org.polushin.chat.server;
+
+import org.polushin.chat.PreparedPacket;
+import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketRoomJoined;
+import org.polushin.chat.protocol.PacketRoomMembersUpdate;
+import org.polushin.chat.protocol.PacketRoomMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Комната чата: участники и последние сообщения.
+ * Подключение, отключение и рассылка выполняются под блокировкой комнаты, поэтому участник получает
+ * историю и список участников до любых последующих сообщений и изменений состава, а рассылки
+ * в разные комнаты не блокируют друг друга.
+ * Рассылка затрагивает только участников комнаты, большие комнаты рассылаются параллельно.
+ * Участник с приостановленной сессией остается в комнате, но не получает рассылки до ее возобновления.
+ * Состав комнаты изменяется атомарно относительно реестра комнат: участник сначала резервирует место
+ * в комнате внутри {@link java.util.concurrent.ConcurrentMap#compute}, а комната удаляется из реестра
+ * только там же, если в ней нет ни участников, ни резервов.
+ */
+class Room {
+
+	private final String name;
+	private final int historySize;
+	private final MessageRing history;
+	private final FanOut fanOut;
+	// Изменяется только под блокировкой комнаты, но обходится параллельно при рассылке.
+	private final ConcurrentHashMap<Session, String> members = new ConcurrentHashMap<>();
+	// Участники, добавленные в комнату, но еще не получившие историю и список участников.
+	private final Set<Session> joining = new HashSet<>();
+
+	/**
+	 * @param name Название комнаты.
+	 * @param historySize Количество последних сообщений, отправляемых при подключении.
+	 * @param fanOut Рассылка участникам.
+	 */
+	Room(String name, int historySize, FanOut fanOut) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		if (fanOut == null)
+			throw new IllegalArgumentException("Fan out cannot be null!");
+		this.name = name;
+		this.fanOut = fanOut;
+		this.historySize = historySize;
+		history = new MessageRing(historySize);
+	}
+
+	/**
+	 * Резервирует место участника, не давая удалить комнату из реестра до завершения подключения.
+	 * Вызывается внутри изменения реестра комнат, поэтому не выполняет рассылок.
+	 *
+	 * @param session Сессия участника.
+	 */
+	synchronized void reserve(Session session) {
+		if (!members.containsKey(session))
+			joining.add(session);
+	}
+
+	/**
+	 * Завершает подключение зарезервированного участника: уведомляет остальных и отправляет ему участников
+	 * и последние сообщения. Сообщения, разосланные между резервированием и подключением, участник получает
+	 * в составе истории.
+	 *
+	 * @param session Сессия участника.
+	 */
+	synchronized void join(Session session) throws InterruptedException {
+		if (!joining.remove(session))
+			return;
+		broadcast(new PacketRoomMembersUpdate(name, true, session.getUsername()));
+		members.put(session, session.getUsername());
+		List<SavedMessage> saved = history.snapshot(Long.MAX_VALUE, historySize);
+		session.getCommunicator().sendPacket(new PacketRoomJoined(name, new ArrayList<>(members.values()),
+		                                                          Server.toPackets(saved)));
+	}
+
+	/**
+	 * Отключает участника и уведомляет об этом остальных.
+	 *
+	 * @param session Сессия участника.
+	 */
+	synchronized void leave(Session session) throws InterruptedException {
+		joining.remove(session);
+		String username = members.remove(session);
+		if (username != null)
+			broadcast(new PacketRoomMembersUpdate(name, false, username));
+	}
+
+	/**
+	 * @return Нет ли в комнате участников и резервов.
+	 */
+	synchronized boolean isEmpty() {
+		return members.isEmpty() && joining.isEmpty();
+	}
+
+	/**
+	 * Сохраняет сообщение в истории комнаты и рассылает его участникам.
+	 *
+	 * @param sender Имя отправителя.
+	 * @param message Сообщение.
+	 */
+	synchronized void send(String sender, String message) throws InterruptedException {
+		history.append(sender, message);
+		broadcast(new PacketRoomMessage(name, sender, message));
+	}
+
+	private void broadcast(Packet packet) throws InterruptedException {
+		if (members.isEmpty())
+			return;
+		PreparedPacket prepared = new PreparedPacket(packet);
+		try {
+			fanOut.send(members, prepared, session -> session.isSuspended() ? null : session.getCommunicator());
+		} finally {
+			prepared.release();
+		}
+	}
+}
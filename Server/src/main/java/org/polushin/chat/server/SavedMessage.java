@@ -0,0 +1,38 @@
+package org.polushin.chat.server;
+
+/**
+ * Сообщение чата, сохраненное в истории сервера.
+ */
+public class SavedMessage {
+
+	private final long seq;
+	private final String sender;
+	private final String message;
+
+	/**
+	 * @param seq Номер сообщения в истории.
+	 * @param sender Имя отправителя.
+	 * @param message Сообщение.
+	 */
+	public SavedMessage(long seq, String sender, String message) {
+		if (sender == null)
+			throw new IllegalArgumentException("Sender cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		this.seq = seq;
+		this.sender = sender;
+		this.message = message;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
@@ -1,53 +1,352 @@
 package org.polushin.chat.server;
 
+import org.polushin.chat.CompressionStats;
+import org.polushin.chat.FrameCompressor;
+import org.polushin.chat.OverflowPolicy;
 import org.polushin.chat.PacketsHandler;
+import org.polushin.chat.PreparedPacket;
 import org.polushin.chat.ProtocolCommunicator;
+import org.polushin.chat.StreamCommunicator;
+import org.polushin.chat.ThreadMode;
+import org.polushin.chat.WriteStats;
 import org.polushin.chat.protocol.*;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Реализация сервера.
  */
 public class Server extends Thread implements PacketsHandler {
 
+	private static final Logger log = Logger.getLogger("Server");
 	private static final int MESSAGES_HISTORY_SIZE = 20;
-	private static final UUID DEFAULT_UUID = new UUID(0, 0);
+	private static final int MAX_HISTORY_PAGE = 100;
+	private static final int PRESENCE_LOG_SIZE = 1024;
+	private static final int MAX_ROOMS_PER_CLIENT = 100;
+	private static final int ACCEPT_BACKLOG = 1024;
+	private static final int MAX_QUEUED_TASKS = 256;
+	private static final int MAX_RESUME_REPLAY = 1000;
+	private static final int TIMEOUT_TICK_MS = 100;
+	private static final int TIMEOUT_WHEEL_SIZE = 512;
 
 	private final int maxConnections;
-	private final ServerSocket socket;
-	private final Deque<SavedMessage> savedMessages = new ArrayDeque<>(MESSAGES_HISTORY_SIZE);
-	private final ConcurrentMap<UUID, String> users = new ConcurrentHashMap<>();
-	private final ConcurrentMap<ProtocolCommunicator, UUID> communicators = new ConcurrentHashMap<>();
+	private final Acceptor acceptor;
+	private final EventLoop[] loops;
+	private final MessageRing recentMessages = new MessageRing(MESSAGES_HISTORY_SIZE);
+	private final ConcurrentMap<String, Session> usernames = new ConcurrentHashMap<>();
+	private final ConcurrentMap<UUID, Session> uuids = new ConcurrentHashMap<>();
+	private final PresenceLog presence = new PresenceLog(PRESENCE_LOG_SIZE);
+	private final ConcurrentHashMap.KeySetView<Session, Boolean> sessions = ConcurrentHashMap.newKeySet();
+	private final WriteStats writeStats = new WriteStats();
+	private final CompressionStats compressionStats = new CompressionStats();
+	private final PresenceStats presenceStats = new PresenceStats();
+	private final DispatchStats dispatchStats = new DispatchStats();
+	private final FanOut fanOut = new FanOut();
+	private final Map<String, Boolean> pendingPresence = new LinkedHashMap<>();
+	private final Queue<PacketDispatcher.Task> presenceSends = new ArrayDeque<>();
+	private final Set<ProtocolCommunicator> legacyMembers = ConcurrentHashMap.newKeySet();
+	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
 
+	private volatile boolean started;
 	private volatile boolean interrupted;
+	private volatile int maxWriteBatch = ProtocolCommunicator.DEFAULT_MAX_WRITE_BATCH;
+	private volatile long maxWriteLingerNanos;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DEFAULT;
+	private volatile int compressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+	private volatile MessageJournal journal;
+	private volatile HistoryCache historyCache;
+	private volatile PacketDispatcher dispatcher;
+	private PreparedPacket usersListPacket;
+	private int pendingPresenceChanges;
+	private long pendingPresenceVersion;
+	private boolean presenceSending;
+	private volatile long presenceWindowNanos;
+	private volatile ScheduledExecutorService presenceTimer;
+	private volatile long resumeGraceNanos;
+	private volatile long handshakeTimeoutNanos;
+	private volatile long loginTimeoutNanos;
+	private volatile int heartbeatIntervalMillis;
+	private volatile long idleTimeoutNanos;
+	// Создается при запуске сервера, если задан хотя бы один срок ожидания.
+	private volatile TimingWheel timeouts;
 
 	/**
+	 * Создает сервер, обслуживающий соединения циклами обработки событий.
+	 * Сервер начинает принимать подключения после настройки вызовом {@link #start()}.
+	 *
+	 * @param port Порт для прослушивания входящих подключений.
+	 * @param maxConnections Максимальное количество одновременных подключений.
+	 * @param eventLoops Количество циклов обработки событий соединений.
+	 *
+	 * @throws IOException Ошибка создания сервера.
+	 */
+	public Server(int port, int maxConnections, int eventLoops) throws IOException {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("Max connections must be positive!");
+		if (eventLoops < 1)
+			throw new IllegalArgumentException("Event loops count must be positive!");
+		this.maxConnections = maxConnections;
+		loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; i++)
+			loops[i] = new EventLoop("EventLoop-" + i);
+		acceptor = new ChannelAcceptor(port);
+	}
+
+	/**
+	 * Создает сервер, обслуживающий каждое соединение парой блокирующих потоков.
+	 * Сервер начинает принимать подключения после настройки вызовом {@link #start()}.
+	 *
 	 * @param port Порт для прослушивания входящих подключений.
+	 * @param maxConnections Максимальное количество одновременных подключений.
+	 * @param threadMode Тип потоков обработчиков соединений.
 	 *
 	 * @throws IOException Ошибка создания сервера.
+	 * @throws UnsupportedOperationException Тип потоков не поддерживается текущей JVM.
 	 */
-	public Server(int port, int maxConnections) throws IOException {
+	public Server(int port, int maxConnections, ThreadMode threadMode) throws IOException {
 		if (maxConnections < 1)
 			throw new IllegalArgumentException("Max connections must be positive!");
+		if (threadMode == null)
+			throw new IllegalArgumentException("Thread mode cannot be null!");
+		if (!threadMode.isSupported())
+			throw new UnsupportedOperationException("Thread mode " + threadMode + " is not supported by this JVM!");
 		this.maxConnections = maxConnections;
-		socket = new ServerSocket(port);
-		start();
+		loops = new EventLoop[0];
+		acceptor = new StreamAcceptor(port, threadMode);
+	}
+
+	/**
+	 * Начинает прием подключений. Настройки, от которых зависит состояние уже подключенных клиентов,
+	 * после запуска не изменяются.
+	 */
+	@Override
+	public synchronized void start() {
+		if (started)
+			throw new IllegalStateException("Server is already started!");
+		started = true;
+		if (resumeGraceNanos > 0 || handshakeTimeoutNanos > 0 || loginTimeoutNanos > 0 || idleTimeoutNanos > 0)
+			timeouts = new TimingWheel("TimeoutWheel", TIMEOUT_TICK_MS, TimeUnit.MILLISECONDS, TIMEOUT_WHEEL_SIZE);
+		super.start();
+	}
+
+	/**
+	 * Проверяет, что сервер еще не запущен.
+	 */
+	private void checkNotStarted() {
+		if (started)
+			throw new IllegalStateException("Server is already started!");
+	}
+
+	/**
+	 * Настраивает объединение исходящих кадров для новых подключений.
+	 *
+	 * @see ProtocolCommunicator#setWriteBatching(int, long, TimeUnit)
+	 */
+	public void setWriteBatching(int maxBatch, long maxLinger, TimeUnit unit) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("Max batch size must be positive!");
+		if (maxLinger < 0)
+			throw new IllegalArgumentException("Max linger time cannot be negative!");
+		maxWriteBatch = maxBatch;
+		maxWriteLingerNanos = unit.toNanos(maxLinger);
+	}
+
+	/**
+	 * Устанавливает политику переполнения очередей исходящих кадров для новых подключений.
+	 *
+	 * @param policy Политика переполнения.
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException("Policy cannot be null!");
+		overflowPolicy = policy;
+	}
+
+	/**
+	 * Устанавливает порог сжатия кадров для подключений, запросивших сжатие.
+	 *
+	 * @param threshold Наименьший размер тела кадра для сжатия, отрицательное значение отключает сжатие.
+	 */
+	public void setCompressionThreshold(int threshold) {
+		compressionThreshold = threshold;
+	}
+
+	/**
+	 * Устанавливает окно объединения изменений списка онлайн пользователей.
+	 * Изменения, произошедшие за окно, рассылаются одним пакетом, а подключение и отключение
+	 * одного пользователя внутри окна взаимно сокращаются.
+	 *
+	 * @param window Длительность окна, 0 - рассылать каждое изменение сразу.
+	 * @param unit Единица измерения длительности.
+	 */
+	public void setPresenceWindow(long window, TimeUnit unit) {
+		if (window < 0)
+			throw new IllegalArgumentException("Presence window cannot be negative!");
+		if (window > 0 && presenceTimer == null) {
+			presenceTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "PresenceFlusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		presenceWindowNanos = unit.toNanos(window);
+	}
+
+	/**
+	 * Устанавливает время, в течение которого сессия клиента с разорванным соединением ожидает возобновления.
+	 * Пока сессия ожидает, клиент остается в списке онлайн пользователей и в комнатах, а его имя занято.
+	 * Должен вызываться до запуска сервера.
+	 *
+	 * @param grace Время ожидания возобновления, 0 - закрывать сессию при разрыве соединения.
+	 * @param unit Единица измерения времени.
+	 */
+	public void setResumeGrace(long grace, TimeUnit unit) {
+		if (grace < 0)
+			throw new IllegalArgumentException("Resume grace cannot be negative!");
+		checkNotStarted();
+		resumeGraceNanos = unit.toNanos(grace);
+	}
+
+	/**
+	 * Устанавливает время, за которое новое соединение должно отправить подключение и войти в чат.
+	 * Соединения, не успевшие это сделать, закрываются. Должен вызываться до запуска сервера.
+	 *
+	 * @param handshake Время ожидания пакета подключения, 0 - не ограничено.
+	 * @param login Время ожидания входа или возобновления сессии с момента соединения, 0 - не ограничено.
+	 * @param unit Единица измерения времени.
+	 */
+	public void setConnectTimeouts(long handshake, long login, TimeUnit unit) {
+		if (handshake < 0 || login < 0)
+			throw new IllegalArgumentException("Timeouts cannot be negative!");
+		checkNotStarted();
+		handshakeTimeoutNanos = unit.toNanos(handshake);
+		loginTimeoutNanos = unit.toNanos(login);
+	}
+
+	/**
+	 * Устанавливает интервал, с которым клиенты подтверждают, что соединение живо, и время,
+	 * по истечении которого соединение без входящих пакетов закрывается. Интервал сообщается клиентам
+	 * при подключении, поэтому ожидание истекает только у клиентов, отправивших хотя бы один пакет проверки.
+	 * Должен вызываться до запуска сервера.
+	 *
+	 * @param interval Интервал отправки пакетов проверки, 0 - клиенты их не отправляют.
+	 * @param idleTimeout Время ожидания входящих пакетов, 0 - не ограничено.
+	 * @param unit Единица измерения времени.
+	 */
+	public void setHeartbeat(long interval, long idleTimeout, TimeUnit unit) {
+		if (interval < 0 || idleTimeout < 0)
+			throw new IllegalArgumentException("Heartbeat interval and idle timeout cannot be negative!");
+		if (idleTimeout > 0 && idleTimeout <= interval)
+			throw new IllegalArgumentException("Idle timeout must be greater than heartbeat interval!");
+		if (unit.toMillis(interval) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Heartbeat interval is too large!");
+		checkNotStarted();
+		heartbeatIntervalMillis = (int) unit.toMillis(interval);
+		idleTimeoutNanos = unit.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Устанавливает порог параллельной рассылки. Рассылка не меньше чем порогу получателей делится на части,
+	 * которые ставятся в очереди получателей параллельно в общем пуле потоков.
+	 *
+	 * @param recipients Наименьшее количество получателей для параллельной рассылки,
+	 * 0 - рассылать только в отправляющем потоке.
+	 */
+	public void setParallelBroadcastThreshold(int recipients) {
+		fanOut.setParallelThreshold(recipients);
+	}
+
+	/**
+	 * Включает обработку пакетов отдельными обработчиками вместо потоков чтения соединений.
+	 * Сессии распределяются между обработчиками по хешу, поэтому пакеты одного клиента обрабатываются
+	 * по порядку, а разных клиентов - параллельно. Должен вызываться до запуска сервера.
+	 *
+	 * @param lanes Количество обработчиков, 0 - обрабатывать пакеты в потоках чтения соединений.
+	 */
+	public void setDispatchLanes(int lanes) {
+		if (lanes < 0)
+			throw new IllegalArgumentException("Lanes count cannot be negative!");
+		checkNotStarted();
+		if (dispatcher != null)
+			throw new IllegalStateException("Dispatch lanes are already set!");
+		if (lanes > 0)
+			dispatcher = new PacketDispatcher(lanes, MAX_QUEUED_TASKS, dispatchStats);
+	}
+
+	/**
+	 * Подключает журнал сообщений: новые сообщения дописываются в журнал, последние из них
+	 * переносятся в буфер истории, отправляемой при входе. Должен вызываться до запуска сервера.
+	 * Журнал закрывается вызывающим после остановки сервера.
+	 *
+	 * @param journal Журнал сообщений.
+	 *
+	 * @throws IOException Ошибка чтения журнала.
+	 */
+	public void setJournal(MessageJournal journal) throws IOException {
+		if (journal == null)
+			throw new IllegalArgumentException("Journal cannot be null!");
+		checkNotStarted();
+		recentMessages.reset(journal.getNextSeq(), journal.readLast(MESSAGES_HISTORY_SIZE));
+		historyCache = null;
+		this.journal = journal;
+	}
+
+	/**
+	 * @return Общая статистика сжатия всех подключений.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * @return Общая статистика записи всех подключений.
+	 */
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
+
+	/**
+	 * @return Статистика рассылки изменений списка онлайн пользователей.
+	 */
+	public PresenceStats getPresenceStats() {
+		return presenceStats;
+	}
+
+	/**
+	 * @return Статистика очередей обработчиков пакетов.
+	 */
+	public DispatchStats getDispatchStats() {
+		return dispatchStats;
 	}
 
 	@Override
 	public void run() {
 		while (!interrupted) {
 			try {
-				Socket socket = this.socket.accept();
-				ProtocolCommunicator communicator = new ProtocolCommunicator(this, socket.getInputStream(),
-				                                                             socket.getOutputStream());
-				if (communicators.size() >= maxConnections) {
+				ProtocolCommunicator communicator = acceptor.accept();
+				Session session = new Session(communicator);
+				communicator.attach(session);
+				communicator.setWriteStats(writeStats);
+				communicator.setWriteBatching(maxWriteBatch, maxWriteLingerNanos, TimeUnit.NANOSECONDS);
+				communicator.setOverflowPolicy(overflowPolicy);
+				communicator.setCompressionStats(new CompressionStats(compressionStats));
+				communicator.start();
+				if (sessions.size() >= maxConnections) {
+					session.close(communicator);
 					try {
 						communicator.sendPacket(new PacketFatalError("Server is full!"));
 					} catch (InterruptedException e) {
@@ -56,17 +355,45 @@ public class Server extends Thread implements PacketsHandler {
 					communicator.close();
 					continue;
 				}
-				communicators.put(communicator, DEFAULT_UUID);
+				sessions.add(session);
+				checkTimeouts(session, communicator);
 			} catch (IOException e) {
 				if (!interrupted)
 					e.printStackTrace();
-				return;
+				break;
+			}
+		}
+
+		for (EventLoop loop : loops) {
+			try {
+				loop.join();
+			} catch (InterruptedException ignored) {
+			}
+		}
+		if (dispatcher != null) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException ignored) {
 			}
 		}
 	}
 
 	@Override
 	public void inputPacket(Packet packet, ProtocolCommunicator communicator) throws InterruptedException {
+		Session session = sessionOf(communicator);
+		session.countPacket();
+		PacketDispatcher dispatcher = this.dispatcher;
+		// Подключение меняет тип разбора следующих кадров, а возобновление - сессию, которой передаются
+		// следующие пакеты, поэтому они обрабатываются до чтения следующего кадра. Ответ на проверку
+		// соединения не ожидает в очереди обработчика за пакетами других клиентов.
+		if (dispatcher == null || packet.getType().equals("Connect") || packet.getType().equals("Resume") ||
+				packet.getType().equals("Ping"))
+			handlePacket(packet, communicator);
+		else
+			dispatcher.dispatch(session, () -> handlePacket(packet, communicator));
+	}
+
+	private void handlePacket(Packet packet, ProtocolCommunicator communicator) throws InterruptedException {
 		switch (packet.getType()) {
 			case "Connect":
 				packetConnect((PacketConnect) packet, communicator);
@@ -74,28 +401,89 @@ public class Server extends Thread implements PacketsHandler {
 			case "Login":
 				packetLogin((PacketLogin) packet, communicator);
 				break;
+			case "Resume":
+				packetResume((PacketResume) packet, communicator);
+				break;
 			case "GetUsersList":
 				packetGetUsersList((PacketGetUsersList) packet, communicator);
 				break;
+			case "GetHistory":
+				packetGetHistory((PacketGetHistory) packet, communicator);
+				break;
 			case "SendMessage":
 				packetSendMessage((PacketSendMessage) packet, communicator);
 				break;
 			case "Disconnect":
 				packetDisconnect((PacketDisconnect) packet, communicator);
 				break;
+			case "JoinRoom":
+				packetJoinRoom((PacketJoinRoom) packet, communicator);
+				break;
+			case "LeaveRoom":
+				packetLeaveRoom((PacketLeaveRoom) packet, communicator);
+				break;
+			case "SendRoomMessage":
+				packetSendRoomMessage((PacketSendRoomMessage) packet, communicator);
+				break;
+			case "SendPrivateMessage":
+				packetSendPrivateMessage((PacketSendPrivateMessage) packet, communicator);
+				break;
+			case "Ping":
+				packetPing((PacketPing) packet, communicator);
+				break;
 			default:
 				sendFatalError(communicator, "Received unhandled packet type:" + packet.getType());
 		}
 	}
 
+	/**
+	 * Возвращает сессию соединения. Сессия привязывается принимающим потоком до запуска приема пакетов.
+	 *
+	 * @param communicator Коммуникатор соединения.
+	 *
+	 * @return Сессия соединения.
+	 */
+	private static Session sessionOf(ProtocolCommunicator communicator) {
+		return (Session) communicator.attachment();
+	}
+
 	@Override
 	public void ioException(IOException e, ProtocolCommunicator communicator) {
-		removeCommunicator(communicator);
-		communicator.close();
+		execute(communicator, () -> {
+			if (!suspendSession(communicator))
+				removeCommunicator(communicator);
+			communicator.close();
+		});
 	}
 
 	@Override
 	public void invalidPacketException(Packet.InvalidPacketException e, ProtocolCommunicator communicator) {
+		execute(communicator, () -> handleInvalidPacket(communicator));
+	}
+
+	/**
+	 * Передает задачу соединения, например обработку ошибки, обработчику его пакетов, чтобы она выполнилась
+	 * после принятых ранее пакетов. Задача из потока обработчика этой же сессии выполняется сразу,
+	 * задачи из остальных потоков ставятся в очередь без блокировки.
+	 *
+	 * @param communicator Коммуникатор соединения.
+	 * @param task Задача.
+	 */
+	private void execute(ProtocolCommunicator communicator, PacketDispatcher.Task task) {
+		PacketDispatcher dispatcher = this.dispatcher;
+		Session session = sessionOf(communicator);
+		if (dispatcher != null && !dispatcher.inLane(session)) {
+			dispatcher.dispatch(session, task);
+			return;
+		}
+		try {
+			task.run();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void handleInvalidPacket(ProtocolCommunicator communicator) {
 		removeCommunicator(communicator);
 		try {
 			sendFatalError(communicator, "Received invalid packet.");
@@ -109,7 +497,7 @@ public class Server extends Thread implements PacketsHandler {
 	public void interrupt() {
 		interrupted = true;
 		try {
-			socket.close();
+			acceptor.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -117,7 +505,17 @@ public class Server extends Thread implements PacketsHandler {
 			broadcastPacket(new PacketFatalError("Server closed."));
 		} catch (InterruptedException ignored) {
 		}
-		communicators.keySet().forEach(ProtocolCommunicator::close);
+		sessions.forEach(session -> session.getCommunicator().close());
+		if (presenceTimer != null) {
+			presenceWindowNanos = 0;
+			presenceTimer.shutdownNow();
+		}
+		if (timeouts != null)
+			timeouts.interrupt();
+		for (EventLoop loop : loops)
+			loop.interrupt();
+		if (dispatcher != null)
+			dispatcher.interrupt();
 		super.interrupt();
 	}
 
@@ -134,116 +532,825 @@ public class Server extends Thread implements PacketsHandler {
 		//communicator.close();
 	}
 
+	/**
+	 * Проверяет ключ сессии из пакета клиента. Если он не совпадает с ключом сессии соединения
+	 * или сессия перенесена в другое соединение, отправляет фатальную ошибку.
+	 *
+	 * @param uuid Ключ сессии из пакета.
+	 * @param communicator Коммуникатор клиента.
+	 *
+	 * @return Сессия клиента или {@code null}, если ключ не валиден.
+	 */
+	private Session checkSession(UUID uuid, ProtocolCommunicator communicator) throws InterruptedException {
+		Session session = sessionOf(communicator);
+		if (session.owns(uuid) && session.getCommunicator() == communicator)
+			return session;
+		removeCommunicator(communicator);
+		sendFatalError(communicator, "Invalid UUID: " + uuid);
+		return null;
+	}
+
 	/**
 	 * Посылает данный пакет всем подключенным и имеющим ключ сессии на данный момент клиентам.
+	 * Пакет кодируется один раз для каждого типа коммуникации.
 	 *
 	 * @param packet Посылаемый пакет.
+	 *
+	 * @return Количество получателей.
+	 */
+	private int broadcastPacket(Packet packet) throws InterruptedException {
+		PreparedPacket prepared = new PreparedPacket(packet);
+		try {
+			return fanOut.send(sessions.getMap(), prepared,
+			                   session -> session.isOnline() ? session.getCommunicator() : null);
+		} finally {
+			prepared.release();
+		}
+	}
+
+	/**
+	 * Записывает изменение списка онлайн пользователей и рассылает его с новой версией списка.
+	 * Версия назначается и рассылка ставится в очередь под блокировкой списка, а выполняется
+	 * в {@link #sendQueuedPresence()} без нее, поэтому клиенты получают изменения в порядке версий,
+	 * а вход следующих клиентов не ожидает рассылки. Закодированный полный список при этом устаревает.
+	 * Если задано окно объединения, изменение откладывается до рассылки в {@link #flushPresence()}.
+	 *
+	 * @param username Имя пользователя.
+	 * @param joined Подключился пользователь или отключился.
 	 */
-	private void broadcastPacket(Packet packet) throws InterruptedException {
-		for (Map.Entry<ProtocolCommunicator, UUID> entry : communicators.entrySet())
-			if (!entry.getValue().equals(DEFAULT_UUID))
-				entry.getKey().sendPacket(packet);
+	private void publishPresence(String username, boolean joined) throws InterruptedException {
+		synchronized (presence) {
+			if (usersListPacket != null) {
+				// Пакет освобождается после поставленных ранее в очередь отправок полного списка.
+				presenceSends.add(usersListPacket::release);
+				usersListPacket = null;
+			}
+			long version = presence.change(username, joined);
+			long window = presenceWindowNanos;
+			if (window == 0) {
+				Packet update = new PacketUsersListUpdate(joined, username, version);
+				presenceSends.add(() -> {
+					int recipients = broadcastPacket(update);
+					presenceStats.record(1, 1, recipients, recipients);
+				});
+			} else {
+				if (pendingPresenceChanges++ == 0) {
+					pendingPresenceVersion = version - 1;
+					presenceTimer.schedule(this::flushPresence, window, TimeUnit.NANOSECONDS);
+				}
+				// Подключения и отключения одного пользователя чередуются, поэтому второе изменение отменяет первое.
+				if (pendingPresence.remove(username) == null)
+					pendingPresence.put(username, joined);
+				// Клиенты первой версии протокола не различают версии списка, поэтому получают изменения сразу.
+				if (!legacyMembers.isEmpty())
+					presenceSends.add(() -> sendLegacyPresence(new PacketUsersListUpdate(joined, username, version)));
+			}
+		}
+		sendQueuedPresence();
 	}
 
 	/**
-	 * Удаляет коммуникатора из списка активных и если коммуникатор имел открытую сессию,
-	 * закрывает ее и уведомляет всех участников чата о том, что данный клиент отключен.
+	 * Отправляет изменение списка онлайн пользователей клиентам первой версии протокола.
 	 *
-	 * @param communicator Удаляемый коммуникатор.
+	 * @param packet Изменение списка.
 	 */
-	private void removeCommunicator(ProtocolCommunicator communicator) {
-		UUID uuid = communicators.remove(communicator);
-		if (uuid != null && !uuid.equals(DEFAULT_UUID)) {
-			String username = users.remove(uuid);
-			if (username != null) {
+	private void sendLegacyPresence(Packet packet) throws InterruptedException {
+		PreparedPacket update = new PreparedPacket(packet);
+		int sent = 0;
+		try {
+			for (ProtocolCommunicator communicator : legacyMembers) {
+				communicator.sendPacket(update);
+				sent++;
+			}
+		} finally {
+			update.release();
+			presenceStats.recordUnbatched(sent);
+		}
+	}
+
+	/**
+	 * Рассылает изменения списка онлайн пользователей, накопившиеся за окно объединения, одним пакетом.
+	 */
+	private void flushPresence() {
+		synchronized (presence) {
+			List<String> joined = new ArrayList<>();
+			List<String> left = new ArrayList<>();
+			for (Map.Entry<String, Boolean> change : pendingPresence.entrySet()) {
+				if (change.getValue())
+					joined.add(change.getKey());
+				else
+					left.add(change.getKey());
+			}
+			int changes = pendingPresenceChanges;
+			pendingPresence.clear();
+			pendingPresenceChanges = 0;
+			// Получатели считаются и при полном сокращении изменений: им не отправлено ни одного пакета.
+			Packet packet = joined.isEmpty() && left.isEmpty() ? null :
+					new PacketUsersListBatchUpdate(pendingPresenceVersion, presence.getVersion(), joined, left);
+			int merged = joined.size() + left.size();
+			presenceSends.add(() -> {
+				PreparedPacket batch = packet == null ? null : new PreparedPacket(packet);
+				int recipients = 0;
+				long sent = 0;
+				try {
+					recipients = fanOut.send(sessions.getMap(), batch, session -> session.isOnline() &&
+							!session.getCommunicator().isLegacyFraming() ? session.getCommunicator() : null);
+					sent = batch == null ? 0 : recipients;
+				} finally {
+					if (batch != null)
+						batch.release();
+					presenceStats.record(changes, merged, recipients, sent);
+				}
+			});
+		}
+		try {
+			sendQueuedPresence();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Выполняет поставленные под блокировкой списка онлайн пользователей отправки в порядке постановки.
+	 * Отправки выполняет один поток за раз, остальные только ставят их в очередь и не ожидают рассылки.
+	 * Прерывание не останавливает отправки: очередь выполняется полностью, затем исключение передается дальше.
+	 */
+	private void sendQueuedPresence() throws InterruptedException {
+		synchronized (presence) {
+			if (presenceSending)
+				return;
+			presenceSending = true;
+		}
+		boolean interrupted = false;
+		List<PacketDispatcher.Task> tasks = new ArrayList<>();
+		while (true) {
+			synchronized (presence) {
+				if (presenceSends.isEmpty()) {
+					presenceSending = false;
+					break;
+				}
+				tasks.addAll(presenceSends);
+				presenceSends.clear();
+			}
+			for (PacketDispatcher.Task task : tasks) {
 				try {
-					broadcastPacket(new PacketUsersListUpdate(false, username));
+					task.run();
 				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (RuntimeException e) {
 					e.printStackTrace();
 				}
 			}
+			tasks.clear();
 		}
+		if (interrupted)
+			throw new InterruptedException();
+	}
+
+	/**
+	 * Ставит в очередь отправку клиенту полного списка онлайн пользователей.
+	 * Список кодируется один раз для каждого типа коммуникации и используется до его изменения.
+	 * Вызывается под блокировкой списка: освобождение устаревшего пакета в
+	 * {@link #publishPresence(String, boolean)} ставится в ту же очередь после его отправок.
+	 *
+	 * @param communicator Коммуникатор клиента.
+	 */
+	private void sendUsersList(ProtocolCommunicator communicator) {
+		if (usersListPacket == null)
+			usersListPacket = new PreparedPacket(new PacketUsersList(presence.getVersion(), presence.snapshot()));
+		PreparedPacket list = usersListPacket;
+		presenceSends.add(() -> communicator.sendPacket(list));
+	}
+
+	/**
+	 * Рассылает новое сообщение чата всем клиентам, кроме получивших его при входе.
+	 * Входящим в чат клиентам сообщение отправляется при завершении входа.
+	 * Сообщение должно быть опубликовано в буфере последних сообщений до рассылки.
+	 *
+	 * @param message Сообщение.
+	 */
+	private void broadcastMessage(SavedMessage message) throws InterruptedException {
+		PreparedPacket prepared = new PreparedPacket(new PacketNewMessage(message.getSender(), message.getMessage(),
+		                                                                  message.getSeq()));
+		try {
+			fanOut.send(sessions.getMap(), prepared, session -> session.messageTarget(message));
+		} finally {
+			prepared.release();
+		}
+	}
+
+	/**
+	 * Удаляет коммуникатора из списка активных и если коммуникатор имел открытую сессию,
+	 * закрывает ее и уведомляет всех участников чата о том, что данный клиент отключен.
+	 *
+	 * @param communicator Удаляемый коммуникатор.
+	 */
+	private void removeCommunicator(ProtocolCommunicator communicator) {
+		Session session = sessionOf(communicator);
+		Session.State state = session.close(communicator);
+		if (state == Session.State.CLOSED)
+			return;
+		if (communicator.isCompressionEnabled())
+			log.info("Connection compression: " + communicator.getCompressionStats());
+		closeSession(session, state);
+	}
+
+	/**
+	 * Удаляет закрытую сессию из чата и комнат и уведомляет всех участников чата об отключении клиента,
+	 * если он вошел в чат.
+	 *
+	 * @param session Закрытая сессия.
+	 * @param state Состояние сессии до закрытия.
+	 */
+	private void closeSession(Session session, Session.State state) {
+		sessions.remove(session);
+		legacyMembers.remove(session.getCommunicator());
+		try {
+			for (String room : session.getRooms())
+				leaveRoom(session, room);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		if (state == Session.State.CONNECTED)
+			return;
+		log.fine("Session closed: " + session);
+		uuids.remove(session.getUuid(), session);
+		String username = session.getUsername();
+		try {
+			publishPresence(username, false);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		// Имя освобождается только после рассылки отключения, иначе вход с тем же именем может
+		// разослаться раньше него.
+		usernames.remove(username, session);
+	}
+
+	/**
+	 * Приостанавливает сессию клиента в чате после разрыва соединения, если сервер ожидает возобновления сессий.
+	 * Клиент не получает рассылки, но остается в чате до возобновления сессии или истечения ожидания.
+	 *
+	 * @param communicator Коммуникатор разорванного соединения.
+	 *
+	 * @return Приостановлена ли сессия.
+	 */
+	private boolean suspendSession(ProtocolCommunicator communicator) {
+		long grace = resumeGraceNanos;
+		if (grace == 0 || communicator.isLegacyFraming())
+			return false;
+		Session session = sessionOf(communicator);
+		int suspension = session.suspend(communicator);
+		if (suspension < 0)
+			return false;
+		log.fine("Session suspended: " + session);
+		timeouts.schedule(() -> {
+			if (session.expire(suspension))
+				closeSession(session, Session.State.SUSPENDED);
+		}, grace, TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	/**
+	 * Проверяет сроки ожидания подключения, входа и активности соединения. Если срок истек, закрывает
+	 * соединение, иначе ставит следующую проверку на ближайший срок. Каждое соединение имеет не больше
+	 * одной проверки в колесе таймеров, а принятые пакеты лишь отмечают время активности в сессии,
+	 * поэтому проверка переносится только при срабатывании. Проверки прекращаются, когда сессия
+	 * закрыта, приостановлена или перенесена в другое соединение.
+	 *
+	 * @param session Сессия соединения.
+	 * @param communicator Коммуникатор соединения.
+	 */
+	private void checkTimeouts(Session session, ProtocolCommunicator communicator) {
+		TimingWheel timeouts = this.timeouts;
+		if (timeouts == null || session.getCommunicator() != communicator || session.isClosed() ||
+				session.isSuspended())
+			return;
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		String reason = null;
+		long handshake = handshakeTimeoutNanos;
+		if (handshake > 0 && !session.isHandshaken()) {
+			next = session.getAcceptTime() + handshake - now;
+			if (next <= 0)
+				reason = "Handshake timeout.";
+		}
+		long login = loginTimeoutNanos;
+		if (reason == null && login > 0 && session.getUsername() == null) {
+			next = Math.min(next, session.getAcceptTime() + login - now);
+			if (next <= 0)
+				reason = "Login timeout.";
+		}
+		long idle = idleTimeoutNanos;
+		if (reason == null && idle > 0) {
+			// Клиент, еще не отправивший пакет проверки, проверяется повторно через время ожидания.
+			next = Math.min(next, session.isHeartbeats() ? session.getReadTime() + idle - now : idle);
+			if (next <= 0)
+				reason = "Idle timeout.";
+		}
+		if (reason != null)
+			reap(communicator, reason);
+		else if (next != Long.MAX_VALUE)
+			timeouts.schedule(() -> checkTimeouts(session, communicator), next, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Закрывает соединение с истекшим сроком ожидания так же, как после ошибочного пакета:
+	 * сессия закрывается, а клиенту отправляется фатальная ошибка.
+	 *
+	 * @param communicator Коммуникатор соединения.
+	 * @param reason Причина закрытия.
+	 */
+	private void reap(ProtocolCommunicator communicator, String reason) {
+		log.fine("Connection reaped: " + reason);
+		execute(communicator, () -> {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, reason);
+			communicator.close();
+		});
 	}
 
 	private void packetConnect(PacketConnect packet, ProtocolCommunicator communicator) throws InterruptedException {
-		if (packet.getVersion() != ProtocolCommunicator.PROTOCOL_VERSION) {
+		if (!packet.validate()) {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, "Invalid connect packet.");
+			return;
+		}
+		int version = communicator.isLegacyFraming() ? ProtocolCommunicator.LEGACY_PROTOCOL_VERSION :
+				ProtocolCommunicator.PROTOCOL_VERSION;
+		if (packet.getVersion() != version) {
 			removeCommunicator(communicator);
 			sendFatalError(communicator, "Unknown protocol version: " + packet.getVersion());
 			return;
 		}
+		if (communicator.isLegacyFraming() &&
+				packet.getCommunicateType() != ProtocolCommunicator.CommunicateType.JSON) {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, "Protocol version " + version + " is supported only with JSON packets.");
+			return;
+		}
 
+		int threshold = compressionThreshold;
+		boolean compression = packet.isCompression() && !communicator.isLegacyFraming() && threshold >= 0;
 		communicator.setDefaultCommunicationType(packet.getCommunicateType());
-		communicator.sendPacket(new PacketConnectionAccept(), ProtocolCommunicator.CommunicateType.JSON);
+		// Клиенты первой версии протокола входят только отдельным пакетом и не возобновляют сессии.
+		boolean login = packet.getLogin() != null && !communicator.isLegacyFraming();
+		boolean resume = resumeGraceNanos > 0 && !communicator.isLegacyFraming();
+		int heartbeat = communicator.isLegacyFraming() ? 0 : heartbeatIntervalMillis;
+		sessionOf(communicator).handshake();
+		communicator.sendPacket(new PacketConnectionAccept(compression, login, resume, heartbeat),
+		                        ProtocolCommunicator.CommunicateType.JSON);
+		if (compression)
+			communicator.enableCompression(threshold);
+		if (login) {
+			// Ответы на вход отправляются вслед за подтверждением подключения без ожидания запросов клиента.
+			execute(communicator, () -> {
+				if (packetLogin(new PacketLogin(packet.getLogin()), communicator))
+					sendPresence(communicator, packet.getSinceVersion());
+			});
+		}
 	}
 
-	private void packetLogin(PacketLogin packet, ProtocolCommunicator communicator) throws InterruptedException {
+	/**
+	 * @return Выполнен ли вход.
+	 */
+	private boolean packetLogin(PacketLogin packet, ProtocolCommunicator communicator) throws InterruptedException {
 		if (!packet.validateUsername()) {
 			removeCommunicator(communicator);
 			sendFatalError(communicator, "Invalid username: " + packet.getUsername());
-			return;
+			return false;
+		}
+		Session session = sessionOf(communicator);
+		if (session.getUsername() != null) {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, "Already logged in.");
+			return false;
 		}
-		if (users.values().contains(packet.getUsername())) {
+		// Имя занимается атомарно, поэтому одновременно входящие с одним именем клиенты не получат его оба.
+		if (usernames.putIfAbsent(packet.getUsername(), session) != null) {
 			removeCommunicator(communicator);
 			sendFatalError(communicator, "Username \"" + packet.getUsername() + "\" exists.");
-			return;
+			return false;
 		}
-		broadcastPacket(new PacketUsersListUpdate(true, packet.getUsername()));
+		publishPresence(packet.getUsername(), true);
 		UUID uuid = UUID.randomUUID();
-		users.putIfAbsent(uuid, packet.getUsername());
-		communicators.put(communicator, uuid);
-		communicator.sendPacket(new PacketSuccessLogin(uuid));
-		for (SavedMessage message : savedMessages)
-			communicator.sendPacket(new PacketNewMessage(message.sender, message.message));
+		uuids.put(uuid, session);
+		// Закрывший сессию до начала входа не рассылает отключение, поэтому вход отменяется здесь.
+		if (!session.login(uuid, packet.getUsername())) {
+			uuids.remove(uuid, session);
+			publishPresence(packet.getUsername(), false);
+			usernames.remove(packet.getUsername(), session);
+			return false;
+		}
+		joinChat(session, new PacketSuccessLogin(uuid), Long.MIN_VALUE);
+		return true;
 	}
 
-	private void packetGetUsersList(PacketGetUsersList packet, ProtocolCommunicator communicator) throws
-			InterruptedException {
-		if (!users.containsKey(packet.getUuid())) {
+	/**
+	 * Переносит приостановленную сессию в новое соединение. Обрабатывается потоком чтения соединения,
+	 * поэтому следующие пакеты соединения передаются обработчику возобновленной сессии
+	 * и обрабатываются после отправки клиенту пропущенных им сообщений.
+	 */
+	private void packetResume(PacketResume packet, ProtocolCommunicator communicator) throws InterruptedException {
+		if (!packet.validate()) {
 			removeCommunicator(communicator);
-			sendFatalError(communicator, "Invalid UUID: " + packet.getUuid());
+			sendFatalError(communicator, "Invalid resume packet.");
+			return;
+		}
+		Session current = sessionOf(communicator);
+		Session session = uuids.get(packet.getUuid());
+		ProtocolCommunicator previous = null;
+		if (resumeGraceNanos > 0 && !communicator.isLegacyFraming() && current.getUsername() == null &&
+				session != null)
+			previous = session.resume(packet.getUuid(), communicator);
+		if (previous == null) {
+			communicator.sendPacket(new PacketResumeResult(false));
+			return;
+		}
+		current.close(communicator);
+		sessions.remove(current);
+		communicator.attach(session);
+		session.touch();
+		checkTimeouts(session, communicator);
+		log.fine("Session resumed: " + session);
+		ProtocolCommunicator replaced = previous;
+		execute(communicator, () -> {
+			// Прежнее соединение могло быть еще не закрыто, если клиент обнаружил разрыв раньше сервера.
+			replaced.close();
+			joinChat(session, new PacketResumeResult(true), packet.getLastSeq());
+			sendPresence(communicator, packet.getSinceVersion());
+		});
+	}
+
+	/**
+	 * Регистрирует клиента в чате и отправляет ему историю без блокировок.
+	 * История отправляется до регистрации, затем досылаются сообщения, появившиеся за время регистрации.
+	 * Пока отметка клиента не установлена, рассылающие новые сообщения ожидают ее, поэтому клиент
+	 * получает каждое сообщение ровно один раз и после истории.
+	 *
+	 * @param session Сессия клиента.
+	 * @param reply Ответ на вход, отправляемый перед историей.
+	 * @param lastSeq Номер последнего полученного клиентом сообщения при возобновлении сессии,
+	 * либо {@link Long#MIN_VALUE} для отправки последних сообщений чата.
+	 */
+	private void joinChat(Session session, Packet reply, long lastSeq) throws InterruptedException {
+		ProtocolCommunicator communicator = session.getCommunicator();
+		communicator.sendPacket(reply);
+		// История заканчивается на последнем опубликованном сообщении, а сообщения, разосланные во время
+		// ее отправки, сессия откладывает до завершения входа.
+		long historyEnd = recentMessages.getPublishedSeq();
+		if (lastSeq == Long.MIN_VALUE)
+			sendHistory(communicator, historyEnd);
+		else
+			sendMissed(communicator, lastSeq, historyEnd);
+		boolean online = session.online(recentMessages, historyEnd, missed -> {
+			for (PacketNewMessage message : toPackets(missed))
+				communicator.sendPacket(message);
+		});
+		if (online && communicator.isLegacyFraming())
+			legacyMembers.add(communicator);
+	}
+
+	/**
+	 * Отправляет клиенту последние сообщения чата одним пакетом вместе с номером первого из них.
+	 * Пакет истории кодируется один раз и используется до появления нового сообщения.
+	 * Клиентам первой версии протокола сообщения отправляются по одному.
+	 *
+	 * @param communicator Коммуникатор клиента.
+	 * @param end Номер, сообщения до которого входят в историю.
+	 */
+	private void sendHistory(ProtocolCommunicator communicator, long end) throws InterruptedException {
+		if (communicator.isLegacyFraming()) {
+			for (PacketNewMessage message : toPackets(recentMessages.snapshot(end, MESSAGES_HISTORY_SIZE)))
+				communicator.sendPacket(message);
+			return;
+		}
+		HistoryCache cache = historyCache;
+		if (cache == null || cache.end != end) {
+			List<SavedMessage> saved = recentMessages.snapshot(end, MESSAGES_HISTORY_SIZE);
+			long firstSeq = saved.isEmpty() ? end : saved.get(0).getSeq();
+			// Вытесненный пакет не освобождается: его кадры могут еще отправляться другим клиентам.
+			cache = new HistoryCache(end, new PreparedPacket(new PacketHistory(firstSeq, toPackets(saved))));
+			historyCache = cache;
+		}
+		communicator.sendPacket(cache.packet);
+	}
+
+	/**
+	 * Отправляет возобновившему сессию клиенту пропущенные им сообщения одним пакетом истории.
+	 * Отправляется не больше {@link #MAX_RESUME_REPLAY} последних пропущенных сообщений из журнала,
+	 * а без журнала - не больше хранящихся в памяти.
+	 *
+	 * @param communicator Коммуникатор клиента.
+	 * @param lastSeq Номер последнего полученного клиентом сообщения.
+	 * @param end Номер, сообщения до которого отправляются.
+	 */
+	private void sendMissed(ProtocolCommunicator communicator, long lastSeq, long end) throws
+			InterruptedException {
+		long missed = lastSeq < end ? end - 1 - lastSeq : 0;
+		// Разность переполняется только для заведомо давно пропущенных сообщений.
+		int count = (int) (missed < 0 ? MAX_RESUME_REPLAY : Math.min(missed, MAX_RESUME_REPLAY));
+		List<SavedMessage> saved = Collections.emptyList();
+		MessageJournal journal = this.journal;
+		if (count > 0 && journal != null) {
+			try {
+				saved = journal.readBefore(end, count);
+			} catch (IOException e) {
+				e.printStackTrace();
+				journal = null;
+			}
+		}
+		if (count > 0 && journal == null)
+			saved = recentMessages.snapshot(end, Math.min(count, MESSAGES_HISTORY_SIZE));
+		long firstSeq = saved.isEmpty() ? end : saved.get(0).getSeq();
+		communicator.sendPacket(new PacketHistory(firstSeq, toPackets(saved)));
+	}
+
+	private void packetGetHistory(PacketGetHistory packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		if (checkSession(packet.getUuid(), communicator) == null)
 			return;
+
+		int limit = Math.min(packet.getLimit(), MAX_HISTORY_PAGE);
+		List<SavedMessage> page;
+		boolean more;
+		MessageJournal journal = this.journal;
+		if (journal != null) {
+			try {
+				page = journal.readBefore(packet.getBeforeSeq(), limit);
+			} catch (IOException e) {
+				e.printStackTrace();
+				page = Collections.emptyList();
+			}
+			long oldest = page.isEmpty() ? Math.min(packet.getBeforeSeq(), journal.getNextSeq()) : page.get(0).getSeq();
+			more = oldest > journal.getFirstSeq();
+		} else {
+			page = recentMessages.snapshot(packet.getBeforeSeq(), limit);
+			long oldest = page.isEmpty() ? Math.min(packet.getBeforeSeq(), recentMessages.getNextSeq()) :
+					page.get(0).getSeq();
+			more = oldest > recentMessages.getFirstSeq();
 		}
 
-		communicator.sendPacket(new PacketUsersList(users.values()));
+		long firstSeq = page.isEmpty() ? packet.getBeforeSeq() : page.get(0).getSeq();
+		communicator.sendPacket(new PacketHistoryPage(firstSeq, more, toPackets(page)));
+	}
+
+	static List<PacketNewMessage> toPackets(Collection<SavedMessage> saved) {
+		List<PacketNewMessage> messages = new ArrayList<>(saved.size());
+		for (SavedMessage message : saved)
+			messages.add(new PacketNewMessage(message.getSender(), message.getMessage(), message.getSeq()));
+		return messages;
+	}
+
+	private void packetGetUsersList(PacketGetUsersList packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		if (checkSession(packet.getUuid(), communicator) == null)
+			return;
+		sendPresence(communicator, packet.getSinceVersion());
+	}
+
+	/**
+	 * Отправляет клиенту изменения списка онлайн пользователей после известной ему версии,
+	 * либо полный список, если изменения не хранятся. Отправка выполняется после поставленных ранее в очередь
+	 * изменений списка, поэтому клиент не получит их после более новой версии.
+	 *
+	 * @param communicator Коммуникатор клиента.
+	 * @param sinceVersion Известная клиенту версия списка, либо 0 для полного списка.
+	 */
+	private void sendPresence(ProtocolCommunicator communicator, long sinceVersion) throws InterruptedException {
+		synchronized (presence) {
+			Map<String, Boolean> changes = sinceVersion > 0 ? presence.changesSince(sinceVersion) : null;
+			if (changes == null)
+				sendUsersList(communicator);
+			else {
+				List<String> joined = new ArrayList<>();
+				List<String> left = new ArrayList<>();
+				for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+					if (change.getValue())
+						joined.add(change.getKey());
+					else
+						left.add(change.getKey());
+				}
+				Packet delta = new PacketUsersListDelta(sinceVersion, presence.getVersion(), joined, left);
+				presenceSends.add(() -> communicator.sendPacket(delta));
+			}
+		}
+		sendQueuedPresence();
 	}
 
 	private void packetSendMessage(PacketSendMessage packet, ProtocolCommunicator communicator) throws
 			InterruptedException {
-		if (!users.containsKey(packet.getUuid())) {
+		Session session = checkSession(packet.getUuid(), communicator);
+		if (session == null)
+			return;
+		if (!packet.validate()) {
 			removeCommunicator(communicator);
-			sendFatalError(communicator, "Invalid UUID: " + packet.getUuid());
+			sendFatalError(communicator, "Invalid message.");
 			return;
 		}
+		String sender = session.getUsername();
+		session.countMessage();
 
-		SavedMessage message = new SavedMessage(users.get(packet.getUuid()), packet.getMessage());
+		SavedMessage saved;
+		MessageJournal journal = this.journal;
+		if (journal != null) {
+			try {
+				saved = new SavedMessage(journal.append(sender, packet.getMessage()), sender, packet.getMessage());
+			} catch (IOException e) {
+				// Несохраненное сообщение не имеет номера, поэтому не может попасть ни в историю, ни в рассылку.
+				e.printStackTrace();
+				communicator.sendPacket(new PacketMessageError("Message is not saved."));
+				return;
+			}
+			recentMessages.put(saved);
+		} else
+			saved = recentMessages.append(sender, packet.getMessage());
+		broadcastMessage(saved);
+	}
 
-		if (savedMessages.size() == MESSAGES_HISTORY_SIZE)
-			savedMessages.poll();
-		savedMessages.push(message);
+	private void packetJoinRoom(PacketJoinRoom packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		Session session = checkSession(packet.getUuid(), communicator);
+		if (session == null)
+			return;
+		if (!packet.validateRoom()) {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, "Invalid room: " + packet.getRoom());
+			return;
+		}
+		Set<String> joinedRooms = session.getRooms();
+		if (joinedRooms.size() >= MAX_ROOMS_PER_CLIENT && !joinedRooms.contains(packet.getRoom())) {
+			removeCommunicator(communicator);
+			sendFatalError(communicator, "Too many rooms joined, maximum is " + MAX_ROOMS_PER_CLIENT + ".");
+			return;
+		}
+		joinedRooms.add(packet.getRoom());
+		// Резерв добавляется атомарно с поиском комнаты, поэтому уход последнего участника не удалит ее.
+		Room room = rooms.compute(packet.getRoom(), (name, existing) -> {
+			Room target = existing != null ? existing : new Room(name, MESSAGES_HISTORY_SIZE, fanOut);
+			target.reserve(session);
+			return target;
+		});
+		room.join(session);
+	}
 
-		broadcastPacket(new PacketNewMessage(message.sender, message.message));
+	private void packetLeaveRoom(PacketLeaveRoom packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		Session session = checkSession(packet.getUuid(), communicator);
+		if (session == null)
+			return;
+		if (session.getRooms().remove(packet.getRoom()))
+			leaveRoom(session, packet.getRoom());
 	}
 
-	private void packetDisconnect(PacketDisconnect packet, ProtocolCommunicator communicator) throws
+	private void packetSendRoomMessage(PacketSendRoomMessage packet, ProtocolCommunicator communicator) throws
 			InterruptedException {
-		if (!users.containsKey(packet.getUuid())) {
+		Session session = checkSession(packet.getUuid(), communicator);
+		if (session == null)
+			return;
+		Room room = rooms.get(packet.getRoom());
+		if (!session.getRooms().contains(packet.getRoom()) || room == null) {
 			removeCommunicator(communicator);
-			sendFatalError(communicator, "Invalid UUID: " + packet.getUuid());
+			sendFatalError(communicator, "Not a member of room: " + packet.getRoom());
 			return;
 		}
+		session.countMessage();
+		room.send(session.getUsername(), packet.getMessage());
+	}
+
+	/**
+	 * Доставляет личное сообщение через индекс сессий по имени, не перебирая подключенных клиентов.
+	 */
+	private void packetSendPrivateMessage(PacketSendPrivateMessage packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		Session session = checkSession(packet.getUuid(), communicator);
+		if (session == null)
+			return;
+		Session target = usernames.get(packet.getTarget());
+		if (target == null || !target.isOnline())
+			communicator.sendPacket(new PacketPrivateMessageError(packet.getTarget(), "User is offline."));
+		else if (target.getCommunicator().isLegacyFraming())
+			communicator.sendPacket(new PacketPrivateMessageError(packet.getTarget(),
+			                                                      "User does not support private messages."));
+		else {
+			session.countMessage();
+			target.getCommunicator().sendPacket(new PacketPrivateMessage(session.getUsername(), packet.getMessage()));
+		}
+	}
+
+	/**
+	 * Отключает участника от комнаты и удаляет комнату из реестра, если она осталась без участников.
+	 *
+	 * @param session Сессия участника.
+	 * @param name Название комнаты.
+	 */
+	private void leaveRoom(Session session, String name) throws InterruptedException {
+		Room room = rooms.get(name);
+		if (room == null)
+			return;
+		room.leave(session);
+		rooms.computeIfPresent(name, (key, existing) -> existing == room && room.isEmpty() ? null : existing);
+	}
+
+	/**
+	 * Отвечает на проверку соединения. Время активности уже отмечено при приеме пакета.
+	 */
+	private void packetPing(PacketPing packet, ProtocolCommunicator communicator) throws InterruptedException {
+		sessionOf(communicator).enableHeartbeats();
+		communicator.sendPacket(new PacketPong(packet.getTime()));
+	}
+
+	private void packetDisconnect(PacketDisconnect packet, ProtocolCommunicator communicator) throws
+			InterruptedException {
+		if (checkSession(packet.getUuid(), communicator) == null)
+			return;
 
 		removeCommunicator(communicator);
 		communicator.sendPacket(new PacketGoodbye());
 		communicator.close();
 	}
 
-	private static class SavedMessage {
-		private final String sender;
-		private final String message;
+	/**
+	 * Закодированный пакет истории для входящих клиентов.
+	 */
+	private static class HistoryCache {
+		private final long end;
+		private final PreparedPacket packet;
+
+		HistoryCache(long end, PreparedPacket packet) {
+			this.end = end;
+			this.packet = packet;
+		}
+	}
+
+	/**
+	 * Источник новых подключений.
+	 */
+	private interface Acceptor extends Closeable {
+
+		/**
+		 * Ожидает новое подключение.
+		 *
+		 * @return Коммуникатор нового подключения.
+		 *
+		 * @throws IOException Ошибка ожидания подключения.
+		 */
+		ProtocolCommunicator accept() throws IOException;
+	}
+
+	/**
+	 * Принимает неблокирующие каналы и распределяет их по циклам обработки событий.
+	 */
+	private class ChannelAcceptor implements Acceptor {
+
+		private final ServerSocketChannel socket;
+
+		private int nextLoop;
 
-		public SavedMessage(String sender, String message) {
-			this.sender = sender;
-			this.message = message;
+		ChannelAcceptor(int port) throws IOException {
+			socket = ServerSocketChannel.open();
+			socket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		}
+
+		@Override
+		public ProtocolCommunicator accept() throws IOException {
+			SocketChannel channel = socket.accept();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			return new ChannelCommunicator(Server.this, channel, loop);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Принимает блокирующие сокеты, обслуживаемые собственными потоками.
+	 */
+	private class StreamAcceptor implements Acceptor {
+
+		private final ServerSocket socket;
+		private final ThreadMode threadMode;
+
+		StreamAcceptor(int port, ThreadMode threadMode) throws IOException {
+			socket = new ServerSocket(port, ACCEPT_BACKLOG);
+			this.threadMode = threadMode;
+		}
+
+		@Override
+		public ProtocolCommunicator accept() throws IOException {
+			Socket socket = this.socket.accept();
+			socket.setTcpNoDelay(true);
+			return new StreamCommunicator(Server.this, socket.getInputStream(), socket.getOutputStream(),
+			                              threadMode);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
 		}
 	}
 
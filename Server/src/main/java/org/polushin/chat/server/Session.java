@@ -0,0 +1,388 @@
+package org.polushin.chat.server;
+
+import org.polushin.chat.ProtocolCommunicator;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Состояние сессии клиента, привязанное к его коммуникатору.
+ * Обработчики пакетов и рассылки получают имя, ключ сессии и отметку истории клиента из сессии,
+ * а не из таблиц сервера, поэтому обработка пакета и перебор получателей не требуют поиска по ключу.
+ * Сообщения чата, разосланные пока клиент входит в чат, откладываются в сессии и отправляются ему
+ * вместе с историей, поэтому рассылка никогда не ожидает завершения входа.
+ * После разрыва соединения сессия может быть приостановлена и затем привязана к новому коммуникатору.
+ * Переходы между состояниями выполняются под блокировкой сессии, чтение состояния блокировок не требует.
+ */
+class Session {
+
+	private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+	private final long acceptTime = System.nanoTime();
+	// Изменяется только под блокировкой сессии, пока клиент входит в чат.
+	private final List<SavedMessage> deferred = new ArrayList<>();
+
+	private volatile ProtocolCommunicator communicator;
+	private volatile State state = State.CONNECTED;
+	private volatile UUID uuid;
+	private volatile String username;
+	// Публикуются до перехода в чат и не изменяются, пока клиент в нем находится.
+	private volatile long historyMark = Long.MIN_VALUE;
+	private volatile Set<Long> unpublished = Collections.emptySet();
+	private volatile long readTime = acceptTime;
+	private volatile boolean handshaken;
+	private volatile boolean heartbeats;
+	private int suspensions;
+	private int packets;
+	private int messages;
+	// Очередь задач сессии у обработчика пакетов. Изменяется под отдельной блокировкой, чтобы
+	// приостановка и возобновление чтения передавались коммуникатору в порядке изменения очереди.
+	private final Object queueLock = new Object();
+	private int queuedTasks;
+	private boolean readingPaused;
+
+	/**
+	 * @param communicator Коммуникатор клиента.
+	 */
+	Session(ProtocolCommunicator communicator) {
+		if (communicator == null)
+			throw new IllegalArgumentException("Communicator cannot be null!");
+		this.communicator = communicator;
+	}
+
+	/**
+	 * Начинает вход клиента в чат под занятым им именем.
+	 *
+	 * @param uuid Ключ сессии.
+	 * @param username Имя пользователя.
+	 *
+	 * @return Начат ли вход, либо сессия уже закрыта.
+	 */
+	synchronized boolean login(UUID uuid, String username) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (username == null)
+			throw new IllegalArgumentException("Username cannot be null!");
+		if (state != State.CONNECTED)
+			return false;
+		this.uuid = uuid;
+		this.username = username;
+		state = State.JOINING;
+		return true;
+	}
+
+	/**
+	 * Завершает вход клиента: отправляет ему сообщения, появившиеся после отправленной истории, и с этого
+	 * момента клиент получает рассылки. Отправляются отложенные рассылкой сообщения и уже опубликованные
+	 * в буфере сообщения, рассылка которых еще не дошла до клиента. Остальные сообщения клиент получит
+	 * рассылкой. Отправка не блокируется, поэтому рассылки ожидают только короткую блокировку сессии.
+	 *
+	 * @param recent Буфер последних сообщений.
+	 * @param historyEnd Номер, сообщения до которого клиент уже получил в истории.
+	 * @param send Отправка сообщений клиенту.
+	 *
+	 * @return Завершен ли вход, либо сессия уже закрыта.
+	 *
+	 * @throws InterruptedException Прерывание отправки.
+	 */
+	synchronized boolean online(MessageRing recent, long historyEnd, MessageSender send) throws
+			InterruptedException {
+		if (state != State.JOINING) {
+			deferred.clear();
+			return false;
+		}
+		SortedMap<Long, SavedMessage> missed = new TreeMap<>();
+		for (SavedMessage message : deferred)
+			if (message.getSeq() >= historyEnd)
+				missed.put(message.getSeq(), message);
+		deferred.clear();
+		// Отложенные сообщения опубликованы до рассылки, поэтому их номера меньше следующего номера буфера.
+		long mark = Math.max(historyEnd, recent.getNextSeq());
+		Set<Long> unpublished = new HashSet<>();
+		for (long seq = historyEnd; seq < mark; seq++) {
+			if (missed.containsKey(seq))
+				continue;
+			SavedMessage message = recent.get(seq);
+			if (message != null)
+				missed.put(seq, message);
+			else
+				unpublished.add(seq);
+		}
+		send.send(new ArrayList<>(missed.values()));
+		this.unpublished = unpublished;
+		historyMark = mark;
+		state = State.ONLINE;
+		return true;
+	}
+
+	/**
+	 * Приостанавливает сессию клиента в чате после разрыва его соединения.
+	 *
+	 * @param communicator Коммуникатор разорванного соединения.
+	 *
+	 * @return Номер приостановки для {@link #expire(int)}, либо -1, если сессия не в чате
+	 * или привязана к другому коммуникатору.
+	 */
+	synchronized int suspend(ProtocolCommunicator communicator) {
+		if (state != State.ONLINE || this.communicator != communicator)
+			return -1;
+		state = State.SUSPENDED;
+		return ++suspensions;
+	}
+
+	/**
+	 * Привязывает приостановленную сессию к новому коммуникатору и начинает повторный вход клиента.
+	 * Сессия в чате также может быть перенесена: клиент мог обнаружить разрыв соединения раньше сервера.
+	 *
+	 * @param uuid Ключ сессии из пакета клиента.
+	 * @param communicator Коммуникатор нового соединения.
+	 *
+	 * @return Коммуникатор прежнего соединения, либо {@code null}, если сессия не может быть возобновлена.
+	 */
+	synchronized ProtocolCommunicator resume(UUID uuid, ProtocolCommunicator communicator) {
+		if (communicator == null)
+			throw new IllegalArgumentException("Communicator cannot be null!");
+		if ((state != State.SUSPENDED && state != State.ONLINE) || !this.uuid.equals(uuid))
+			return null;
+		ProtocolCommunicator previous = this.communicator;
+		this.communicator = communicator;
+		state = State.JOINING;
+		return previous;
+	}
+
+	/**
+	 * Закрывает сессию, не возобновленную после приостановки.
+	 *
+	 * @param suspension Номер приостановки.
+	 *
+	 * @return Закрыта ли сессия, либо она возобновлена или приостановлена повторно.
+	 */
+	synchronized boolean expire(int suspension) {
+		if (state != State.SUSPENDED || suspensions != suspension)
+			return false;
+		state = State.CLOSED;
+		return true;
+	}
+
+	/**
+	 * Закрывает сессию, если она привязана к данному коммуникатору. Приостановленная сессия закрывается
+	 * только по истечении ожидания возобновления.
+	 *
+	 * @param communicator Коммуникатор закрываемого соединения.
+	 *
+	 * @return Состояние сессии до закрытия, либо {@link State#CLOSED}, если сессия не закрыта.
+	 */
+	synchronized State close(ProtocolCommunicator communicator) {
+		if (state == State.SUSPENDED || this.communicator != communicator)
+			return State.CLOSED;
+		State previous = state;
+		state = State.CLOSED;
+		return previous;
+	}
+
+	/**
+	 * @param uuid Ключ сессии из пакета клиента.
+	 *
+	 * @return Вошел ли клиент в чат с данным ключом сессии.
+	 */
+	boolean owns(UUID uuid) {
+		State state = this.state;
+		return (state == State.JOINING || state == State.ONLINE) && this.uuid.equals(uuid);
+	}
+
+	/**
+	 * @return Получает ли клиент рассылки.
+	 */
+	boolean isOnline() {
+		return state == State.ONLINE;
+	}
+
+	/**
+	 * @return Закрыта ли сессия.
+	 */
+	boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+	/**
+	 * @return Ожидает ли сессия возобновления.
+	 */
+	boolean isSuspended() {
+		return state == State.SUSPENDED;
+	}
+
+	/**
+	 * Определяет, получает ли клиент сообщение рассылкой. Сообщение для входящего в чат клиента
+	 * откладывается до завершения входа, а сообщения, уже отправленные при входе, пропускаются.
+	 *
+	 * @param message Рассылаемое сообщение.
+	 *
+	 * @return Коммуникатор клиента, либо {@code null}, если сообщение ему не рассылается.
+	 */
+	ProtocolCommunicator messageTarget(SavedMessage message) {
+		if (state != State.ONLINE) {
+			synchronized (this) {
+				if (state == State.JOINING)
+					deferred.add(message);
+				if (state != State.ONLINE)
+					return null;
+			}
+		}
+		long seq = message.getSeq();
+		return seq >= historyMark || unpublished.contains(seq) ? communicator : null;
+	}
+
+	/**
+	 * Учитывает принятый пакет. Вызывается только потоком чтения соединения.
+	 */
+	void countPacket() {
+		packets++;
+		touch();
+	}
+
+	/**
+	 * Учитывает задачу, поставленную в очередь обработчика пакетов.
+	 * Когда задач становится слишком много, приостанавливает чтение соединения.
+	 *
+	 * @param maxQueued Количество задач, при котором приостанавливается чтение.
+	 *
+	 * @return Приостановлено ли чтение этой задачей.
+	 */
+	boolean taskQueued(int maxQueued) {
+		synchronized (queueLock) {
+			if (++queuedTasks < maxQueued || readingPaused)
+				return false;
+			readingPaused = true;
+			communicator.pauseReading();
+			return true;
+		}
+	}
+
+	/**
+	 * Учитывает выполненную задачу обработчика пакетов. Возобновляет приостановленное чтение соединения,
+	 * когда в очереди остается не больше половины допустимого количества задач.
+	 *
+	 * @param maxQueued Количество задач, при котором приостанавливается чтение.
+	 */
+	void taskDone(int maxQueued) {
+		synchronized (queueLock) {
+			if (--queuedTasks > maxQueued / 2 || !readingPaused)
+				return;
+			readingPaused = false;
+			communicator.resumeReading();
+		}
+	}
+
+	/**
+	 * Отмечает активность соединения клиента, откладывая истечение ожидания его пакетов.
+	 */
+	void touch() {
+		readTime = System.nanoTime();
+	}
+
+	/**
+	 * @return Время создания сессии по {@link System#nanoTime()}.
+	 */
+	long getAcceptTime() {
+		return acceptTime;
+	}
+
+	/**
+	 * @return Время последней активности соединения по {@link System#nanoTime()}.
+	 */
+	long getReadTime() {
+		return readTime;
+	}
+
+	/**
+	 * Отмечает, что подключение клиента принято.
+	 */
+	void handshake() {
+		handshaken = true;
+	}
+
+	/**
+	 * @return Принято ли подключение клиента.
+	 */
+	boolean isHandshaken() {
+		return handshaken;
+	}
+
+	/**
+	 * Отмечает, что клиент подтверждает активность соединения пакетами проверки.
+	 */
+	void enableHeartbeats() {
+		heartbeats = true;
+	}
+
+	/**
+	 * @return Отправляет ли клиент пакеты проверки соединения. Ожидание активности соединения истекает
+	 * только у таких клиентов: остальные могут долго ничего не отправлять.
+	 */
+	boolean isHeartbeats() {
+		return heartbeats;
+	}
+
+	/**
+	 * Учитывает отправленное клиентом сообщение. Вызывается только обработчиком пакетов соединения.
+	 */
+	void countMessage() {
+		messages++;
+	}
+
+	ProtocolCommunicator getCommunicator() {
+		return communicator;
+	}
+
+	UUID getUuid() {
+		return uuid;
+	}
+
+	String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return Изменяемое множество комнат, в которых состоит клиент.
+	 */
+	Set<String> getRooms() {
+		return rooms;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d packets, %d messages", username, packets, messages);
+	}
+
+	/**
+	 * Отправка сообщений клиенту при завершении входа.
+	 */
+	interface MessageSender {
+		void send(List<SavedMessage> messages) throws InterruptedException;
+	}
+
+	/**
+	 * Состояние сессии.
+	 */
+	enum State {
+		/**
+		 * Соединение установлено, клиент не вошел в чат.
+		 */
+		CONNECTED,
+		/**
+		 * Клиенту отправляется история, рассылки ему еще не доставляются.
+		 */
+		JOINING,
+		/**
+		 * Клиент в чате.
+		 */
+		ONLINE,
+		/**
+		 * Соединение разорвано, клиент остается в чате до возобновления сессии или истечения ожидания.
+		 */
+		SUSPENDED,
+		/**
+		 * Соединение закрыто.
+		 */
+		CLOSED
+	}
+}
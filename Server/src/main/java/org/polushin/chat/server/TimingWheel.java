@@ -0,0 +1,147 @@
+package org.polushin.chat.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Хешированное колесо таймеров: задачи раскладываются по ячейкам кольца по номеру такта срабатывания,
+ * а поток колеса раз в такт выполняет задачи одной ячейки. Постановка и срабатывание задачи не зависят
+ * от количества ожидающих задач, поэтому колесо обслуживает сроки ожидания всех соединений одним потоком.
+ * Задачи срабатывают с точностью до такта и выполняются в потоке колеса, поэтому должны быть короткими.
+ */
+class TimingWheel extends Thread {
+
+	private final long tickNanos;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	private long tick;
+
+	/**
+	 * @param name Имя потока колеса.
+	 * @param tickDuration Длительность такта.
+	 * @param unit Единица измерения длительности.
+	 * @param size Количество ячеек, округляется вверх до степени двойки.
+	 */
+	TimingWheel(String name, long tickDuration, TimeUnit unit, int size) {
+		super(name);
+		if (tickDuration < 1)
+			throw new IllegalArgumentException("Tick duration must be positive!");
+		if (size < 1 || size > 1 << 30)
+			throw new IllegalArgumentException("Wheel size must be in range [1, 2^30]!");
+		tickNanos = unit.toNanos(tickDuration);
+		int length = Integer.highestOneBit(size);
+		if (length < size)
+			length <<= 1;
+		buckets = new Timeout[length];
+		mask = length - 1;
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Ставит задачу на выполнение в потоке колеса. Может вызываться любым потоком.
+	 *
+	 * @param task Задача.
+	 * @param delay Задержка выполнения.
+	 * @param unit Единица измерения задержки.
+	 */
+	void schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new IllegalArgumentException("Task cannot be null!");
+		long deadline = System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0);
+		added.offer(new Timeout(task, deadline));
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				long deadline = awaitTick();
+				transferAdded();
+				expire((int) (tick & mask), deadline);
+				tick++;
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/**
+	 * Ожидает окончания текущего такта.
+	 *
+	 * @return Время окончания такта относительно запуска колеса.
+	 *
+	 * @throws InterruptedException Прерывание ожидания.
+	 */
+	private long awaitTick() throws InterruptedException {
+		long deadline = (tick + 1) * tickNanos;
+		long remaining;
+		while ((remaining = deadline - (System.nanoTime() - startTime)) > 0)
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		return deadline;
+	}
+
+	/**
+	 * Раскладывает поставленные с прошлого такта задачи по ячейкам.
+	 * Задачи с прошедшим сроком попадают в ячейку текущего такта.
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			long ticks = timeout.deadline / tickNanos;
+			timeout.rounds = (ticks - tick) / buckets.length;
+			int index = (int) (Math.max(ticks, tick) & mask);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	/**
+	 * Выполняет задачи ячейки, срок которых наступил, и уменьшает число оборотов до срабатывания остальных.
+	 *
+	 * @param index Номер ячейки.
+	 * @param deadline Время окончания текущего такта.
+	 */
+	private void expire(int index, long deadline) {
+		Timeout previous = null;
+		Timeout timeout = buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+				if (previous == null)
+					buckets[index] = next;
+				else
+					previous.next = next;
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			} else {
+				timeout.rounds--;
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Задача колеса. Поля ячеек изменяются только потоком колеса.
+	 */
+	private static class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+
+		private long rounds;
+		private Timeout next;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.polushin.chat.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MessageRingTest {
+
+	private static final int CAPACITY = 64;
+	private static final int WRITERS = 4;
+	private static final int READERS = 4;
+	private static final int MESSAGES_PER_WRITER = 50_000;
+
+	@Test
+	public void snapshotReturnsLastMessagesInOrder() {
+		MessageRing ring = new MessageRing(4);
+		for (int i = 0; i < 10; i++)
+			ring.append("sender", "message" + i);
+
+		List<SavedMessage> messages = ring.snapshot(Long.MAX_VALUE, 10);
+
+		assertEquals(4, messages.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertEquals(6 + i, messages.get(i).getSeq());
+			assertEquals("message" + (6 + i), messages.get(i).getMessage());
+		}
+		assertEquals(2, ring.snapshot(9, 2).size());
+		assertEquals(7, ring.snapshot(9, 2).get(0).getSeq());
+	}
+
+	@Test
+	public void snapshotStopsBeforeUnpublishedMessage() {
+		MessageRing ring = new MessageRing(CAPACITY);
+		ring.put(new SavedMessage(0, "sender", "0"));
+		ring.put(new SavedMessage(2, "sender", "2"));
+
+		assertEquals(3, ring.getNextSeq());
+		assertEquals(1, ring.getPublishedSeq());
+		assertEquals(1, ring.snapshot(Long.MAX_VALUE, CAPACITY).size());
+		assertNull(ring.get(1));
+		assertEquals("2", ring.get(2).getMessage());
+
+		ring.put(new SavedMessage(1, "sender", "1"));
+
+		assertEquals(3, ring.getPublishedSeq());
+		assertEquals(3, ring.snapshot(Long.MAX_VALUE, CAPACITY).size());
+	}
+
+	@Test
+	public void rejectedAppendDoesNotClaimSeq() {
+		MessageRing ring = new MessageRing(CAPACITY);
+		ring.append("sender", "0");
+		try {
+			ring.append("sender", null);
+			fail();
+		} catch (IllegalArgumentException ignored) {
+		}
+		ring.append("sender", "1");
+
+		assertEquals(2, ring.getNextSeq());
+		assertEquals(2, ring.getPublishedSeq());
+		assertEquals(2, ring.snapshot(Long.MAX_VALUE, CAPACITY).size());
+	}
+
+	@Test
+	public void resetReplacesMessages() {
+		MessageRing ring = new MessageRing(CAPACITY);
+		ring.append("sender", "old");
+
+		ring.reset(10, Collections.singletonList(new SavedMessage(9, "sender", "recent")));
+
+		assertEquals(10, ring.getNextSeq());
+		assertEquals(9, ring.getFirstSeq());
+		List<SavedMessage> messages = ring.snapshot(Long.MAX_VALUE, CAPACITY);
+		assertEquals(1, messages.size());
+		assertEquals("recent", messages.get(0).getMessage());
+	}
+
+	/**
+	 * Писатели присваивают номера вне буфера, как журнал, и публикуют сообщения в произвольном порядке,
+	 * а читатели в это время проверяют, что каждый снимок содержит только свои сообщения по порядку номеров.
+	 */
+	@Test
+	public void concurrentSnapshotsAreConsistent() throws InterruptedException {
+		MessageRing ring = new MessageRing(CAPACITY);
+		AtomicLong seqs = new AtomicLong();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		long total = (long) WRITERS * MESSAGES_PER_WRITER;
+
+		List<Thread> writers = new ArrayList<>();
+		for (int i = 0; i < WRITERS; i++) {
+			writers.add(start(failure, () -> {
+				for (int j = 0; j < MESSAGES_PER_WRITER; j++) {
+					long seq = seqs.getAndIncrement();
+					ring.put(new SavedMessage(seq, "sender", Long.toString(seq)));
+				}
+			}));
+		}
+		List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < READERS; i++) {
+			readers.add(start(failure, () -> {
+				long lastEnd = 0;
+				while (lastEnd < total && failure.get() == null) {
+					long end = ring.getPublishedSeq();
+					assertTrue("Published end went back", end >= lastEnd);
+					List<SavedMessage> messages = ring.snapshot(end, CAPACITY);
+					for (int j = 0; j < messages.size(); j++) {
+						SavedMessage message = messages.get(j);
+						assertTrue("Snapshot exceeds its end", message.getSeq() < end);
+						assertEquals(Long.toString(message.getSeq()), message.getMessage());
+						if (j > 0)
+							assertTrue("Snapshot is out of order", message.getSeq() > messages.get(j - 1).getSeq());
+					}
+					lastEnd = end;
+				}
+			}));
+		}
+		for (Thread thread : writers)
+			thread.join();
+		for (Thread thread : readers)
+			thread.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(total, ring.getNextSeq());
+		assertEquals(total, ring.getPublishedSeq());
+		List<SavedMessage> messages = ring.snapshot(Long.MAX_VALUE, CAPACITY);
+		assertEquals(CAPACITY, messages.size());
+		assertEquals(total - CAPACITY, messages.get(0).getSeq());
+	}
+
+	private static Thread start(AtomicReference<Throwable> failure, Runnable task) {
+		Thread thread = new Thread(() -> {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+}
@@ -2,31 +2,60 @@ package org.polushin.chat;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Асинхронный обработчик потоковых данных.
+ * Выполняется в потоке, созданном переданной фабрикой потоков.
  */
-public abstract class AsyncDataHandler extends Thread {
+public abstract class AsyncDataHandler implements Runnable {
 
 	protected volatile boolean interrupted;
 	private final Closeable closeable;
+	private final Thread thread;
 
-	protected AsyncDataHandler(Closeable stream) {
+	protected AsyncDataHandler(Closeable stream, ThreadFactory threadFactory) {
 		closeable = stream;
+		thread = threadFactory.newThread(this);
 	}
 
 	@Override
 	public abstract void run();
 
-	@Override
+	/**
+	 * Запускает поток обработчика.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Останавливает обработчик, закрывая его поток данных.
+	 */
 	public void interrupt() {
 		interrupted = true;
+		closeStream();
+		thread.interrupt();
+	}
+
+	/**
+	 * Закрывает поток данных обработчика, не помечая обработчик остановленным.
+	 */
+	protected void closeStream() {
 		try {
 			closeable.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		super.interrupt();
+	}
+
+	/**
+	 * Ожидает завершения потока обработчика.
+	 *
+	 * @throws InterruptedException Прерывание ожидания.
+	 */
+	public void join() throws InterruptedException {
+		thread.join();
 	}
 
 }
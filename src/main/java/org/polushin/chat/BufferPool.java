@@ -0,0 +1,53 @@
+package org.polushin.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Общий пул буферов для кодирования и разбора кадров.
+ * Переиспользуются только буферы стандартного размера, большие буферы выделяются отдельно.
+ */
+public final class BufferPool {
+
+	public static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @param capacity Минимальная емкость буфера.
+	 *
+	 * @return Очищенный буфер емкостью не меньше запрошенной.
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		if (capacity > BUFFER_SIZE)
+			return ByteBuffer.allocate(capacity);
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null)
+			return ByteBuffer.allocate(BUFFER_SIZE);
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Возвращает буфер в пул. После возврата буфер нельзя использовать.
+	 *
+	 * @param buffer Возвращаемый буфер.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer.capacity() != BUFFER_SIZE || buffer.isReadOnly() || !buffer.hasArray())
+			return;
+		if (pooled.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pool.offer(buffer);
+	}
+}
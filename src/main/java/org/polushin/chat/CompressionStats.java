@@ -0,0 +1,135 @@
+package org.polushin.chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика сжатия кадров одного соединения.
+ * Может дополнительно учитывать значения в общей статистике, например всех соединений сервера.
+ */
+public class CompressionStats {
+
+	private final CompressionStats parent;
+	private final LongAdder compressedFrames = new LongAdder();
+	private final LongAdder skippedFrames = new LongAdder();
+	private final LongAdder originalBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder inflatedFrames = new LongAdder();
+	private final LongAdder inflatedBytes = new LongAdder();
+	private final LongAdder inflateNanos = new LongAdder();
+
+	public CompressionStats() {
+		this(null);
+	}
+
+	/**
+	 * @param parent Общая статистика или {@code null}.
+	 */
+	public CompressionStats(CompressionStats parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Учитывает попытку сжатия кадра.
+	 *
+	 * @param original Размер тела кадра до сжатия.
+	 * @param compressed Размер сжатого тела кадра либо -1, если сжатие оказалось невыгодным.
+	 * @param nanos Затраченное время.
+	 */
+	public void recordCompression(int original, int compressed, long nanos) {
+		if (compressed < 0)
+			skippedFrames.increment();
+		else
+			compressedFrames.increment();
+		originalBytes.add(original);
+		compressedBytes.add(compressed < 0 ? original : compressed);
+		compressNanos.add(nanos);
+		if (parent != null)
+			parent.recordCompression(original, compressed, nanos);
+	}
+
+	/**
+	 * Учитывает распаковку принятого кадра.
+	 *
+	 * @param original Размер распакованного тела кадра.
+	 * @param nanos Затраченное время.
+	 */
+	public void recordInflation(int original, long nanos) {
+		inflatedFrames.increment();
+		inflatedBytes.add(original);
+		inflateNanos.add(nanos);
+		if (parent != null)
+			parent.recordInflation(original, nanos);
+	}
+
+	/**
+	 * @return Количество сжатых кадров.
+	 */
+	public long getCompressedFrames() {
+		return compressedFrames.sum();
+	}
+
+	/**
+	 * @return Количество кадров, сжатие которых оказалось невыгодным.
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames.sum();
+	}
+
+	/**
+	 * @return Размер тел кадров до сжатия.
+	 */
+	public long getOriginalBytes() {
+		return originalBytes.sum();
+	}
+
+	/**
+	 * @return Размер тел кадров после сжатия.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * @return Отношение размера после сжатия к размеру до сжатия.
+	 */
+	public double getRatio() {
+		long original = getOriginalBytes();
+		return original == 0 ? 1 : (double) getCompressedBytes() / original;
+	}
+
+	/**
+	 * @return Время, затраченное на сжатие, в наносекундах.
+	 */
+	public long getCompressNanos() {
+		return compressNanos.sum();
+	}
+
+	/**
+	 * @return Количество распакованных кадров.
+	 */
+	public long getInflatedFrames() {
+		return inflatedFrames.sum();
+	}
+
+	/**
+	 * @return Размер распакованных тел кадров.
+	 */
+	public long getInflatedBytes() {
+		return inflatedBytes.sum();
+	}
+
+	/**
+	 * @return Время, затраченное на распаковку, в наносекундах.
+	 */
+	public long getInflateNanos() {
+		return inflateNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d frames compressed, %d skipped, ratio %.3f, %d us compressing, " +
+		                     "%d frames inflated, %d us inflating", getCompressedFrames(), getSkippedFrames(),
+		                     getRatio(), getCompressNanos() / 1000, getInflatedFrames(), getInflateNanos() / 1000);
+	}
+}
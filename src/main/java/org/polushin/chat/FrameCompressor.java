@@ -0,0 +1,149 @@
+package org.polushin.chat;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие тел кадров алгоритмом deflate.
+ * Каждый кадр сжимается независимо с синхронным сбросом, поэтому сжатый кадр рассылки
+ * может разделяться всеми получателями. Сжатые кадры помечаются флагом {@link PacketCodec#COMPRESSED_FLAG}
+ * в заголовке. Экземпляры {@link Deflater} и {@link Inflater} переиспользуются через общий пул.
+ */
+public final class FrameCompressor {
+
+	public static final int DEFAULT_THRESHOLD = 512;
+	private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+	private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+	private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+	private FrameCompressor() {
+	}
+
+	/**
+	 * Сжимает тело кадра, если это уменьшает его размер.
+	 *
+	 * @param frame Кадр вместе с заголовком, готовый к чтению.
+	 * @param stats Статистика сжатия.
+	 *
+	 * @return Новый сжатый кадр, при этом исходный кадр возвращается в {@link BufferPool},
+	 * либо исходный кадр, если сжатие невыгодно.
+	 */
+	public static ByteBuffer compress(ByteBuffer frame, CompressionStats stats) {
+		long start = System.nanoTime();
+		int length = frame.remaining() - PacketCodec.HEADER_SIZE;
+		ByteBuffer out = BufferPool.acquire(frame.remaining());
+		Deflater deflater = acquireDeflater();
+		int written;
+		try {
+			deflater.setInput(frame.array(), frame.arrayOffset() + frame.position() + PacketCodec.HEADER_SIZE,
+			                  length);
+			written = deflater.deflate(out.array(), out.arrayOffset() + PacketCodec.HEADER_SIZE, length,
+			                           Deflater.SYNC_FLUSH);
+		} finally {
+			releaseDeflater(deflater);
+		}
+		if (written >= length) {
+			BufferPool.release(out);
+			stats.recordCompression(length, -1, System.nanoTime() - start);
+			return frame;
+		}
+		out.putInt(0, written | PacketCodec.COMPRESSED_FLAG);
+		out.limit(PacketCodec.HEADER_SIZE + written);
+		BufferPool.release(frame);
+		stats.recordCompression(length, written, System.nanoTime() - start);
+		return out;
+	}
+
+	/**
+	 * Распаковывает тело сжатого кадра.
+	 *
+	 * @param payload Сжатое тело кадра.
+	 * @param stats Статистика сжатия.
+	 *
+	 * @return Распакованное тело кадра. После разбора буфер следует вернуть в {@link BufferPool}.
+	 *
+	 * @throws IOException Тело кадра повреждено или превышает допустимый размер.
+	 */
+	public static ByteBuffer decompress(ByteBuffer payload, CompressionStats stats) throws IOException {
+		long start = System.nanoTime();
+		ByteBuffer out = BufferPool.acquire(Math.min(payload.remaining() * 4, PacketCodec.MAX_FRAME_SIZE));
+		Inflater inflater = acquireInflater();
+		int total = 0;
+		try {
+			inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			while (true) {
+				int inflated = inflater.inflate(out.array(), out.arrayOffset() + total, out.capacity() - total);
+				total += inflated;
+				if (total == out.capacity()) {
+					if (total >= PacketCodec.MAX_FRAME_SIZE)
+						throw new StreamCorruptedException("Inflated frame is too large.");
+					ByteBuffer larger = ByteBuffer.allocate(Math.min(total * 2, PacketCodec.MAX_FRAME_SIZE));
+					larger.put(out.array(), out.arrayOffset(), total);
+					BufferPool.release(out);
+					out = larger;
+				} else if (inflater.needsInput() || inflater.finished())
+					break;
+				else if (inflated == 0)
+					throw new StreamCorruptedException("Invalid compressed frame.");
+			}
+		} catch (DataFormatException e) {
+			BufferPool.release(out);
+			throw new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+		} catch (IOException e) {
+			BufferPool.release(out);
+			throw e;
+		} finally {
+			releaseInflater(inflater);
+		}
+		out.position(0);
+		out.limit(total);
+		stats.recordInflation(total, System.nanoTime() - start);
+		return out;
+	}
+
+	private static Deflater acquireDeflater() {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		pooledDeflaters.decrementAndGet();
+		return deflater;
+	}
+
+	private static void releaseDeflater(Deflater deflater) {
+		if (pooledDeflaters.incrementAndGet() > MAX_POOLED) {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		deflaters.offer(deflater);
+	}
+
+	private static Inflater acquireInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			return new Inflater(true);
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+
+	private static void releaseInflater(Inflater inflater) {
+		if (pooledInflaters.incrementAndGet() > MAX_POOLED) {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+			return;
+		}
+		inflater.reset();
+		inflaters.offer(inflater);
+	}
+}
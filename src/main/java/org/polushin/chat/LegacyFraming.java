@@ -0,0 +1,157 @@
+package org.polushin.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Формат передачи клиентов первой версии протокола: единый поток Java сериализации,
+ * в котором каждый пакет записан JSON строкой.
+ * Поток начинается с заголовка {@link #STREAM_MAGIC}, строки записываются в модифицированном UTF-8.
+ */
+public final class LegacyFraming {
+
+	public static final int STREAM_MAGIC = 0xACED0005;
+
+	private static final byte TC_RESET = 0x79;
+	private static final byte TC_STRING = 0x74;
+	private static final byte TC_LONGSTRING = 0x7C;
+	private static final int MAX_SHORT_STRING = 0xFFFF;
+
+	private LegacyFraming() {
+	}
+
+	/**
+	 * @return Заголовок потока, который отправляется клиенту сразу после распознавания формата.
+	 */
+	public static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+		header.putInt(STREAM_MAGIC).flip();
+		return header;
+	}
+
+	/**
+	 * Кодирует строку в объект потока Java сериализации.
+	 *
+	 * @param value Строка.
+	 *
+	 * @return Буфер, готовый к записи.
+	 *
+	 * @throws IOException Строка слишком длинная.
+	 */
+	public static ByteBuffer encode(String value) throws IOException {
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+		if (!PacketCodec.isValidLength(length))
+			throw new IOException("String is too large: " + length);
+		ByteBuffer buffer;
+		if (length <= MAX_SHORT_STRING) {
+			buffer = BufferPool.acquire(1 + Short.BYTES + length);
+			buffer.put(TC_STRING).putShort((short) length);
+		} else {
+			buffer = BufferPool.acquire(1 + Long.BYTES + length);
+			buffer.put(TC_LONGSTRING).putLong(length);
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c != 0 && c < 0x80)
+				buffer.put((byte) c);
+			else if (c < 0x800)
+				buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+			else
+				buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Читает следующую строку из буфера.
+	 * Если строка принята не полностью, позиция буфера не меняется.
+	 *
+	 * @param in Буфер принятых данных.
+	 *
+	 * @return Строка или null, если данных недостаточно.
+	 *
+	 * @throws StreamCorruptedException Поток содержит что-то кроме строк.
+	 */
+	public static String next(ByteBuffer in) throws StreamCorruptedException {
+		int start = in.position();
+		while (in.hasRemaining()) {
+			byte tag = in.get();
+			long length;
+			if (tag == TC_RESET) {
+				start = in.position();
+				continue;
+			} else if (tag == TC_STRING) {
+				if (in.remaining() < Short.BYTES)
+					break;
+				length = in.getShort() & 0xFFFF;
+			} else if (tag == TC_LONGSTRING) {
+				if (in.remaining() < Long.BYTES)
+					break;
+				length = in.getLong();
+			} else
+				throw new StreamCorruptedException("Unexpected stream object tag: " + tag);
+			if (length < 0 || length > PacketCodec.MAX_FRAME_SIZE)
+				throw new StreamCorruptedException("Invalid string length: " + length);
+			if (in.remaining() < length)
+				break;
+			String value = decode(in.array(), in.arrayOffset() + in.position(), (int) length);
+			in.position(in.position() + (int) length);
+			return value;
+		}
+		in.position(start);
+		return null;
+	}
+
+	/**
+	 * Читает следующую строку из блокирующего потока.
+	 *
+	 * @param in Поток.
+	 *
+	 * @return Принятая строка.
+	 *
+	 * @throws IOException Ошибка чтения или поток содержит что-то кроме строк.
+	 */
+	public static String read(DataInputStream in) throws IOException {
+		while (true) {
+			byte tag = in.readByte();
+			if (tag == TC_RESET)
+				continue;
+			if (tag == TC_STRING)
+				return in.readUTF();
+			if (tag != TC_LONGSTRING)
+				throw new StreamCorruptedException("Unexpected stream object tag: " + tag);
+			long length = in.readLong();
+			if (length < 0 || length > PacketCodec.MAX_FRAME_SIZE)
+				throw new StreamCorruptedException("Invalid string length: " + length);
+			byte[] bytes = new byte[(int) length];
+			in.readFully(bytes);
+			return decode(bytes, 0, bytes.length);
+		}
+	}
+
+	private static String decode(byte[] bytes, int offset, int length) throws StreamCorruptedException {
+		char[] chars = new char[length];
+		int count = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; ) {
+			int b = bytes[i++] & 0xFF;
+			if (b < 0x80)
+				chars[count++] = (char) b;
+			else if ((b & 0xE0) == 0xC0 && i < end)
+				chars[count++] = (char) ((b & 0x1F) << 6 | bytes[i++] & 0x3F);
+			else if ((b & 0xF0) == 0xE0 && i + 1 < end) {
+				chars[count++] = (char) ((b & 0x0F) << 12 | (bytes[i] & 0x3F) << 6 | bytes[i + 1] & 0x3F);
+				i += 2;
+			} else
+				throw new StreamCorruptedException("Malformed modified UTF-8 string!");
+		}
+		return new String(chars, 0, count);
+	}
+}
@@ -0,0 +1,110 @@
+package org.polushin.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Неограниченная неблокирующая очередь для многих производителей и одного потребителя.
+ * Элементы хранятся в связанных массивах фиксированного размера: производитель занимает ячейку
+ * одной атомарной операцией и записывает в нее элемент, потребитель читает ячейки по порядку без синхронизации.
+ * Методы чтения может вызывать только один поток-потребитель.
+ *
+ * @param <E> Тип элементов.
+ */
+class MpscQueue<E> {
+
+	private static final int CHUNK_SIZE = 256;
+
+	private final AtomicLong producerIndex = new AtomicLong();
+	private final AtomicReference<Chunk<E>> producerChunk;
+
+	private Chunk<E> consumerChunk;
+	private long consumerIndex;
+
+	MpscQueue() {
+		Chunk<E> first = new Chunk<>(0);
+		producerChunk = new AtomicReference<>(first);
+		consumerChunk = first;
+	}
+
+	/**
+	 * Добавляет элемент в очередь. Может вызываться любым потоком.
+	 *
+	 * @param element Элемент.
+	 */
+	void offer(E element) {
+		if (element == null)
+			throw new IllegalArgumentException("Element cannot be null!");
+		// Подсказка читается до занятия ячейки, поэтому она не может указывать на массив после нужного.
+		Chunk<E> chunk = producerChunk.get();
+		long index = producerIndex.getAndIncrement();
+		while (index >= chunk.base + CHUNK_SIZE)
+			chunk = chunk.next(producerChunk);
+		chunk.slots.set((int) (index - chunk.base), element);
+	}
+
+	/**
+	 * Забирает следующий элемент. Только для потока-потребителя.
+	 *
+	 * @return Элемент или {@code null}, если очередь пуста либо следующий элемент еще не записан.
+	 */
+	E poll() {
+		int offset = (int) (consumerIndex - consumerChunk.base);
+		if (offset == CHUNK_SIZE) {
+			Chunk<E> next = consumerChunk.next;
+			if (next == null)
+				return null;
+			consumerChunk = next;
+			offset = 0;
+		}
+		E element = consumerChunk.slots.get(offset);
+		if (element == null)
+			return null;
+		consumerChunk.slots.lazySet(offset, null);
+		consumerIndex++;
+		return element;
+	}
+
+	/**
+	 * Только для потока-потребителя.
+	 *
+	 * @return Нет ли в очереди записанных элементов.
+	 */
+	boolean isEmpty() {
+		int offset = (int) (consumerIndex - consumerChunk.base);
+		if (offset == CHUNK_SIZE) {
+			Chunk<E> next = consumerChunk.next;
+			return next == null || next.slots.get(0) == null;
+		}
+		return consumerChunk.slots.get(offset) == null;
+	}
+
+	private static class Chunk<E> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+				AtomicReferenceFieldUpdater.newUpdater(Chunk.class, Chunk.class, "next");
+
+		private final long base;
+		private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+		private volatile Chunk<E> next;
+
+		Chunk(long base) {
+			this.base = base;
+		}
+
+		/**
+		 * Возвращает следующий массив, создавая его при необходимости, и продвигает подсказку производителей.
+		 */
+		Chunk<E> next(AtomicReference<Chunk<E>> hint) {
+			Chunk<E> next = this.next;
+			if (next == null) {
+				Chunk<E> created = new Chunk<>(base + CHUNK_SIZE);
+				next = NEXT.compareAndSet(this, null, created) ? created : this.next;
+			}
+			hint.compareAndSet(this, next);
+			return next;
+		}
+	}
+}
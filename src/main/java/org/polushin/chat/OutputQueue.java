@@ -0,0 +1,298 @@
+package org.polushin.chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Очередь исходящих кадров одного соединения.
+ * Постановка кадра никогда не блокирует вызывающий поток: при превышении бюджета очереди
+ * применяется {@link OverflowPolicy} коммуникатора. Кадры забирает единственный поток записи,
+ * ожидающий новых кадров без блокировок и пробуждаемый производителями.
+ * При политике {@link OverflowPolicy.Action#SPILL} кадры сверх бюджета копируются в буфер переполнения,
+ * а разделяемые кадры сразу освобождаются. Пока буфер переполнения не пуст, новые кадры также попадают в него,
+ * поэтому порядок кадров сохраняется. Поток записи переносит кадры из буфера обратно в очередь
+ * по мере освобождения бюджета.
+ */
+public class OutputQueue {
+
+	private final ProtocolCommunicator communicator;
+	private final MpscQueue<Entry> queue = new MpscQueue<>();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final ArrayDeque<byte[]> spill = new ArrayDeque<>();
+
+	private long spilledBytes;
+	private volatile boolean spilling;
+
+	private volatile long lastProgress = System.nanoTime();
+	private volatile Thread waiter;
+	private volatile boolean closed;
+	private volatile SharedFrame last;
+
+	/**
+	 * @param communicator Коммуникатор, политика и статистика которого используются очередью.
+	 */
+	public OutputQueue(ProtocolCommunicator communicator) {
+		if (communicator == null)
+			throw new IllegalArgumentException("Communicator cannot be null!");
+		this.communicator = communicator;
+	}
+
+	/**
+	 * Ставит кадр в очередь, передавая его очереди во владение.
+	 * Сообщения чата, не поместившиеся в очередь, отбрасываются согласно политике.
+	 * После закрытия очереди кадры освобождаются сразу.
+	 *
+	 * @param frame Кадр.
+	 * @param droppable Может ли кадр быть отброшен политикой.
+	 *
+	 * @return {@code false}, если политика требует разорвать соединение. Кадр при этом освобожден.
+	 */
+	public boolean offer(SharedFrame frame, boolean droppable) {
+		if (closed) {
+			frame.release();
+			return true;
+		}
+		OverflowPolicy policy = communicator.getOverflowPolicy();
+		long size = frame.size();
+		if (policy.getAction() == OverflowPolicy.Action.SPILL &&
+				(spilling || pendingBytes.get() + size > policy.getMaxPendingBytes()))
+			return spill(frame, size, policy);
+		long pending = pendingBytes.addAndGet(size);
+		if (pending == size)
+			lastProgress = System.nanoTime();
+		else if (policy.getMaxStallNanos() > 0 && System.nanoTime() - lastProgress > policy.getMaxStallNanos())
+			return reject(frame, size);
+		if (pending > policy.getMaxPendingBytes() + policy.getMaxSpillBytes()) {
+			if (!droppable || policy.getAction() != OverflowPolicy.Action.DROP_OLDEST)
+				return reject(frame, size);
+			pendingBytes.addAndGet(-size);
+			frame.release();
+			communicator.getWriteStats().recordDrop();
+			return true;
+		}
+		queue.offer(new Entry(frame, droppable, size));
+		wakeUp();
+		return true;
+	}
+
+	/**
+	 * Копирует кадр в буфер переполнения и освобождает его.
+	 *
+	 * @return {@code false}, если буфер переполнения заполнен. Кадр при этом освобожден.
+	 */
+	private boolean spill(SharedFrame frame, long size, OverflowPolicy policy) {
+		synchronized (spill) {
+			if (spilledBytes + size > policy.getMaxSpillBytes()) {
+				frame.release();
+				communicator.getWriteStats().recordDrop();
+				return false;
+			}
+			byte[] bytes = new byte[(int) size];
+			frame.view().get(bytes);
+			spill.addLast(bytes);
+			spilledBytes += size;
+			spilling = true;
+		}
+		frame.release();
+		communicator.getWriteStats().recordSpill();
+		wakeUp();
+		return true;
+	}
+
+	/**
+	 * Переносит кадры из буфера переполнения в очередь, пока они укладываются в бюджет.
+	 * Если очередь пуста, переносится хотя бы один кадр. Только для потока записи.
+	 *
+	 * @return Перенесен ли хотя бы один кадр.
+	 */
+	private boolean unspill(OverflowPolicy policy) {
+		boolean moved = false;
+		synchronized (spill) {
+			byte[] bytes;
+			while ((bytes = spill.peekFirst()) != null &&
+					(!moved && queue.isEmpty() || pendingBytes.get() + bytes.length <= policy.getMaxPendingBytes())) {
+				spill.removeFirst();
+				spilledBytes -= bytes.length;
+				pendingBytes.addAndGet(bytes.length);
+				queue.offer(new Entry(new SharedFrame(ByteBuffer.wrap(bytes)), false, bytes.length));
+				moved = true;
+			}
+			if (spill.isEmpty())
+				spilling = false;
+		}
+		return moved;
+	}
+
+	/**
+	 * Забирает следующий кадр для записи. Только для потока записи.
+	 * При политике {@link OverflowPolicy.Action#DROP_OLDEST} сообщения чата, после которых в очереди остается
+	 * больше бюджета, вытесняются. После прерывания очереди оставшиеся кадры освобождаются
+	 * и возвращается только последний кадр.
+	 *
+	 * @return Кадр, принадлежащий вызывающему, либо {@code null}, если очередь пуста.
+	 */
+	public SharedFrame poll() {
+		if (closed) {
+			clear();
+			SharedFrame last = this.last;
+			this.last = null;
+			return last;
+		}
+		OverflowPolicy policy = communicator.getOverflowPolicy();
+		Entry entry;
+		while ((entry = queue.poll()) != null || spilling && unspill(policy)) {
+			if (entry == null)
+				continue;
+			long pending = pendingBytes.addAndGet(-entry.size);
+			if (spilling && pending <= policy.getMaxPendingBytes() / 2)
+				unspill(policy);
+			if (entry.droppable && policy.getAction() == OverflowPolicy.Action.DROP_OLDEST &&
+					pending > policy.getMaxPendingBytes()) {
+				entry.frame.release();
+				communicator.getWriteStats().recordEviction();
+				continue;
+			}
+			lastProgress = System.nanoTime();
+			return entry.frame;
+		}
+		return null;
+	}
+
+	/**
+	 * Забирает накопившиеся кадры для записи одной операцией. Только для потока записи.
+	 *
+	 * @param frames Список, в который добавляются кадры.
+	 * @param max Наибольший размер списка.
+	 *
+	 * @return Количество добавленных кадров.
+	 */
+	public int drainTo(List<SharedFrame> frames, int max) {
+		int added = 0;
+		SharedFrame frame;
+		while (frames.size() < max && (frame = poll()) != null) {
+			frames.add(frame);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Ожидает появления кадров в очереди. Может вызываться только потоком записи.
+	 *
+	 * @param nanos Наибольшее время ожидания в наносекундах, 0 - без ограничения.
+	 *
+	 * @throws InterruptedException Прерывание ожидания.
+	 */
+	public void await(long nanos) throws InterruptedException {
+		waiter = Thread.currentThread();
+		try {
+			if (!closed && queue.isEmpty() && !spilling) {
+				if (nanos > 0)
+					LockSupport.parkNanos(this, nanos);
+				else
+					LockSupport.park(this);
+			}
+		} finally {
+			waiter = null;
+		}
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	/**
+	 * Только для потока записи.
+	 *
+	 * @return Пуста ли очередь.
+	 */
+	public boolean isEmpty() {
+		return closed ? last == null : queue.isEmpty() && !spilling;
+	}
+
+	/**
+	 * @return Закрыта ли очередь для новых кадров.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return Размер кадров в очереди в байтах.
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * @return Размер кадров в буфере переполнения в байтах.
+	 */
+	public long getSpilledBytes() {
+		synchronized (spill) {
+			return spilledBytes;
+		}
+	}
+
+	/**
+	 * Закрывает очередь, оставляя в ней для записи единственный последний кадр.
+	 * Остальные кадры освобождает поток записи.
+	 *
+	 * @param last Последний кадр или {@code null}.
+	 */
+	public void abort(SharedFrame last) {
+		this.last = last;
+		closed = true;
+		wakeUp();
+	}
+
+	/**
+	 * Закрывает очередь и освобождает все кадры в ней. Только для потока записи.
+	 */
+	public void close() {
+		closed = true;
+		clear();
+		SharedFrame last = this.last;
+		this.last = null;
+		if (last != null)
+			last.release();
+	}
+
+	private void clear() {
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			pendingBytes.addAndGet(-entry.size);
+			entry.frame.release();
+		}
+		synchronized (spill) {
+			spill.clear();
+			spilledBytes = 0;
+			spilling = false;
+		}
+	}
+
+	private void wakeUp() {
+		Thread waiter = this.waiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	private boolean reject(SharedFrame frame, long size) {
+		pendingBytes.addAndGet(-size);
+		frame.release();
+		communicator.getWriteStats().recordDrop();
+		return false;
+	}
+
+	private static class Entry {
+		private final SharedFrame frame;
+		private final boolean droppable;
+		private final long size;
+
+		Entry(SharedFrame frame, boolean droppable, long size) {
+			this.frame = frame;
+			this.droppable = droppable;
+			this.size = size;
+		}
+	}
+}
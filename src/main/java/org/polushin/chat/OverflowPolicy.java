@@ -0,0 +1,122 @@
+package org.polushin.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Политика поведения очереди исходящих кадров, когда собеседник не успевает их принимать.
+ * Отправка пакета никогда не блокирует вызывающий поток, вместо этого при превышении бюджета
+ * очереди применяется одно из действий политики.
+ */
+public final class OverflowPolicy {
+
+	public static final long DEFAULT_MAX_PENDING_BYTES = 256 * 1024;
+	public static final long DEFAULT_MAX_SPILL_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Политика по умолчанию: переполнение до 16 МиБ сверх бюджета очереди.
+	 */
+	public static final OverflowPolicy DEFAULT = spill(DEFAULT_MAX_PENDING_BYTES, DEFAULT_MAX_SPILL_BYTES);
+
+	private final Action action;
+	private final long maxPendingBytes;
+	private final long maxSpillBytes;
+	private final long maxStallNanos;
+
+	private OverflowPolicy(Action action, long maxPendingBytes, long maxSpillBytes, long maxStallNanos) {
+		if (maxPendingBytes < 1)
+			throw new IllegalArgumentException("Max pending bytes must be positive!");
+		if (maxSpillBytes < 0)
+			throw new IllegalArgumentException("Max spill bytes cannot be negative!");
+		if (maxStallNanos < 0)
+			throw new IllegalArgumentException("Max stall time cannot be negative!");
+		this.action = action;
+		this.maxPendingBytes = maxPendingBytes;
+		this.maxSpillBytes = maxSpillBytes;
+		this.maxStallNanos = maxStallNanos;
+	}
+
+	/**
+	 * Вытеснение самых старых сообщений чата из очереди, превысившей бюджет.
+	 * Если очередь превысила бюджет вдвое, новые сообщения чата отбрасываются,
+	 * а на остальных пакетах соединение разрывается.
+	 *
+	 * @param maxPendingBytes Бюджет очереди в байтах.
+	 *
+	 * @return Политика.
+	 */
+	public static OverflowPolicy dropOldest(long maxPendingBytes) {
+		return new OverflowPolicy(Action.DROP_OLDEST, maxPendingBytes, maxPendingBytes, 0);
+	}
+
+	/**
+	 * Разрыв соединения при превышении бюджета очереди либо когда очередь не разбирается дольше заданного времени.
+	 *
+	 * @param maxPendingBytes Бюджет очереди в байтах.
+	 * @param maxStall Наибольшее время без записи при непустой очереди, 0 - без ограничения.
+	 * @param unit Единица измерения времени.
+	 *
+	 * @return Политика.
+	 */
+	public static OverflowPolicy disconnect(long maxPendingBytes, long maxStall, TimeUnit unit) {
+		if (unit == null)
+			throw new IllegalArgumentException("Time unit cannot be null!");
+		return new OverflowPolicy(Action.DISCONNECT, maxPendingBytes, 0, unit.toNanos(maxStall));
+	}
+
+	/**
+	 * Перенос кадров сверх бюджета в ограниченный буфер переполнения. Кадры копируются в буфер,
+	 * не удерживая разделяемые кадры рассылок, и возвращаются в очередь по мере ее разбора.
+	 * Соединение разрывается только при заполнении буфера переполнения.
+	 *
+	 * @param maxPendingBytes Бюджет очереди в байтах.
+	 * @param maxSpillBytes Размер буфера переполнения в байтах.
+	 *
+	 * @return Политика.
+	 */
+	public static OverflowPolicy spill(long maxPendingBytes, long maxSpillBytes) {
+		return new OverflowPolicy(Action.SPILL, maxPendingBytes, maxSpillBytes, 0);
+	}
+
+	/**
+	 * @return Действие при превышении бюджета.
+	 */
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * @return Бюджет очереди в байтах.
+	 */
+	public long getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	/**
+	 * @return Сколько байт очередь может удерживать сверх бюджета.
+	 */
+	public long getMaxSpillBytes() {
+		return maxSpillBytes;
+	}
+
+	/**
+	 * @return Наибольшее время без записи при непустой очереди в наносекундах, 0 - без ограничения.
+	 */
+	public long getMaxStallNanos() {
+		return maxStallNanos;
+	}
+
+	@Override
+	public String toString() {
+		return action + " (" + maxPendingBytes + " bytes, spill " + maxSpillBytes + " bytes, stall " +
+				TimeUnit.NANOSECONDS.toMillis(maxStallNanos) + " ms)";
+	}
+
+	/**
+	 * Действие при превышении бюджета очереди.
+	 */
+	public enum Action {
+		DROP_OLDEST,
+		DISCONNECT,
+		SPILL
+	}
+}
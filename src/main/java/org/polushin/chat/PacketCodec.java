@@ -0,0 +1,128 @@
+package org.polushin.chat;
+
+import org.polushin.chat.protocol.BinaryCodec;
+import org.polushin.chat.protocol.BinaryOutput;
+import org.polushin.chat.protocol.JsonCodec;
+import org.polushin.chat.protocol.Packet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодирование пакетов в кадры протокола.
+ * Кадр состоит из длины тела (4 байта, big-endian) и тела, закодированного
+ * в соответствии с типом коммуникации. Старший бит длины помечает тело, сжатое {@link FrameCompressor}.
+ */
+public final class PacketCodec {
+
+	public static final int HEADER_SIZE = Integer.BYTES;
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	public static final int COMPRESSED_FLAG = 0x80000000;
+
+	private PacketCodec() {
+	}
+
+	/**
+	 * @param length Длина тела кадра из заголовка.
+	 *
+	 * @return Допустима ли такая длина тела.
+	 */
+	public static boolean isValidLength(int length) {
+		return length >= 0 && length <= MAX_FRAME_SIZE;
+	}
+
+	/**
+	 * @param header Заголовок кадра.
+	 *
+	 * @return Длина тела кадра без флага сжатия.
+	 */
+	public static int payloadLength(int header) {
+		return header & ~COMPRESSED_FLAG;
+	}
+
+	/**
+	 * @param header Заголовок кадра.
+	 *
+	 * @return Сжато ли тело кадра.
+	 */
+	public static boolean isCompressed(int header) {
+		return (header & COMPRESSED_FLAG) != 0;
+	}
+
+	/**
+	 * Кодирует пакет в кадр вместе с заголовком.
+	 *
+	 * @param packet Кодируемый пакет.
+	 * @param type Тип коммуникации.
+	 *
+	 * @return Буфер, готовый к записи. После записи буфер следует вернуть в {@link BufferPool}.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
+	 */
+	public static ByteBuffer encodeFrame(Packet packet, ProtocolCommunicator.CommunicateType type) throws
+			IOException {
+		BinaryOutput out = new BinaryOutput();
+		out.putInt(0);
+		try {
+			switch (type) {
+				case BINARY:
+					BinaryCodec.encode(packet, out);
+					break;
+				case BYTES:
+					try (ObjectOutputStream stream = new ObjectOutputStream(out.asOutputStream())) {
+						packet.toBytesStream(stream);
+					}
+					break;
+				case JSON:
+					JsonCodec.encode(packet, out);
+					break;
+				default:
+					throw new IllegalStateException("Unknown communication type!");
+			}
+		} catch (IOException e) {
+			BufferPool.release(out.finish());
+			throw e;
+		} catch (IllegalArgumentException e) {
+			BufferPool.release(out.finish());
+			throw new IOException(e);
+		}
+		ByteBuffer frame = out.finish();
+		int length = frame.remaining() - HEADER_SIZE;
+		if (!isValidLength(length)) {
+			BufferPool.release(frame);
+			throw new IOException("Packet " + packet.getType() + " is too large: " + length);
+		}
+		frame.putInt(0, length);
+		return frame;
+	}
+
+	/**
+	 * Разбирает тело кадра.
+	 *
+	 * @param payload Тело кадра.
+	 * @param type Тип коммуникации.
+	 *
+	 * @return Принятый пакет.
+	 *
+	 * @throws Packet.InvalidPacketException Ошибка разбора пакета.
+	 */
+	public static Packet decode(ByteBuffer payload, ProtocolCommunicator.CommunicateType type) throws
+			Packet.InvalidPacketException {
+		switch (type) {
+			case BINARY:
+				return BinaryCodec.decode(payload);
+			case BYTES:
+				try (ObjectInputStream stream = new ObjectInputStream(
+						new ByteArrayInputStream(payload.array(), payload.arrayOffset() + payload.position(),
+						                         payload.remaining()))) {
+					return Packet.fromBytesStream(stream);
+				} catch (IOException e) {
+					throw new Packet.InvalidPacketException(e);
+				}
+			case JSON:
+				return JsonCodec.decode(payload);
+			default:
+				throw new IllegalStateException("Unknown communication type!");
+		}
+	}
+}
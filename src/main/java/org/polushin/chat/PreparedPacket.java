@@ -0,0 +1,160 @@
+package org.polushin.chat;
+
+import org.polushin.chat.protocol.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Пакет для рассылки множеству получателей.
+ * Кадр пакета кодируется один раз для каждого типа взаимодействия, а сжатый кадр - один раз для каждого
+ * типа взаимодействия и порога сжатия. Кадры разделяются всеми получателями.
+ * Готовые кадры выдаются без блокировки, поэтому параллельная рассылка не выстраивает получателей
+ * в очередь на мониторе пакета, а кодирование и сжатие выполняются под блокировкой один раз.
+ * После рассылки подготовленный пакет необходимо освободить.
+ */
+public class PreparedPacket {
+
+	private static final int TYPES = ProtocolCommunicator.CommunicateType.values().length;
+	private static final int LEGACY_FRAME = TYPES;
+
+	private final Packet packet;
+	private final AtomicReferenceArray<SharedFrame> frames = new AtomicReferenceArray<>(LEGACY_FRAME + 1);
+	private final ConcurrentHashMap<Long, CompressedFrame> compressed = new ConcurrentHashMap<>();
+
+	private volatile boolean released;
+
+	/**
+	 * @param packet Рассылаемый пакет.
+	 */
+	public PreparedPacket(Packet packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		this.packet = packet;
+	}
+
+	public Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * Возвращает кадр пакета для коммуникатора, кодируя его при первом запросе.
+	 * Сжатие кадра учитывается в статистике каждого получателя, а время сжатия - только у первого из них.
+	 * Вызывающий становится владельцем кадра и должен освободить его после записи.
+	 *
+	 * @param communicator Коммуникатор получателя.
+	 * @param type Тип коммуникации.
+	 *
+	 * @return Кадр пакета.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
+	 */
+	SharedFrame getFrame(ProtocolCommunicator communicator, ProtocolCommunicator.CommunicateType type)
+			throws IOException {
+		checkNotReleased();
+		if (communicator.isLegacyFraming())
+			return getFrame(LEGACY_FRAME, communicator, type).retain();
+		SharedFrame frame = getFrame(type.ordinal(), communicator, type);
+		int threshold = communicator.getCompressionThreshold();
+		int length = frame.size() - PacketCodec.HEADER_SIZE;
+		if (threshold < 0 || length <= threshold)
+			return frame.retain();
+		long key = (long) type.ordinal() << Integer.SIZE | threshold;
+		CompressedFrame entry = compressed.get(key);
+		long nanos = 0;
+		if (entry == null) {
+			synchronized (this) {
+				checkNotReleased();
+				entry = compressed.get(key);
+				if (entry == null) {
+					entry = compress(frame);
+					compressed.put(key, entry);
+					nanos = entry.nanos;
+				}
+			}
+		}
+		communicator.getCompressionStats().recordCompression(length, entry.compressedLength, nanos);
+		return entry.frame.retain();
+	}
+
+	/**
+	 * @return Кадр в ячейке, закодированный при первом запросе. Кадр остается во владении пакета.
+	 */
+	private SharedFrame getFrame(int index, ProtocolCommunicator communicator,
+	                             ProtocolCommunicator.CommunicateType type) throws IOException {
+		SharedFrame frame = frames.get(index);
+		if (frame != null)
+			return frame;
+		synchronized (this) {
+			checkNotReleased();
+			frame = frames.get(index);
+			if (frame == null) {
+				frame = new SharedFrame(index == LEGACY_FRAME ? communicator.encodeFrame(packet, type) :
+				                        PacketCodec.encodeFrame(packet, type));
+				frames.set(index, frame);
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * Кадры освобожденного пакета не создаются, иначе они не будут освобождены.
+	 */
+	private void checkNotReleased() {
+		if (released)
+			throw new IllegalStateException("Prepared packet is already released!");
+	}
+
+	/**
+	 * Сжимает копию кадра, оставляя исходный кадр для получателей без сжатия.
+	 */
+	private static CompressedFrame compress(SharedFrame frame) {
+		ByteBuffer copy = BufferPool.acquire(frame.size());
+		copy.put(frame.view()).flip();
+		CompressionStats stats = new CompressionStats();
+		long start = System.nanoTime();
+		ByteBuffer out = FrameCompressor.compress(copy, stats);
+		long nanos = System.nanoTime() - start;
+		// Невыгодное сжатие возвращает копию без изменений: получатели используют исходный кадр.
+		if (out == copy) {
+			BufferPool.release(copy);
+			return new CompressedFrame(frame.retain(), -1, nanos);
+		}
+		return new CompressedFrame(new SharedFrame(out), out.remaining() - PacketCodec.HEADER_SIZE, nanos);
+	}
+
+	/**
+	 * Освобождает закодированные кадры. Уже поставленные в очереди кадры остаются действительными.
+	 * Вызывается после окончания рассылки.
+	 */
+	public synchronized void release() {
+		if (released)
+			return;
+		released = true;
+		for (int i = 0; i < frames.length(); i++) {
+			SharedFrame frame = frames.getAndSet(i, null);
+			if (frame != null)
+				frame.release();
+		}
+		for (CompressedFrame entry : compressed.values())
+			entry.frame.release();
+		compressed.clear();
+	}
+
+	/**
+	 * Сжатый кадр вместе с результатом сжатия для статистики получателей.
+	 */
+	private static class CompressedFrame {
+		private final SharedFrame frame;
+		private final int compressedLength;
+		private final long nanos;
+
+		CompressedFrame(SharedFrame frame, int compressedLength, long nanos) {
+			this.frame = frame;
+			this.compressedLength = compressedLength;
+			this.nanos = nanos;
+		}
+	}
+}
@@ -1,54 +1,56 @@
 package org.polushin.chat;
 
-import com.google.gson.Gson;
+import org.polushin.chat.protocol.JsonCodec;
 import org.polushin.chat.protocol.Packet;
+import org.polushin.chat.protocol.PacketFatalError;
+import org.polushin.chat.protocol.PacketNewMessage;
+import org.polushin.chat.protocol.PacketRoomMessage;
 
-import java.io.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Коммуникатор для приема/передачи пакетов между клиетом/сервером.
+ * Способ передачи данных определяется наследником.
  */
-public class ProtocolCommunicator {
+public abstract class ProtocolCommunicator {
 
-	private static final Logger log = Logger.getLogger("Protocol");
+	protected static final Logger log = Logger.getLogger("Protocol");
 
 	static {
 		log.setLevel(Level.WARNING);
 	}
 
-	public static final int PROTOCOL_VERSION = 1;
-	private static final int OUTPUT_QUEUE_SIZE = 10;
-	private static final Gson gson = new Gson();
+	public static final int PROTOCOL_VERSION = 2;
+	public static final int LEGACY_PROTOCOL_VERSION = 1;
+	public static final int DEFAULT_MAX_WRITE_BATCH = 64;
+	public static final String SLOW_CONSUMER_REASON = "Connection is too slow!";
 
-	private final PacketsHandler handler;
-	private final AsyncInputHandler inputHandler;
-	private final AsyncOutputHandler outputHandler;
-	private final BlockingQueue<SendingPacket> outputQueue = new ArrayBlockingQueue<>(OUTPUT_QUEUE_SIZE, true);
+	protected final PacketsHandler handler;
+	protected final OutputQueue outputQueue = new OutputQueue(this);
 
 	private volatile CommunicateType defaultCommunicationType = CommunicateType.JSON;
+	private volatile boolean legacyFraming;
+	private volatile int maxWriteBatch = DEFAULT_MAX_WRITE_BATCH;
+	private volatile long maxWriteLingerNanos;
+	private volatile WriteStats writeStats = new WriteStats();
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DEFAULT;
+	private volatile int compressionThreshold = -1;
+	private volatile CompressionStats compressionStats = new CompressionStats();
+	private final AtomicBoolean slowConsumer = new AtomicBoolean();
+	private volatile Object attachment;
 
 	/**
 	 * @param handler Обработчик входящих пакетов.
-	 * @param input Поток входящих данных.
-	 * @param output Поток исходящих данных
-	 *
-	 * @throws IOException Ошибка при создании потоков коммуникации объектами.
 	 */
-	public ProtocolCommunicator(PacketsHandler handler, InputStream input, OutputStream output) throws IOException {
+	protected ProtocolCommunicator(PacketsHandler handler) {
 		if (handler == null)
 			throw new IllegalArgumentException("Packets handler cannot be null!");
-		if (input == null)
-			throw new IllegalArgumentException("Input stream cannot be null!");
-		if (output == null)
-			throw new IllegalArgumentException("Output stream cannot be null!");
-		log.info("Communicator enabled.");
 		this.handler = handler;
-		outputHandler = new AsyncOutputHandler(output);
-		inputHandler = new AsyncInputHandler(input);
 	}
 
 	/**
@@ -69,9 +71,137 @@ public class ProtocolCommunicator {
 		return defaultCommunicationType;
 	}
 
+	/**
+	 * Настраивает объединение исходящих кадров в одну операцию записи.
+	 *
+	 * @param maxBatch Наибольшее количество кадров в одной записи.
+	 * @param maxLinger Наибольшее время ожидания новых кадров для дополнения записи.
+	 * Ожидание поддерживается только коммуникаторами с отдельным потоком записи.
+	 * @param unit Единица измерения времени ожидания.
+	 */
+	public void setWriteBatching(int maxBatch, long maxLinger, TimeUnit unit) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("Max batch size must be positive!");
+		if (maxLinger < 0)
+			throw new IllegalArgumentException("Max linger time cannot be negative!");
+		maxWriteBatch = maxBatch;
+		maxWriteLingerNanos = unit.toNanos(maxLinger);
+	}
+
+	/**
+	 * @return Наибольшее количество кадров в одной записи.
+	 */
+	public int getMaxWriteBatch() {
+		return maxWriteBatch;
+	}
+
+	/**
+	 * @return Наибольшее время ожидания новых кадров для дополнения записи в наносекундах.
+	 */
+	public long getMaxWriteLingerNanos() {
+		return maxWriteLingerNanos;
+	}
+
+	/**
+	 * Устанавливает статистику записи, например общую для всех соединений сервера.
+	 *
+	 * @param stats Статистика записи.
+	 */
+	public void setWriteStats(WriteStats stats) {
+		if (stats == null)
+			throw new IllegalArgumentException("Stats cannot be null!");
+		writeStats = stats;
+	}
+
+	/**
+	 * @return Статистика записи.
+	 */
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
+
+	/**
+	 * Устанавливает политику переполнения очереди исходящих кадров.
+	 *
+	 * @param policy Политика переполнения.
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException("Policy cannot be null!");
+		overflowPolicy = policy;
+	}
+
+	/**
+	 * @return Политика переполнения очереди исходящих кадров.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Привязывает к коммуникатору объект обработчика, например состояние сессии,
+	 * чтобы получать его по коммуникатору без поиска в таблицах.
+	 *
+	 * @param attachment Привязываемый объект или {@code null}.
+	 */
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * @return Привязанный к коммуникатору объект или {@code null}.
+	 */
+	public Object attachment() {
+		return attachment;
+	}
+
+	/**
+	 * Включает сжатие исходящих кадров, тело которых больше порога.
+	 * Сжатие должно быть согласовано с собеседником пакетами {@link org.polushin.chat.protocol.PacketConnect}
+	 * и {@link org.polushin.chat.protocol.PacketConnectionAccept}.
+	 *
+	 * @param threshold Наименьший размер тела кадра для сжатия.
+	 */
+	public void enableCompression(int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Compression threshold cannot be negative!");
+		compressionThreshold = threshold;
+	}
+
+	/**
+	 * @return Включено ли сжатие кадров.
+	 */
+	public boolean isCompressionEnabled() {
+		return compressionThreshold >= 0;
+	}
+
+	/**
+	 * @return Наименьший размер тела кадра для сжатия, либо -1, если сжатие выключено.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Устанавливает статистику сжатия соединения.
+	 *
+	 * @param stats Статистика сжатия.
+	 */
+	public void setCompressionStats(CompressionStats stats) {
+		if (stats == null)
+			throw new IllegalArgumentException("Stats cannot be null!");
+		compressionStats = stats;
+	}
+
+	/**
+	 * @return Статистика сжатия соединения.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
 	/**
 	 * Добавляет пакет в очередь на отправку.
-	 * Если очередь пакетов заполнена, отправка будет заблокирована.
 	 *
 	 * @param packet Добавляемый пакет.
 	 *
@@ -84,134 +214,196 @@ public class ProtocolCommunicator {
 
 	/**
 	 * Добавляет пакет с определенным типом коммуникации в очередь на отправку.
-	 * Если очередь пакетов заполнена, отправка будет заблокирована.
 	 *
 	 * @param packet Добавляемый пакет.
 	 * @param type Тип коммуникации.
 	 *
 	 * @throws InterruptedException Прерывание отправки.
 	 */
-	public void sendPacket(Packet packet, CommunicateType type) throws InterruptedException {
-		if (packet == null)
-			throw new IllegalArgumentException("Packet cannot be null!");
-		log.info("Putin packet " + packet.getType() + " using " + type);
-		outputQueue.put(new SendingPacket(packet, type));
-		log.info("Queued packet " + packet.getType() + " using " + type);
-	}
+	public abstract void sendPacket(Packet packet, CommunicateType type) throws InterruptedException;
+
+	/**
+	 * Добавляет подготовленный к рассылке пакет в очередь на отправку с текущим типом коммуникации.
+	 * Вместо пакета в очередь ставится его общий для всех получателей кадр.
+	 *
+	 * @param packet Подготовленный пакет.
+	 *
+	 * @throws InterruptedException Прерывание отправки.
+	 */
+	public abstract void sendPacket(PreparedPacket packet) throws InterruptedException;
 
 	/**
-	 * Останавливает обработчиков входящих и исходящих пакетов.
+	 * Начинает прием входящих пакетов. Вызывается один раз после настройки коммуникатора и привязки
+	 * к нему объекта, поэтому обработчик не получает пакетов от не до конца настроенного соединения.
+	 * Пакеты, отправленные до запуска, передаются после него.
 	 */
-	public void close() {
-		inputHandler.interrupt();
-		outputHandler.interrupt();
-		try {
-			inputHandler.join();
-			outputHandler.join();
-		} catch (InterruptedException ignored) {
+	public abstract void start();
+
+	/**
+	 * Приостанавливает чтение входящих пакетов, не блокируя вызывающий поток.
+	 * Уже принятые данные могут быть обработаны. Может вызываться любым потоком.
+	 */
+	public abstract void pauseReading();
+
+	/**
+	 * Возобновляет чтение входящих пакетов, приостановленное {@link #pauseReading()}.
+	 * Может вызываться любым потоком.
+	 */
+	public abstract void resumeReading();
+
+	/**
+	 * Останавливает прием и передачу пакетов.
+	 */
+	public abstract void close();
+
+	/**
+	 * Отбрасывает исходящие кадры, отправляет последним переданный кадр и закрывает соединение.
+	 * Закрытие должно привести к уведомлению обработчика об ошибке ввода-вывода.
+	 *
+	 * @param last Последний кадр или {@code null}.
+	 */
+	protected abstract void abortOutput(SharedFrame last);
+
+	/**
+	 * Ставит кадр в очередь на отправку согласно политике переполнения.
+	 * Если политика требует разорвать соединение, собеседнику отправляется фатальная ошибка.
+	 *
+	 * @param frame Кадр, передаваемый очереди во владение.
+	 * @param packet Пакет кадра.
+	 *
+	 * @return Поставлен ли кадр в очередь или отброшен политикой без разрыва соединения.
+	 */
+	protected boolean queueFrame(SharedFrame frame, Packet packet) {
+		if (outputQueue.offer(frame, packet instanceof PacketNewMessage || packet instanceof PacketRoomMessage))
+			return true;
+		if (slowConsumer.compareAndSet(false, true)) {
+			log.warning("Disconnecting slow consumer with " + outputQueue.getPendingBytes() + " pending and " +
+			            outputQueue.getSpilledBytes() + " spilled bytes.");
+			writeStats.recordDisconnect();
+			SharedFrame fatal = null;
+			try {
+				fatal = new SharedFrame(encodeFrame(new PacketFatalError(SLOW_CONSUMER_REASON),
+				                                    defaultCommunicationType));
+			} catch (IOException e) {
+				log.warning("Cannot encode fatal error: " + e);
+			}
+			abortOutput(fatal);
 		}
+		return false;
 	}
 
 	/**
-	 * Тип коммуникации пакетами.
+	 * @return Использует ли собеседник формат передачи первой версии протокола.
+	 * @see LegacyFraming
 	 */
-	public enum CommunicateType {
-		JSON,
-		BYTES
+	public boolean isLegacyFraming() {
+		return legacyFraming;
 	}
 
 	/**
-	 * Отправляемый пакет совмещенный с его типом.
+	 * Переключает соединение на формат передачи первой версии протокола.
+	 * В этом формате все пакеты передаются в JSON виде.
 	 */
-	private static class SendingPacket {
-		private final Packet packet;
-		private final CommunicateType type;
-
-		public SendingPacket(Packet packet, CommunicateType type) {
-			this.packet = packet;
-			this.type = type;
-		}
+	protected void enableLegacyFraming() {
+		legacyFraming = true;
 	}
 
 	/**
-	 * Асинхронный обработчик входных пакетов.
+	 * Кодирует пакет в кадр с учетом формата передачи соединения.
+	 *
+	 * @param packet Кодируемый пакет.
+	 * @param type Тип коммуникации.
+	 *
+	 * @return Буфер, готовый к записи. После записи буфер следует вернуть в {@link BufferPool}.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
 	 */
-	private class AsyncInputHandler extends AsyncDataHandler {
+	protected ByteBuffer encodeFrame(Packet packet, CommunicateType type) throws IOException {
+		if (legacyFraming)
+			return LegacyFraming.encode(JsonCodec.toJson(packet));
+		ByteBuffer frame = PacketCodec.encodeFrame(packet, type);
+		int threshold = compressionThreshold;
+		if (threshold >= 0 && frame.remaining() - PacketCodec.HEADER_SIZE > threshold)
+			return FrameCompressor.compress(frame, compressionStats);
+		return frame;
+	}
 
-		private final ObjectInputStream inputStream;
+	/**
+	 * @param packet Подготовленный пакет.
+	 *
+	 * @return Кадр подготовленного пакета для текущего типа коммуникации, принадлежащий вызывающему.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
+	 */
+	protected SharedFrame prepareFrame(PreparedPacket packet) throws IOException {
+		return packet.getFrame(this, defaultCommunicationType);
+	}
 
-		AsyncInputHandler(InputStream stream) throws IOException {
-			super(stream);
-			inputStream = new ObjectInputStream(stream);
-			start();
+	/**
+	 * Распаковывает сжатое тело принятого кадра и передает его {@link #receiveFrame(ByteBuffer)}.
+	 *
+	 * @param payload Сжатое тело кадра.
+	 */
+	protected void receiveCompressedFrame(ByteBuffer payload) {
+		if (!isCompressionEnabled()) {
+			handler.invalidPacketException(new Packet.InvalidPacketException("Compression is not negotiated."), this);
+			return;
 		}
-
-		@Override
-		public void run() {
-			while (!interrupted) {
-				try {
-					Packet packet;
-					switch (defaultCommunicationType) {
-						case BYTES:
-							packet = Packet.fromBytesStream(inputStream);
-							break;
-						case JSON:
-							packet = Packet.fromJsonStream(gson, inputStream);
-							break;
-						default:
-							throw new IllegalStateException("Unknown communication type!");
-					}
-
-					log.info("Received packet " + packet.getType() + " using " + defaultCommunicationType);
-
-					handler.inputPacket(packet, ProtocolCommunicator.this);
-				} catch (Packet.InvalidPacketException e) {
-					handler.invalidPacketException(e, ProtocolCommunicator.this);
-				} catch (IOException e) {
-					if (!interrupted)
-						handler.ioException(e, ProtocolCommunicator.this);
-				} catch (InterruptedException ignored) {
-				}
-			}
+		ByteBuffer inflated;
+		try {
+			inflated = FrameCompressor.decompress(payload, compressionStats);
+		} catch (IOException e) {
+			handler.invalidPacketException(new Packet.InvalidPacketException(e), this);
+			return;
+		}
+		try {
+			receiveFrame(inflated);
+		} finally {
+			BufferPool.release(inflated);
 		}
 	}
 
 	/**
-	 * Асинхронный обработчик выходных пакетов.
+	 * Разбирает тело принятого кадра текущим типом взаимодействия и передает пакет обработчику.
+	 *
+	 * @param payload Тело кадра.
 	 */
-	private class AsyncOutputHandler extends AsyncDataHandler {
-
-		private final ObjectOutputStream outputStream;
+	protected void receiveFrame(ByteBuffer payload) {
+		CommunicateType type = defaultCommunicationType;
+		try {
+			receivePacket(PacketCodec.decode(payload, type), type);
+		} catch (Packet.InvalidPacketException e) {
+			handler.invalidPacketException(e, this);
+		}
+	}
 
-		AsyncOutputHandler(OutputStream stream) throws IOException {
-			super(stream);
-			outputStream = new ObjectOutputStream(stream);
-			start();
+	/**
+	 * Разбирает JSON строку, принятую в формате первой версии протокола, и передает пакет обработчику.
+	 *
+	 * @param json Принятая строка.
+	 */
+	protected void receiveLegacyFrame(String json) {
+		try {
+			receivePacket(JsonCodec.decode(json), CommunicateType.JSON);
+		} catch (Packet.InvalidPacketException e) {
+			handler.invalidPacketException(e, this);
 		}
+	}
 
-		@Override
-		public void run() {
-			while (!interrupted) {
-				try {
-					SendingPacket packet = outputQueue.take();
-					log.info("Sending packet " + packet.packet.getType() + " using " + packet.type);
-					switch (packet.type) {
-						case BYTES:
-							packet.packet.toBytesStream(outputStream);
-							break;
-						case JSON:
-							outputStream.writeObject(packet.packet.toJsonStream(gson));
-							break;
-						default:
-							throw new IllegalStateException("Unknown communication type!");
-					}
-					log.info("Packet " + packet.packet.getType() + " sent using " + packet.type);
-				} catch (IOException e) {
-					if (!interrupted)
-						handler.ioException(e, ProtocolCommunicator.this);
-				} catch (InterruptedException ignored) {
-				}
-			}
+	private void receivePacket(Packet packet, CommunicateType type) {
+		log.info("Received packet " + packet.getType() + " using " + type);
+		try {
+			handler.inputPacket(packet, this);
+		} catch (InterruptedException ignored) {
 		}
 	}
+
+	/**
+	 * Тип коммуникации пакетами.
+	 */
+	public enum CommunicateType {
+		JSON,
+		BYTES,
+		BINARY
+	}
 }
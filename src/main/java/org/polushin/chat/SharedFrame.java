@@ -0,0 +1,61 @@
+package org.polushin.chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неизменяемый закодированный кадр, разделяемый несколькими получателями.
+ * Буфер кадра возвращается в {@link BufferPool}, когда последний владелец освобождает кадр.
+ */
+public final class SharedFrame {
+
+	private final ByteBuffer buffer;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * Создает кадр с одним владельцем.
+	 *
+	 * @param buffer Буфер кадра, готовый к чтению.
+	 */
+	public SharedFrame(ByteBuffer buffer) {
+		if (buffer == null)
+			throw new IllegalArgumentException("Buffer cannot be null!");
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Добавляет владельца кадра.
+	 *
+	 * @return Данный кадр.
+	 */
+	public SharedFrame retain() {
+		if (references.getAndIncrement() <= 0)
+			throw new IllegalStateException("Frame is already released!");
+		return this;
+	}
+
+	/**
+	 * Освобождает кадр одним из владельцев.
+	 */
+	public void release() {
+		int left = references.decrementAndGet();
+		if (left == 0)
+			BufferPool.release(buffer);
+		else if (left < 0)
+			throw new IllegalStateException("Frame is already released!");
+	}
+
+	/**
+	 * @return Собственное представление кадра для записи с независимой позицией.
+	 */
+	public ByteBuffer view() {
+		return buffer.duplicate();
+	}
+
+	/**
+	 * @return Размер кадра в байтах.
+	 */
+	public int size() {
+		return buffer.remaining();
+	}
+}
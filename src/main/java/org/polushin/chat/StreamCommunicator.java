@@ -0,0 +1,340 @@
+package org.polushin.chat;
+
+import org.polushin.chat.protocol.Packet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Коммуникатор поверх блокирующих потоков.
+ * Прием и передача пакетов выполняются в отдельных потоках.
+ */
+public class StreamCommunicator extends ProtocolCommunicator {
+
+	private final AsyncInputHandler inputHandler;
+	private final AsyncOutputHandler outputHandler;
+
+	/**
+	 * @param handler Обработчик входящих пакетов.
+	 * @param input Поток входящих данных.
+	 * @param output Поток исходящих данных
+	 */
+	public StreamCommunicator(PacketsHandler handler, InputStream input, OutputStream output) {
+		this(handler, input, output, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * @param handler Обработчик входящих пакетов.
+	 * @param input Поток входящих данных.
+	 * @param output Поток исходящих данных
+	 * @param threadMode Тип потоков обработчиков входящих и исходящих пакетов.
+	 */
+	public StreamCommunicator(PacketsHandler handler, InputStream input, OutputStream output,
+	                          ThreadMode threadMode) {
+		super(handler);
+		if (input == null)
+			throw new IllegalArgumentException("Input stream cannot be null!");
+		if (output == null)
+			throw new IllegalArgumentException("Output stream cannot be null!");
+		if (threadMode == null)
+			throw new IllegalArgumentException("Thread mode cannot be null!");
+		log.info("Communicator enabled.");
+		ThreadFactory threadFactory = threadMode.getFactory();
+		outputHandler = new AsyncOutputHandler(output, threadFactory);
+		inputHandler = new AsyncInputHandler(input, threadFactory);
+	}
+
+	/**
+	 * Запускает потоки записи и чтения соединения.
+	 */
+	@Override
+	public void start() {
+		outputHandler.start();
+		inputHandler.start();
+	}
+
+	/**
+	 * Поток чтения соединения ожидает возобновления перед чтением следующего кадра.
+	 */
+	@Override
+	public void pauseReading() {
+		inputHandler.setPaused(true);
+	}
+
+	@Override
+	public void resumeReading() {
+		inputHandler.setPaused(false);
+	}
+
+	/**
+	 * Кодирует пакет с определенным типом коммуникации и добавляет его в очередь на отправку.
+	 * Отправка не блокируется, переполнение очереди обрабатывается согласно {@link OverflowPolicy}.
+	 *
+	 * @param packet Добавляемый пакет.
+	 * @param type Тип коммуникации.
+	 */
+	@Override
+	public void sendPacket(Packet packet, CommunicateType type) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		SharedFrame frame;
+		try {
+			frame = new SharedFrame(encodeFrame(packet, type));
+		} catch (IOException e) {
+			handler.ioException(e, this);
+			return;
+		}
+		if (queueFrame(frame, packet))
+			log.info("Queued packet " + packet.getType() + " using " + type);
+	}
+
+	/**
+	 * Добавляет кадр подготовленного пакета в очередь на отправку.
+	 * Отправка не блокируется, переполнение очереди обрабатывается согласно {@link OverflowPolicy}.
+	 *
+	 * @param packet Подготовленный пакет.
+	 */
+	@Override
+	public void sendPacket(PreparedPacket packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("Packet cannot be null!");
+		SharedFrame frame;
+		try {
+			frame = prepareFrame(packet);
+		} catch (IOException e) {
+			handler.ioException(e, this);
+			return;
+		}
+		if (queueFrame(frame, packet.getPacket()))
+			log.info("Queued prepared packet " + packet.getPacket().getType());
+	}
+
+	/**
+	 * Останавливает обработчиков входящих и исходящих пакетов.
+	 */
+	@Override
+	public void close() {
+		inputHandler.interrupt();
+		outputHandler.interrupt();
+		try {
+			inputHandler.join();
+			outputHandler.join();
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/**
+	 * Поток записи отправит последний кадр и закроет поток исходящих данных,
+	 * после чего обработчик входных пакетов сообщит об ошибке чтения.
+	 * Если поток записи заблокирован записью, поток данных закрывается сразу.
+	 */
+	@Override
+	protected void abortOutput(SharedFrame last) {
+		outputQueue.abort(last);
+		if (outputHandler.writing)
+			outputHandler.closeStream();
+	}
+
+	/**
+	 * Асинхронный обработчик входных пакетов.
+	 */
+	private class AsyncInputHandler extends AsyncDataHandler {
+
+		private final DataInputStream inputStream;
+		private final Lock pauseLock = new ReentrantLock();
+		private final Condition resumed = pauseLock.newCondition();
+		private boolean paused;
+
+		AsyncInputHandler(InputStream stream, ThreadFactory threadFactory) {
+			super(stream, threadFactory);
+			inputStream = new DataInputStream(new BufferedInputStream(stream));
+		}
+
+		void setPaused(boolean paused) {
+			pauseLock.lock();
+			try {
+				this.paused = paused;
+				if (!paused)
+					resumed.signalAll();
+			} finally {
+				pauseLock.unlock();
+			}
+		}
+
+		/**
+		 * Ожидает возобновления чтения, если оно приостановлено.
+		 *
+		 * @throws InterruptedIOException Обработчик остановлен во время ожидания.
+		 */
+		private void awaitResumed() throws InterruptedIOException {
+			pauseLock.lock();
+			try {
+				while (paused && !interrupted)
+					resumed.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Reading interrupted.");
+			} finally {
+				pauseLock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				int header = inputStream.readInt();
+				if (header == LegacyFraming.STREAM_MAGIC) {
+					enableLegacyFraming();
+					outputHandler.write(new SharedFrame(LegacyFraming.header()));
+					while (!interrupted) {
+						awaitResumed();
+						receiveLegacyFrame(LegacyFraming.read(inputStream));
+					}
+				} else {
+					readFrame(header);
+					while (!interrupted) {
+						awaitResumed();
+						readFrame(inputStream.readInt());
+					}
+				}
+			} catch (IOException e) {
+				if (!interrupted)
+					handler.ioException(e, StreamCommunicator.this);
+			}
+		}
+
+		private void readFrame(int header) throws IOException {
+			int length = PacketCodec.payloadLength(header);
+			if (!PacketCodec.isValidLength(length))
+				throw new StreamCorruptedException("Invalid frame length: " + length);
+			ByteBuffer payload = BufferPool.acquire(length);
+			try {
+				inputStream.readFully(payload.array(), payload.arrayOffset(), length);
+				payload.limit(length);
+				if (PacketCodec.isCompressed(header))
+					receiveCompressedFrame(payload);
+				else
+					receiveFrame(payload);
+			} finally {
+				BufferPool.release(payload);
+			}
+		}
+	}
+
+	/**
+	 * Асинхронный обработчик выходных пакетов.
+	 * Забирает из очереди все накопившиеся кадры и записывает их в поток одной операцией.
+	 */
+	private class AsyncOutputHandler extends AsyncDataHandler {
+
+		private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+		private final DataOutputStream outputStream;
+		private final List<SharedFrame> frames = new ArrayList<>();
+		private volatile boolean writing;
+
+		AsyncOutputHandler(OutputStream stream, ThreadFactory threadFactory) {
+			super(stream, threadFactory);
+			outputStream = new DataOutputStream(new BufferedOutputStream(stream, OUTPUT_BUFFER_SIZE));
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!interrupted) {
+					try {
+						collectBatch();
+						if (!frames.isEmpty())
+							write(frames);
+						log.info("Sent " + frames.size() + " packets");
+					} catch (IOException e) {
+						if (!interrupted)
+							handler.ioException(e, StreamCommunicator.this);
+					} catch (InterruptedException ignored) {
+					} finally {
+						for (SharedFrame frame : frames)
+							frame.release();
+						frames.clear();
+					}
+					if (outputQueue.isClosed() && outputQueue.isEmpty()) {
+						closeStream();
+						return;
+					}
+				}
+			} finally {
+				outputQueue.close();
+			}
+		}
+
+		/**
+		 * Ожидает первый кадр, забирает накопившиеся и, если задано время ожидания,
+		 * дожидается новых кадров до заполнения пачки.
+		 */
+		private void collectBatch() throws InterruptedException {
+			int maxBatch = getMaxWriteBatch();
+			while (outputQueue.drainTo(frames, maxBatch) == 0) {
+				if (outputQueue.isClosed())
+					return;
+				outputQueue.await(0);
+			}
+			long linger = getMaxWriteLingerNanos();
+			if (linger == 0)
+				return;
+			long deadline = System.nanoTime() + linger;
+			while (frames.size() < maxBatch && !outputQueue.isClosed()) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					return;
+				outputQueue.await(left);
+				outputQueue.drainTo(frames, maxBatch);
+			}
+		}
+
+		/**
+		 * Записывает кадр в поток и освобождает его.
+		 * Может вызываться из потока обработчика входных пакетов.
+		 *
+		 * @param frame Кадр.
+		 *
+		 * @throws IOException Ошибка записи.
+		 */
+		void write(SharedFrame frame) throws IOException {
+			try {
+				write(Collections.singletonList(frame));
+			} finally {
+				frame.release();
+			}
+		}
+
+		/**
+		 * Записывает кадры в поток с одним сбросом буфера.
+		 *
+		 * @param frames Кадры.
+		 *
+		 * @throws IOException Ошибка записи.
+		 */
+		private void write(List<SharedFrame> frames) throws IOException {
+			long bytes = 0;
+			synchronized (outputStream) {
+				writing = true;
+				try {
+					for (SharedFrame frame : frames) {
+						ByteBuffer view = frame.view();
+						outputStream.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+						bytes += view.remaining();
+					}
+					outputStream.flush();
+				} finally {
+					writing = false;
+				}
+			}
+			getWriteStats().record(frames.size(), bytes);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.polushin.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Тип потоков, в которых выполняются обработчики блокирующих потоков данных.
+ */
+public enum ThreadMode {
+
+	/**
+	 * Обычные потоки ОС.
+	 */
+	PLATFORM,
+
+	/**
+	 * Виртуальные потоки JVM (Java 21+).
+	 * Блокирующие операции ввода/вывода не занимают поток ОС.
+	 */
+	VIRTUAL;
+
+	private static volatile ThreadFactory virtualFactory;
+
+	/**
+	 * @return Фабрика потоков данного типа.
+	 *
+	 * @throws UnsupportedOperationException Данный тип потоков не поддерживается текущей JVM.
+	 */
+	public ThreadFactory getFactory() {
+		switch (this) {
+			case PLATFORM:
+				return Thread::new;
+			case VIRTUAL:
+				if (virtualFactory == null)
+					virtualFactory = createVirtualFactory();
+				return virtualFactory;
+			default:
+				throw new IllegalStateException("Unknown thread mode!");
+		}
+	}
+
+	/**
+	 * @return Поддерживается ли данный тип потоков текущей JVM.
+	 */
+	public boolean isSupported() {
+		try {
+			getFactory();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Виртуальные потоки отсутствуют в Java 8, поэтому фабрика получается через {@code Thread.ofVirtual()}.
+	 */
+	private static ThreadFactory createVirtualFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM!", e);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.polushin.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика пакетной записи кадров и переполнения очередей исходящих кадров.
+ * Один экземпляр может разделяться несколькими коммуникаторами.
+ */
+public class WriteStats {
+
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder frames = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final AtomicLong maxBatch = new AtomicLong();
+	private final LongAdder drops = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder spills = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+
+	/**
+	 * Учитывает одну операцию записи.
+	 *
+	 * @param frames Количество записанных кадров.
+	 * @param bytes Количество записанных байт.
+	 */
+	public void record(int frames, long bytes) {
+		writes.increment();
+		this.frames.add(frames);
+		this.bytes.add(bytes);
+		long max;
+		while ((max = maxBatch.get()) < frames && !maxBatch.compareAndSet(max, frames))
+			;
+	}
+
+	/**
+	 * Учитывает кадр, не принятый в очередь.
+	 */
+	public void recordDrop() {
+		drops.increment();
+	}
+
+	/**
+	 * Учитывает сообщение чата, вытесненное из очереди.
+	 */
+	public void recordEviction() {
+		evictions.increment();
+	}
+
+	/**
+	 * Учитывает кадр, перенесенный в буфер переполнения.
+	 */
+	public void recordSpill() {
+		spills.increment();
+	}
+
+	/**
+	 * Учитывает соединение, разорванное из-за переполнения очереди.
+	 */
+	public void recordDisconnect() {
+		disconnects.increment();
+	}
+
+	/**
+	 * @return Количество операций записи.
+	 */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * @return Количество записанных кадров.
+	 */
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	/**
+	 * @return Количество записанных байт.
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return Наибольшее количество кадров, записанных одной операцией.
+	 */
+	public long getMaxBatch() {
+		return maxBatch.get();
+	}
+
+	/**
+	 * @return Количество кадров, не принятых в очередь.
+	 */
+	public long getDrops() {
+		return drops.sum();
+	}
+
+	/**
+	 * @return Количество сообщений чата, вытесненных из очереди.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return Количество кадров, перенесенных в буфер переполнения.
+	 */
+	public long getSpills() {
+		return spills.sum();
+	}
+
+	/**
+	 * @return Количество соединений, разорванных из-за переполнения очереди.
+	 */
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	/**
+	 * @return Среднее количество кадров на одну операцию записи.
+	 */
+	public double getAverageBatch() {
+		long writes = getWrites();
+		return writes == 0 ? 0 : (double) getFrames() / writes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d writes, %d frames, %d bytes, average batch %.2f, max batch %d, %d drops, " +
+		                     "%d evictions, %d spills, %d slow disconnects", getWrites(), getFrames(), getBytes(),
+		                     getAverageBatch(), getMaxBatch(), getDrops(), getEvictions(), getSpills(),
+		                     getDisconnects());
+	}
+}
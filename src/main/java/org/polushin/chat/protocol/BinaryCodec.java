@@ -0,0 +1,276 @@
+package org.polushin.chat.protocol;
+
+import org.polushin.chat.ProtocolCommunicator;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Двоичное кодирование пакетов.
+ * Пакет кодируется однобайтовым идентификатором типа и полями пакета в фиксированном порядке.
+ * Строки кодируются в UTF-8 с предшествующей длиной, UUID - двумя long.
+ */
+public final class BinaryCodec {
+
+	private static final Map<Class<? extends Packet>, Entry<?>> byClass = new HashMap<>();
+	private static final Entry<?>[] byId = new Entry<?>[256];
+
+	static {
+		register(1, PacketConnect.class, (packet, out) -> {
+			ProtocolCommunicator.CommunicateType type = packet.getCommunicateType();
+			out.putByte(type == null ? -1 : type.ordinal()).putInt(packet.getVersion())
+			   .putBoolean(packet.isCompression());
+			if (packet.getLogin() != null)
+				out.putString(packet.getLogin()).putLong(packet.getSinceVersion());
+		}, in -> {
+			ProtocolCommunicator.CommunicateType type = getCommunicateType(in);
+			int version = in.getInt();
+			boolean compression = in.hasRemaining() && getBoolean(in);
+			if (!in.hasRemaining())
+				return new PacketConnect(type, version, compression);
+			return new PacketConnect(type, version, compression, getString(in), in.getLong());
+		});
+		register(2, PacketConnectionAccept.class, (packet, out) -> {
+			out.putBoolean(packet.isCompression());
+			// Без входа, возобновления и проверки соединения пакет кодируется так же, как до их появления.
+			boolean heartbeat = packet.getHeartbeatInterval() > 0;
+			if (packet.isLogin() || packet.isResume() || heartbeat)
+				out.putBoolean(packet.isLogin());
+			if (packet.isResume() || heartbeat)
+				out.putBoolean(packet.isResume());
+			if (heartbeat)
+				out.putInt(packet.getHeartbeatInterval());
+		}, in -> new PacketConnectionAccept(in.hasRemaining() && getBoolean(in), in.hasRemaining() && getBoolean(in),
+		                                    in.hasRemaining() && getBoolean(in), in.hasRemaining() ? in.getInt() : 0));
+		register(3, PacketLogin.class, (packet, out) -> out.putString(packet.getUsername()),
+		         in -> new PacketLogin(getString(in)));
+		register(4, PacketSuccessLogin.class, (packet, out) -> out.putUuid(packet.getUuid()),
+		         in -> new PacketSuccessLogin(getUuid(in)));
+		register(5, PacketFatalError.class, (packet, out) -> out.putString(packet.getReason()),
+		         in -> new PacketFatalError(getString(in)));
+		register(6, PacketGetUsersList.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putLong(packet.getSinceVersion()),
+		         in -> new PacketGetUsersList(getUuid(in), in.getLong()));
+		register(7, PacketUsersList.class,
+		         (packet, out) -> out.putLong(packet.getVersion()).putStrings(packet.getUsers()),
+		         in -> new PacketUsersList(in.getLong(), getStrings(in)));
+		register(8, PacketUsersListUpdate.class,
+		         (packet, out) -> out.putBoolean(packet.isNewMember()).putString(packet.getUsername())
+		                             .putLong(packet.getVersion()),
+		         in -> new PacketUsersListUpdate(getBoolean(in), getString(in), in.getLong()));
+		register(9, PacketSendMessage.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putString(packet.getMessage()),
+		         in -> new PacketSendMessage(getUuid(in), getString(in)));
+		register(10, PacketNewMessage.class,
+		         (packet, out) -> out.putString(packet.getSender()).putString(packet.getMessage())
+		                             .putLong(packet.getSeq()),
+		         in -> new PacketNewMessage(getString(in), getString(in), in.hasRemaining() ? in.getLong() : -1));
+		register(11, PacketDisconnect.class, (packet, out) -> out.putUuid(packet.getUuid()),
+		         in -> new PacketDisconnect(getUuid(in)));
+		register(12, PacketGoodbye.class, (packet, out) -> {
+		}, in -> new PacketGoodbye());
+		register(13, PacketHistory.class,
+		         (packet, out) -> putMessages(out.putLong(packet.getFirstSeq()), packet.getMessages()),
+		         in -> new PacketHistory(in.getLong(), getMessages(in)));
+		register(14, PacketGetHistory.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putLong(packet.getBeforeSeq())
+		                             .putInt(packet.getLimit()),
+		         in -> new PacketGetHistory(getUuid(in), in.getLong(), in.getInt()));
+		register(15, PacketHistoryPage.class,
+		         (packet, out) -> putMessages(out.putLong(packet.getFirstSeq()).putBoolean(packet.hasMore()),
+		                                      packet.getMessages()),
+		         in -> new PacketHistoryPage(in.getLong(), getBoolean(in), getMessages(in)));
+		register(16, PacketUsersListDelta.class,
+		         (packet, out) -> out.putLong(packet.getFromVersion()).putLong(packet.getVersion())
+		                             .putStrings(packet.getJoined()).putStrings(packet.getLeft()),
+		         in -> new PacketUsersListDelta(in.getLong(), in.getLong(), getStrings(in), getStrings(in)));
+		register(17, PacketUsersListBatchUpdate.class,
+		         (packet, out) -> out.putLong(packet.getFromVersion()).putLong(packet.getVersion())
+		                             .putStrings(packet.getJoined()).putStrings(packet.getLeft()),
+		         in -> new PacketUsersListBatchUpdate(in.getLong(), in.getLong(), getStrings(in), getStrings(in)));
+		register(18, PacketJoinRoom.class, (packet, out) -> out.putUuid(packet.getUuid()).putString(packet.getRoom()),
+		         in -> new PacketJoinRoom(getUuid(in), getString(in)));
+		register(19, PacketLeaveRoom.class, (packet, out) -> out.putUuid(packet.getUuid()).putString(packet.getRoom()),
+		         in -> new PacketLeaveRoom(getUuid(in), getString(in)));
+		register(20, PacketSendRoomMessage.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putString(packet.getRoom())
+		                             .putString(packet.getMessage()),
+		         in -> new PacketSendRoomMessage(getUuid(in), getString(in), getString(in)));
+		register(21, PacketRoomJoined.class,
+		         (packet, out) -> putMessages(out.putString(packet.getRoom()).putStrings(packet.getMembers()),
+		                                      packet.getHistory()),
+		         in -> new PacketRoomJoined(getString(in), getStrings(in), getMessages(in)));
+		register(22, PacketRoomMessage.class,
+		         (packet, out) -> out.putString(packet.getRoom()).putString(packet.getSender())
+		                             .putString(packet.getMessage()),
+		         in -> new PacketRoomMessage(getString(in), getString(in), getString(in)));
+		register(23, PacketRoomMembersUpdate.class,
+		         (packet, out) -> out.putString(packet.getRoom()).putBoolean(packet.isJoined())
+		                             .putString(packet.getUsername()),
+		         in -> new PacketRoomMembersUpdate(getString(in), getBoolean(in), getString(in)));
+		register(24, PacketSendPrivateMessage.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putString(packet.getTarget())
+		                             .putString(packet.getMessage()),
+		         in -> new PacketSendPrivateMessage(getUuid(in), getString(in), getString(in)));
+		register(25, PacketPrivateMessage.class,
+		         (packet, out) -> out.putString(packet.getSender()).putString(packet.getMessage()),
+		         in -> new PacketPrivateMessage(getString(in), getString(in)));
+		register(26, PacketPrivateMessageError.class,
+		         (packet, out) -> out.putString(packet.getTarget()).putString(packet.getReason()),
+		         in -> new PacketPrivateMessageError(getString(in), getString(in)));
+		register(27, PacketResume.class,
+		         (packet, out) -> out.putUuid(packet.getUuid()).putLong(packet.getLastSeq())
+		                             .putLong(packet.getSinceVersion()),
+		         in -> new PacketResume(getUuid(in), in.getLong(), in.getLong()));
+		register(28, PacketResumeResult.class, (packet, out) -> out.putBoolean(packet.isResumed()),
+		         in -> new PacketResumeResult(getBoolean(in)));
+		register(29, PacketPing.class, (packet, out) -> out.putLong(packet.getTime()),
+		         in -> new PacketPing(in.getLong()));
+		register(30, PacketPong.class, (packet, out) -> out.putLong(packet.getTime()),
+		         in -> new PacketPong(in.getLong()));
+		register(31, PacketMessageError.class, (packet, out) -> out.putString(packet.getReason()),
+		         in -> new PacketMessageError(getString(in)));
+	}
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * Кодирует пакет.
+	 *
+	 * @param packet Кодируемый пакет.
+	 * @param out Буфер для записи.
+	 *
+	 * @throws IllegalArgumentException Для данного типа пакетов не определено двоичное кодирование.
+	 */
+	public static void encode(Packet packet, BinaryOutput out) {
+		Entry<?> entry = byClass.get(packet.getClass());
+		if (entry == null)
+			throw new IllegalArgumentException("Packet " + packet.getType() + " has no binary encoding!");
+		out.putByte(entry.id);
+		entry.write(packet, out);
+	}
+
+	/**
+	 * Разбирает пакет. Буфер должен содержать ровно один пакет.
+	 *
+	 * @param in Буфер для чтения.
+	 *
+	 * @return Разобранный пакет.
+	 *
+	 * @throws Packet.InvalidPacketException Ошибка разбора пакета.
+	 */
+	public static Packet decode(ByteBuffer in) throws Packet.InvalidPacketException {
+		try {
+			int id = in.get() & 0xFF;
+			Entry<?> entry = byId[id];
+			if (entry == null)
+				throw new Packet.InvalidPacketException("Unknown packet id: " + id);
+			Packet packet = entry.reader.read(in);
+			if (in.hasRemaining())
+				throw new Packet.InvalidPacketException(
+						"Unexpected " + in.remaining() + " bytes after packet " + packet.getType());
+			return packet;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new Packet.InvalidPacketException(e);
+		}
+	}
+
+	private static <T extends Packet> void register(int id, Class<T> clazz, Writer<T> writer, Reader reader) {
+		Entry<T> entry = new Entry<>(id, clazz, writer, reader);
+		byClass.put(clazz, entry);
+		byId[id] = entry;
+	}
+
+	private static boolean getBoolean(ByteBuffer in) {
+		return in.get() != 0;
+	}
+
+	private static UUID getUuid(ByteBuffer in) {
+		return new UUID(in.getLong(), in.getLong());
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining())
+			throw new BufferUnderflowException();
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	private static List<String> getStrings(ByteBuffer in) {
+		int size = in.getInt();
+		if (size < 0 || size > in.remaining() / Integer.BYTES)
+			throw new BufferUnderflowException();
+		List<String> values = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			values.add(getString(in));
+		return values;
+	}
+
+	/**
+	 * Сообщения списка передаются вместе с номерами, как и в JSON виде.
+	 */
+	private static void putMessages(BinaryOutput out, List<PacketNewMessage> messages) {
+		out.putInt(messages.size());
+		for (PacketNewMessage message : messages)
+			out.putString(message.getSender()).putString(message.getMessage()).putLong(message.getSeq());
+	}
+
+	private static List<PacketNewMessage> getMessages(ByteBuffer in) {
+		int size = in.getInt();
+		if (size < 0 || size > in.remaining() / (Integer.BYTES * 2 + Long.BYTES))
+			throw new BufferUnderflowException();
+		List<PacketNewMessage> messages = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			messages.add(new PacketNewMessage(getString(in), getString(in), in.getLong()));
+		return messages;
+	}
+
+	private static ProtocolCommunicator.CommunicateType getCommunicateType(ByteBuffer in) {
+		int ordinal = in.get();
+		ProtocolCommunicator.CommunicateType[] types = ProtocolCommunicator.CommunicateType.values();
+		if (ordinal == -1)
+			return null;
+		if (ordinal < 0 || ordinal >= types.length)
+			throw new IllegalArgumentException("Unknown communicate type: " + ordinal);
+		return types[ordinal];
+	}
+
+	/**
+	 * Запись полей пакета.
+	 */
+	@FunctionalInterface
+	private interface Writer<T extends Packet> {
+		void write(T packet, BinaryOutput out);
+	}
+
+	/**
+	 * Чтение полей пакета.
+	 */
+	@FunctionalInterface
+	private interface Reader {
+		Packet read(ByteBuffer in) throws Packet.InvalidPacketException;
+	}
+
+	private static class Entry<T extends Packet> {
+		private final int id;
+		private final Class<T> clazz;
+		private final Writer<T> writer;
+		private final Reader reader;
+
+		Entry(int id, Class<T> clazz, Writer<T> writer, Reader reader) {
+			this.id = id;
+			this.clazz = clazz;
+			this.writer = writer;
+			this.reader = reader;
+		}
+
+		void write(Packet packet, BinaryOutput out) {
+			writer.write(clazz.cast(packet), out);
+		}
+	}
+}
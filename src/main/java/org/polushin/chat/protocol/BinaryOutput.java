@@ -0,0 +1,162 @@
+package org.polushin.chat.protocol;
+
+import org.polushin.chat.BufferPool;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Расширяемый буфер для двоичного кодирования пакетов.
+ * Буферы берутся из {@link BufferPool}.
+ */
+public class BinaryOutput {
+
+	private ByteBuffer buffer = BufferPool.acquire(BufferPool.BUFFER_SIZE);
+
+	public BinaryOutput putByte(int value) {
+		ensure(Byte.BYTES).put((byte) value);
+		return this;
+	}
+
+	public BinaryOutput putBoolean(boolean value) {
+		return putByte(value ? 1 : 0);
+	}
+
+	public BinaryOutput putInt(int value) {
+		ensure(Integer.BYTES).putInt(value);
+		return this;
+	}
+
+	public BinaryOutput putLong(long value) {
+		ensure(Long.BYTES).putLong(value);
+		return this;
+	}
+
+	public BinaryOutput putUuid(UUID uuid) {
+		return putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Записывает строку в UTF-8 с предшествующей длиной в байтах.
+	 *
+	 * @param value Строка.
+	 */
+	public BinaryOutput putString(String value) {
+		putInt(utf8Length(value, 0, value.length()));
+		return putUtf8(value, 0, value.length());
+	}
+
+	/**
+	 * Записывает часть последовательности символов в UTF-8 без длины.
+	 * Непарные суррогаты заменяются на '?'.
+	 *
+	 * @param value Последовательность символов.
+	 * @param start Индекс первого символа.
+	 * @param end Индекс после последнего символа.
+	 */
+	public BinaryOutput putUtf8(CharSequence value, int start, int end) {
+		ensure(utf8Length(value, start, end));
+		byte[] array = buffer.array();
+		int position = buffer.arrayOffset() + buffer.position();
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				array[position++] = (byte) c;
+			else if (c < 0x800) {
+				array[position++] = (byte) (0xC0 | c >> 6);
+				array[position++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, value.charAt(++i));
+				array[position++] = (byte) (0xF0 | code >> 18);
+				array[position++] = (byte) (0x80 | code >> 12 & 0x3F);
+				array[position++] = (byte) (0x80 | code >> 6 & 0x3F);
+				array[position++] = (byte) (0x80 | code & 0x3F);
+			} else {
+				if (Character.isSurrogate(c))
+					c = '?';
+				array[position++] = (byte) (0xE0 | c >> 12);
+				array[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+				array[position++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		buffer.position(position - buffer.arrayOffset());
+		return this;
+	}
+
+	/**
+	 * Записывает коллекцию строк с предшествующим количеством элементов.
+	 *
+	 * @param values Строки.
+	 */
+	public BinaryOutput putStrings(Collection<String> values) {
+		putInt(values.size());
+		for (String value : values)
+			putString(value);
+		return this;
+	}
+
+	/**
+	 * @return Поток, записывающий байты в данный буфер.
+	 */
+	public OutputStream asOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+				putByte(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				ensure(length).put(bytes, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * @return Текущее количество записанных байт.
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * Завершает запись.
+	 *
+	 * @return Буфер с записанными данными, готовый к чтению.
+	 */
+	public ByteBuffer finish() {
+		buffer.flip();
+		return buffer;
+	}
+
+	private ByteBuffer ensure(int bytes) {
+		if (buffer.remaining() < bytes) {
+			int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			grown.put(buffer);
+			BufferPool.release(buffer);
+			buffer = grown;
+		}
+		return buffer;
+	}
+
+	private static int utf8Length(CharSequence value, int start, int end) {
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else
+				length += 3;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,220 @@
+package org.polushin.chat.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Потоковое JSON кодирование пакетов в виде {"type": ..., "value": ...}.
+ * Адаптеры типов пакетов подготавливаются заранее, поэтому пакет кодируется
+ * и разбирается за один проход без промежуточного дерева и поиска класса.
+ */
+public final class JsonCodec {
+
+	private static final Gson gson = new Gson();
+	private static final Map<String, Entry> byName = new ConcurrentHashMap<>();
+	private static final Map<Class<?>, Entry> byClass = new ConcurrentHashMap<>();
+	private static final TypeAdapter<JsonElement> treeAdapter = gson.getAdapter(JsonElement.class);
+
+	static {
+		register(PacketConnect.class);
+		register(PacketConnectionAccept.class);
+		register(PacketLogin.class);
+		register(PacketSuccessLogin.class);
+		register(PacketFatalError.class);
+		register(PacketGetUsersList.class);
+		register(PacketUsersList.class);
+		register(PacketUsersListUpdate.class);
+		register(PacketSendMessage.class);
+		register(PacketNewMessage.class);
+		register(PacketDisconnect.class);
+		register(PacketGoodbye.class);
+		register(PacketHistory.class);
+		register(PacketGetHistory.class);
+		register(PacketHistoryPage.class);
+		register(PacketUsersListDelta.class);
+		register(PacketUsersListBatchUpdate.class);
+		register(PacketJoinRoom.class);
+		register(PacketLeaveRoom.class);
+		register(PacketSendRoomMessage.class);
+		register(PacketRoomJoined.class);
+		register(PacketRoomMessage.class);
+		register(PacketRoomMembersUpdate.class);
+		register(PacketSendPrivateMessage.class);
+		register(PacketPrivateMessage.class);
+		register(PacketPrivateMessageError.class);
+		register(PacketResume.class);
+		register(PacketResumeResult.class);
+		register(PacketPing.class);
+		register(PacketPong.class);
+		register(PacketMessageError.class);
+	}
+
+	private JsonCodec() {
+	}
+
+	/**
+	 * Кодирует пакет в UTF-8 JSON.
+	 *
+	 * @param packet Кодируемый пакет.
+	 * @param out Буфер для записи.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
+	 */
+	public static void encode(Packet packet, BinaryOutput out) throws IOException {
+		write(packet, new Utf8Writer(out));
+	}
+
+	/**
+	 * @param packet Кодируемый пакет.
+	 *
+	 * @return Пакет в виде JSON строки.
+	 *
+	 * @throws IOException Ошибка сериализации пакета.
+	 */
+	public static String toJson(Packet packet) throws IOException {
+		StringWriter writer = new StringWriter();
+		write(packet, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Разбирает пакет из UTF-8 JSON.
+	 *
+	 * @param in Буфер, содержащий ровно один пакет.
+	 *
+	 * @return Разобранный пакет.
+	 *
+	 * @throws Packet.InvalidPacketException Ошибка разбора пакета.
+	 */
+	public static Packet decode(ByteBuffer in) throws Packet.InvalidPacketException {
+		return read(new Utf8Reader(in));
+	}
+
+	/**
+	 * Разбирает пакет из JSON строки.
+	 *
+	 * @param json Сериализованный пакет.
+	 *
+	 * @return Разобранный пакет.
+	 *
+	 * @throws Packet.InvalidPacketException Ошибка разбора пакета.
+	 */
+	public static Packet decode(String json) throws Packet.InvalidPacketException {
+		return read(new StringReader(json));
+	}
+
+	private static void write(Packet packet, Writer out) throws IOException {
+		Entry entry = byClass.get(packet.getClass());
+		if (entry == null)
+			entry = register(packet.getClass());
+		JsonWriter writer = new JsonWriter(out);
+		writer.setSerializeNulls(false);
+		writer.beginObject();
+		writer.name("type").value(entry.name);
+		writer.name("value");
+		entry.write(writer, packet);
+		writer.endObject();
+		writer.flush();
+	}
+
+	/**
+	 * Значение обычно следует за типом и сразу разбирается адаптером.
+	 * Если значение пришло раньше типа, оно временно читается в дерево.
+	 */
+	private static Packet read(Reader in) throws Packet.InvalidPacketException {
+		try {
+			JsonReader reader = new JsonReader(in);
+			Entry entry = null;
+			JsonElement pendingValue = null;
+			Packet packet = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "type":
+						entry = lookup(reader.nextString());
+						if (pendingValue != null)
+							packet = entry.adapter.fromJsonTree(pendingValue);
+						break;
+					case "value":
+						if (entry != null)
+							packet = entry.adapter.read(reader);
+						else
+							pendingValue = treeAdapter.read(reader);
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (entry == null)
+				throw new Packet.InvalidPacketException("Packet type is not specified!");
+			if (packet == null)
+				throw new Packet.InvalidPacketException("Packet " + entry.name + " has no value!");
+			return packet;
+		} catch (IOException | JsonParseException | IllegalStateException | ClassCastException e) {
+			throw new Packet.InvalidPacketException(e);
+		}
+	}
+
+	/**
+	 * Кроме имен типов пакетов допускает полные имена классов пакетов.
+	 */
+	private static Entry lookup(String type) throws Packet.InvalidPacketException {
+		Entry entry = byName.get(type);
+		if (entry != null)
+			return entry;
+		try {
+			Class<?> clazz = Class.forName(type);
+			if (!Packet.class.isAssignableFrom(clazz))
+				throw new Packet.InvalidPacketException("Received object is not Packet!");
+			return register(clazz.asSubclass(Packet.class));
+		} catch (ClassNotFoundException e) {
+			throw new Packet.InvalidPacketException("Unknown packet type: " + type);
+		}
+	}
+
+	private static Entry register(Class<? extends Packet> clazz) {
+		Entry entry = new Entry(typeName(clazz), gson.getAdapter(clazz));
+		byClass.put(clazz, entry);
+		byName.putIfAbsent(entry.name, entry);
+		byName.putIfAbsent(clazz.getName(), entry);
+		return entry;
+	}
+
+	/**
+	 * @see Packet#getType()
+	 */
+	private static String typeName(Class<?> clazz) {
+		if (clazz.getSimpleName().startsWith(Packet.PACKET_PREFIX))
+			return clazz.getSimpleName().substring(Packet.PACKET_PREFIX.length());
+		return clazz.getSimpleName();
+	}
+
+	private static class Entry {
+		private final String name;
+		private final TypeAdapter<? extends Packet> adapter;
+
+		Entry(String name, TypeAdapter<? extends Packet> adapter) {
+			this.name = name;
+			this.adapter = adapter;
+		}
+
+		@SuppressWarnings("unchecked")
+		void write(JsonWriter writer, Packet packet) throws IOException {
+			((TypeAdapter<Packet>) adapter).write(writer, packet);
+		}
+	}
+}
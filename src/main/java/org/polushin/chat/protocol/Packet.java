@@ -3,7 +3,7 @@ package org.polushin.chat.protocol;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -85,7 +85,27 @@ public interface Packet extends Serializable {
 	 */
 	static Packet fromJsonStream(Gson gson, ObjectInputStream stream) throws IOException, InvalidPacketException {
 		try {
-			JsonObject object = gson.fromJson((String) stream.readObject(), JsonObject.class);
+			return fromJson(gson, (String) stream.readObject());
+		} catch (ClassCastException | ClassNotFoundException e) {
+			throw new InvalidPacketException(e);
+		}
+	}
+
+	/**
+	 * Разбирает пакет из JSON строки.
+	 *
+	 * @param gson Парсер JSON.
+	 * @param json Сериализованный пакет.
+	 *
+	 * @return Разобранный пакет.
+	 *
+	 * @throws InvalidPacketException Ошибка разбора пакета.
+	 */
+	static Packet fromJson(Gson gson, String json) throws InvalidPacketException {
+		try {
+			JsonObject object = gson.fromJson(json, JsonObject.class);
+			if (object == null || !object.has("type"))
+				throw new InvalidPacketException("Packet type is not specified!");
 			String type = object.get("type").getAsString();
 			Class<?> clazz;
 			try {
@@ -96,7 +116,7 @@ public interface Packet extends Serializable {
 			if (!Packet.class.isAssignableFrom(clazz))
 				throw new ClassCastException("Received object is not Packet!");
 			return (Packet) gson.fromJson(object.get("value"), clazz);
-		} catch (JsonSyntaxException | ClassCastException | ClassNotFoundException e) {
+		} catch (JsonParseException | IllegalStateException | ClassCastException | ClassNotFoundException e) {
 			throw new InvalidPacketException(e);
 		}
 	}
@@ -6,18 +6,44 @@ import org.polushin.chat.ProtocolCommunicator;
  * Отправитель: клиент
  * Назначение: Уведомляет сервер о версии протокола клиента и о методе общения
  * пакетами, которые хочет клиент. Данный пакет всегда отправляется при
- * подключении и всегда в JSON виде.
+ * подключении и всегда в JSON виде. Также может запросить сжатие больших кадров
+ * и сразу войти в чат, не дожидаясь ответа сервера.
  */
 public class PacketConnect implements Packet {
 
 	private final ProtocolCommunicator.CommunicateType type;
 	private final int version;
+	private final boolean compression;
+	private final String login;
+	private final long sinceVersion;
 
 	/**
 	 * @param type Тип коммуникации пакетами.
 	 */
 	public PacketConnect(ProtocolCommunicator.CommunicateType type) {
-		this(type, ProtocolCommunicator.PROTOCOL_VERSION);
+		this(type, false);
+	}
+
+	/**
+	 * @param type Тип коммуникации пакетами.
+	 * @param compression Запрашивает ли клиент сжатие кадров.
+	 */
+	public PacketConnect(ProtocolCommunicator.CommunicateType type, boolean compression) {
+		this(type, ProtocolCommunicator.PROTOCOL_VERSION, compression);
+	}
+
+	/**
+	 * Запрашивает вход в чат вместе с подключением. Сервер, поддерживающий такой вход, после подтверждения
+	 * подключения сразу отправляет ключ сессии, историю и список онлайн пользователей.
+	 *
+	 * @param type Тип коммуникации пакетами.
+	 * @param compression Запрашивает ли клиент сжатие кадров.
+	 * @param login Имя пользователя.
+	 * @param sinceVersion Известная клиенту версия списка онлайн пользователей, либо 0 для полного списка.
+	 */
+	public PacketConnect(ProtocolCommunicator.CommunicateType type, boolean compression, String login,
+	                     long sinceVersion) {
+		this(type, ProtocolCommunicator.PROTOCOL_VERSION, compression, login, sinceVersion);
 	}
 
 	/**
@@ -27,8 +53,32 @@ public class PacketConnect implements Packet {
 	 * @param version Версия протокола.
 	 */
 	public PacketConnect(ProtocolCommunicator.CommunicateType type, int version) {
+		this(type, version, false);
+	}
+
+	/**
+	 * @param type Тип коммуникации пакетами.
+	 * @param version Версия протокола.
+	 * @param compression Запрашивает ли клиент сжатие кадров.
+	 */
+	public PacketConnect(ProtocolCommunicator.CommunicateType type, int version, boolean compression) {
+		this(type, version, compression, null, 0);
+	}
+
+	/**
+	 * @param type Тип коммуникации пакетами.
+	 * @param version Версия протокола.
+	 * @param compression Запрашивает ли клиент сжатие кадров.
+	 * @param login Имя пользователя для входа вместе с подключением или {@code null}.
+	 * @param sinceVersion Известная клиенту версия списка онлайн пользователей, либо 0 для полного списка.
+	 */
+	public PacketConnect(ProtocolCommunicator.CommunicateType type, int version, boolean compression, String login,
+	                     long sinceVersion) {
 		this.type = type;
 		this.version = version;
+		this.compression = compression;
+		this.login = login;
+		this.sinceVersion = sinceVersion;
 	}
 
 	public ProtocolCommunicator.CommunicateType getCommunicateType() {
@@ -38,4 +88,29 @@ public class PacketConnect implements Packet {
 	public int getVersion() {
 		return version;
 	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return Имя пользователя для входа вместе с подключением или {@code null}.
+	 */
+	public String getLogin() {
+		return login;
+	}
+
+	public long getSinceVersion() {
+		return sinceVersion;
+	}
+
+	/**
+	 * Пакет, принятый в JSON виде, создается без проверок конструктора, поэтому проверяется перед обработкой.
+	 * Версия протокола проверяется сервером отдельно.
+	 *
+	 * @return Валидны ли поля пакета.
+	 */
+	public boolean validate() {
+		return type != null && sinceVersion >= 0;
+	}
 }
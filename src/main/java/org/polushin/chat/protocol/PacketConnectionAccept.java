@@ -3,8 +3,75 @@ package org.polushin.chat.protocol;
 /**
  * Отправитель: сервер
  * Назначение: Уведомляет клиент о том, что сервер принимает условия клиента
- * и готов установить с ним соединение.
+ * и готов установить с ним соединение. Сообщает, включено ли сжатие кадров
+ * и выполняется ли вход по имени, переданному вместе с подключением.
+ * Также сообщает, сохраняет ли сервер сессии для возобновления после разрыва соединения
+ * и с каким интервалом клиент должен подтверждать, что соединение живо.
  */
 public class PacketConnectionAccept implements Packet {
 
+	private final boolean compression;
+	private final boolean login;
+	private final boolean resume;
+	private final int heartbeatInterval;
+
+	public PacketConnectionAccept() {
+		this(false);
+	}
+
+	/**
+	 * @param compression Включено ли сжатие кадров.
+	 */
+	public PacketConnectionAccept(boolean compression) {
+		this(compression, false);
+	}
+
+	/**
+	 * @param compression Включено ли сжатие кадров.
+	 * @param login Выполняет ли сервер вход по имени из {@link PacketConnect}.
+	 */
+	public PacketConnectionAccept(boolean compression, boolean login) {
+		this(compression, login, false);
+	}
+
+	/**
+	 * @param compression Включено ли сжатие кадров.
+	 * @param login Выполняет ли сервер вход по имени из {@link PacketConnect}.
+	 * @param resume Можно ли возобновить сессию пакетом {@link PacketResume} после разрыва соединения.
+	 */
+	public PacketConnectionAccept(boolean compression, boolean login, boolean resume) {
+		this(compression, login, resume, 0);
+	}
+
+	/**
+	 * @param compression Включено ли сжатие кадров.
+	 * @param login Выполняет ли сервер вход по имени из {@link PacketConnect}.
+	 * @param resume Можно ли возобновить сессию пакетом {@link PacketResume} после разрыва соединения.
+	 * @param heartbeatInterval Интервал отправки клиентом пакетов {@link PacketPing} в миллисекундах,
+	 * либо 0, если сервер их не ожидает.
+	 */
+	public PacketConnectionAccept(boolean compression, boolean login, boolean resume, int heartbeatInterval) {
+		if (heartbeatInterval < 0)
+			throw new IllegalArgumentException("Heartbeat interval cannot be negative!");
+		this.compression = compression;
+		this.login = login;
+		this.resume = resume;
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public boolean isLogin() {
+		return login;
+	}
+
+	public boolean isResume() {
+		return resume;
+	}
+
+	public int getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
 }
@@ -0,0 +1,41 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Запрашивает страницу истории сообщений чата, предшествующих заданному сообщению.
+ */
+public class PacketGetHistory implements Packet {
+
+	private final UUID uuid;
+	private final long beforeSeq;
+	private final int limit;
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param beforeSeq Номер сообщения, предшествующие которому запрашиваются.
+	 * @param limit Наибольшее количество сообщений.
+	 */
+	public PacketGetHistory(UUID uuid, long beforeSeq, int limit) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit cannot be negative!");
+		this.uuid = uuid;
+		this.beforeSeq = beforeSeq;
+		this.limit = limit;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public long getBeforeSeq() {
+		return beforeSeq;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+}
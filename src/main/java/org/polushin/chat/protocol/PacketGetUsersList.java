@@ -4,22 +4,36 @@ import java.util.UUID;
 
 /**
  * Отправитель: клиент
- * Назначение: Запрашивает список имен текущих пользователей в чате.
+ * Назначение: Запрашивает список имен текущих пользователей в чате, либо его изменения после заданной версии.
  */
 public class PacketGetUsersList implements Packet {
 
 	private final UUID uuid;
+	private final long sinceVersion;
 
 	/**
 	 * @param uuid Уникальный идентификатор сессии.
 	 */
 	public PacketGetUsersList(UUID uuid) {
+		this(uuid, 0);
+	}
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param sinceVersion Известная клиенту версия списка, либо 0, если требуется полный список.
+	 */
+	public PacketGetUsersList(UUID uuid, long sinceVersion) {
 		if (uuid == null)
 			throw new IllegalArgumentException("UUID cannot be null!");
 		this.uuid = uuid;
+		this.sinceVersion = sinceVersion;
 	}
 
 	public UUID getUuid() {
 		return uuid;
 	}
+
+	public long getSinceVersion() {
+		return sinceVersion;
+	}
 }
@@ -0,0 +1,32 @@
+package org.polushin.chat.protocol;
+
+import java.util.List;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Передает клиенту после входа в чат последние сообщения чата одним пакетом.
+ */
+public class PacketHistory implements Packet {
+
+	private final long firstSeq;
+	private final List<PacketNewMessage> messages;
+
+	/**
+	 * @param firstSeq Номер первого сообщения, либо номер следующего сообщения чата, если история пуста.
+	 * @param messages Сообщения чата.
+	 */
+	public PacketHistory(long firstSeq, List<PacketNewMessage> messages) {
+		if (messages == null)
+			throw new IllegalArgumentException("Messages cannot be null!");
+		this.firstSeq = firstSeq;
+		this.messages = messages;
+	}
+
+	public long getFirstSeq() {
+		return firstSeq;
+	}
+
+	public List<PacketNewMessage> getMessages() {
+		return messages;
+	}
+}
@@ -0,0 +1,39 @@
+package org.polushin.chat.protocol;
+
+import java.util.List;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Возвращает страницу истории сообщений чата.
+ */
+public class PacketHistoryPage implements Packet {
+
+	private final long firstSeq;
+	private final boolean more;
+	private final List<PacketNewMessage> messages;
+
+	/**
+	 * @param firstSeq Номер первого сообщения страницы, либо номер запрошенного сообщения, если страница пуста.
+	 * @param more Есть ли в истории более ранние сообщения.
+	 * @param messages Сообщения чата в порядке отправки.
+	 */
+	public PacketHistoryPage(long firstSeq, boolean more, List<PacketNewMessage> messages) {
+		if (messages == null)
+			throw new IllegalArgumentException("Messages cannot be null!");
+		this.firstSeq = firstSeq;
+		this.more = more;
+		this.messages = messages;
+	}
+
+	public long getFirstSeq() {
+		return firstSeq;
+	}
+
+	public boolean hasMore() {
+		return more;
+	}
+
+	public List<PacketNewMessage> getMessages() {
+		return messages;
+	}
+}
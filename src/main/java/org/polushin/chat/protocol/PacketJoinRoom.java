@@ -0,0 +1,50 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Подключает клиента к комнате чата, создавая ее при необходимости.
+ * Валидными считаются названия, соответствующие: [_-0-9a-zA-Z]+ и не длиннее 20 символов.
+ */
+public class PacketJoinRoom implements Packet {
+
+	public static final Pattern VALID_ROOM = Pattern.compile("[_\\-0-9a-zA-Z]+");
+	public static final int VALID_LENGTH = 20;
+
+	private final UUID uuid;
+	private final String room;
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param room Название комнаты.
+	 */
+	public PacketJoinRoom(UUID uuid, String room) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		if (room.length() > VALID_LENGTH)
+			throw new IllegalArgumentException("Room must be no longer than " + VALID_LENGTH + " characters.");
+		if (!VALID_ROOM.matcher(room).matches())
+			throw new IllegalArgumentException("Room must be processed by: " + VALID_ROOM.pattern());
+		this.uuid = uuid;
+		this.room = room;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * @return Валидно ли название комнаты.
+	 */
+	public boolean validateRoom() {
+		return room != null && room.length() <= VALID_LENGTH && VALID_ROOM.matcher(room).matches();
+	}
+}
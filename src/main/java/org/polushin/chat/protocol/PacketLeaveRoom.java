@@ -0,0 +1,34 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Отключает клиента от комнаты чата.
+ */
+public class PacketLeaveRoom implements Packet {
+
+	private final UUID uuid;
+	private final String room;
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param room Название комнаты.
+	 */
+	public PacketLeaveRoom(UUID uuid, String room) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		this.uuid = uuid;
+		this.room = room;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+}
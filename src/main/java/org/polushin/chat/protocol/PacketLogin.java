@@ -36,6 +36,6 @@ public class PacketLogin implements Packet {
 	 * @return Валидно ли имя пользователя.
 	 */
 	public boolean validateUsername() {
-		return username.length() <= VALID_LENGTH && VALID_USERNAME.matcher(username).matches();
+		return username != null && username.length() <= VALID_LENGTH && VALID_USERNAME.matcher(username).matches();
 	}
 }
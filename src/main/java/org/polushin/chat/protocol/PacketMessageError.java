@@ -0,0 +1,24 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Уведомляет отправителя о том, что сообщение чата не сохранено и не разослано.
+ * В отличие от {@link PacketFatalError} не закрывает соединение.
+ */
+public class PacketMessageError implements Packet {
+
+	private final String reason;
+
+	/**
+	 * @param reason Причина ошибки.
+	 */
+	public PacketMessageError(String reason) {
+		if (reason == null)
+			throw new IllegalArgumentException("Reason cannot be null!");
+		this.reason = reason;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+}
@@ -8,18 +8,32 @@ public class PacketNewMessage implements Packet {
 
 	private final String sender;
 	private final String message;
+	private final long seq;
 
 	/**
+	 * Создает сообщение без номера, например в составе пакета истории, номера сообщений которого
+	 * определяются номером первого из них.
+	 *
 	 * @param sender Отправитель сообщения.
 	 * @param message Сообщение.
 	 */
 	public PacketNewMessage(String sender, String message) {
+		this(sender, message, -1);
+	}
+
+	/**
+	 * @param sender Отправитель сообщения.
+	 * @param message Сообщение.
+	 * @param seq Номер сообщения в истории чата, либо -1, если номер неизвестен.
+	 */
+	public PacketNewMessage(String sender, String message, long seq) {
 		if (sender == null)
 			throw new IllegalArgumentException("Sender cannot be null!");
 		if (message == null)
 			throw new IllegalArgumentException("Message cannot be null!");
 		this.message = message;
 		this.sender = sender;
+		this.seq = seq;
 	}
 
 	public String getSender() {
@@ -29,4 +43,11 @@ public class PacketNewMessage implements Packet {
 	public String getMessage() {
 		return message;
 	}
+
+	/**
+	 * @return Номер сообщения в истории чата, либо -1, если номер неизвестен.
+	 */
+	public long getSeq() {
+		return seq;
+	}
 }
@@ -0,0 +1,23 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Подтверждает, что соединение живо. Отправляется с интервалом, сообщенным сервером
+ * в {@link PacketConnectionAccept}. Сервер отвечает {@link PacketPong}, а соединения клиентов,
+ * переставших их отправлять, закрывает.
+ */
+public class PacketPing implements Packet {
+
+	private final long time;
+
+	/**
+	 * @param time Время отправки по часам клиента, возвращаемое в ответе.
+	 */
+	public PacketPing(long time) {
+		this.time = time;
+	}
+
+	public long getTime() {
+		return time;
+	}
+}
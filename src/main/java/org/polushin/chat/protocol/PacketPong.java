@@ -0,0 +1,21 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Ответ на {@link PacketPing}.
+ */
+public class PacketPong implements Packet {
+
+	private final long time;
+
+	/**
+	 * @param time Время отправки из пакета {@link PacketPing}.
+	 */
+	public PacketPong(long time) {
+		this.time = time;
+	}
+
+	public long getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,32 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Доставляет клиенту личное сообщение.
+ */
+public class PacketPrivateMessage implements Packet {
+
+	private final String sender;
+	private final String message;
+
+	/**
+	 * @param sender Отправитель сообщения.
+	 * @param message Сообщение.
+	 */
+	public PacketPrivateMessage(String sender, String message) {
+		if (sender == null)
+			throw new IllegalArgumentException("Sender cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		this.sender = sender;
+		this.message = message;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
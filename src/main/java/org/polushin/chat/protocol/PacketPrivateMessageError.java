@@ -0,0 +1,33 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Уведомляет отправителя о том, что личное сообщение не доставлено.
+ * В отличие от {@link PacketFatalError} не закрывает соединение.
+ */
+public class PacketPrivateMessageError implements Packet {
+
+	private final String target;
+	private final String reason;
+
+	/**
+	 * @param target Имя получателя.
+	 * @param reason Причина ошибки.
+	 */
+	public PacketPrivateMessageError(String target, String reason) {
+		if (target == null)
+			throw new IllegalArgumentException("Target cannot be null!");
+		if (reason == null)
+			throw new IllegalArgumentException("Reason cannot be null!");
+		this.target = target;
+		this.reason = reason;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+}
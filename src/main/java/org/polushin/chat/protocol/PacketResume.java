@@ -0,0 +1,49 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Возобновляет сессию, соединение которой было разорвано, в новом соединении.
+ * Отправляется вместо входа сразу после {@link PacketConnect}. Сервер отвечает {@link PacketResumeResult}.
+ */
+public class PacketResume implements Packet {
+
+	private final UUID uuid;
+	private final long lastSeq;
+	private final long sinceVersion;
+
+	/**
+	 * @param uuid Уникальный идентификатор возобновляемой сессии.
+	 * @param lastSeq Номер последнего полученного клиентом сообщения чата.
+	 * @param sinceVersion Известная клиенту версия списка онлайн пользователей, либо 0 для полного списка.
+	 */
+	public PacketResume(UUID uuid, long lastSeq, long sinceVersion) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		this.uuid = uuid;
+		this.lastSeq = lastSeq;
+		this.sinceVersion = sinceVersion;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public long getLastSeq() {
+		return lastSeq;
+	}
+
+	public long getSinceVersion() {
+		return sinceVersion;
+	}
+
+	/**
+	 * Пакет, принятый в JSON виде, создается без проверок конструктора, поэтому проверяется перед обработкой.
+	 *
+	 * @return Валидны ли поля пакета.
+	 */
+	public boolean validate() {
+		return uuid != null && lastSeq >= -1 && sinceVersion >= 0;
+	}
+}
@@ -0,0 +1,23 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Сообщает, возобновлена ли сессия. После возобновления сервер отправляет пропущенные
+ * клиентом сообщения и изменения списка онлайн пользователей. Если сессия не возобновлена,
+ * соединение остается открытым и клиент может войти в чат пакетом {@link PacketLogin}.
+ */
+public class PacketResumeResult implements Packet {
+
+	private final boolean resumed;
+
+	/**
+	 * @param resumed Возобновлена ли сессия.
+	 */
+	public PacketResumeResult(boolean resumed) {
+		this.resumed = resumed;
+	}
+
+	public boolean isResumed() {
+		return resumed;
+	}
+}
@@ -0,0 +1,44 @@
+package org.polushin.chat.protocol;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Подтверждает подключение к комнате чата и передает ее участников и последние сообщения.
+ */
+public class PacketRoomJoined implements Packet {
+
+	private final String room;
+	private final Collection<String> members;
+	private final List<PacketNewMessage> history;
+
+	/**
+	 * @param room Название комнаты.
+	 * @param members Участники комнаты.
+	 * @param history Последние сообщения комнаты в порядке отправки.
+	 */
+	public PacketRoomJoined(String room, Collection<String> members, List<PacketNewMessage> history) {
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		if (members == null)
+			throw new IllegalArgumentException("Members cannot be null!");
+		if (history == null)
+			throw new IllegalArgumentException("History cannot be null!");
+		this.room = room;
+		this.members = members;
+		this.history = history;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public Collection<String> getMembers() {
+		return members;
+	}
+
+	public List<PacketNewMessage> getHistory() {
+		return history;
+	}
+}
@@ -0,0 +1,39 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Уведомляет участников комнаты чата о подключении или отключении участника.
+ */
+public class PacketRoomMembersUpdate implements Packet {
+
+	private final String room;
+	private final boolean joined;
+	private final String username;
+
+	/**
+	 * @param room Название комнаты.
+	 * @param joined Подключился участник или отключился.
+	 * @param username Имя участника.
+	 */
+	public PacketRoomMembersUpdate(String room, boolean joined, String username) {
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		if (username == null)
+			throw new IllegalArgumentException("Username cannot be null!");
+		this.room = room;
+		this.joined = joined;
+		this.username = username;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public boolean isJoined() {
+		return joined;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+}
@@ -0,0 +1,41 @@
+package org.polushin.chat.protocol;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Уведомляет клиент о новом сообщении в комнате чата.
+ */
+public class PacketRoomMessage implements Packet {
+
+	private final String room;
+	private final String sender;
+	private final String message;
+
+	/**
+	 * @param room Название комнаты.
+	 * @param sender Отправитель сообщения.
+	 * @param message Сообщение.
+	 */
+	public PacketRoomMessage(String room, String sender, String message) {
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		if (sender == null)
+			throw new IllegalArgumentException("Sender cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		this.room = room;
+		this.sender = sender;
+		this.message = message;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
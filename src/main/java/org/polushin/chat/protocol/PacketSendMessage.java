@@ -31,4 +31,13 @@ public class PacketSendMessage implements Packet {
 	public String getMessage() {
 		return message;
 	}
+
+	/**
+	 * Пакет, принятый в JSON виде, создается без проверок конструктора, поэтому проверяется перед обработкой.
+	 *
+	 * @return Валидны ли поля пакета.
+	 */
+	public boolean validate() {
+		return uuid != null && message != null;
+	}
 }
@@ -0,0 +1,43 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Отправляет личное сообщение пользователю чата.
+ */
+public class PacketSendPrivateMessage implements Packet {
+
+	private final UUID uuid;
+	private final String target;
+	private final String message;
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param target Имя получателя.
+	 * @param message Сообщение.
+	 */
+	public PacketSendPrivateMessage(UUID uuid, String target, String message) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (target == null)
+			throw new IllegalArgumentException("Target cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		this.uuid = uuid;
+		this.target = target;
+		this.message = message;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,43 @@
+package org.polushin.chat.protocol;
+
+import java.util.UUID;
+
+/**
+ * Отправитель: клиент
+ * Назначение: Отправляет сообщение в комнату чата, к которой подключен клиент.
+ */
+public class PacketSendRoomMessage implements Packet {
+
+	private final UUID uuid;
+	private final String room;
+	private final String message;
+
+	/**
+	 * @param uuid Уникальный идентификатор сессии.
+	 * @param room Название комнаты.
+	 * @param message Сообщение.
+	 */
+	public PacketSendRoomMessage(UUID uuid, String room, String message) {
+		if (uuid == null)
+			throw new IllegalArgumentException("UUID cannot be null!");
+		if (room == null)
+			throw new IllegalArgumentException("Room cannot be null!");
+		if (message == null)
+			throw new IllegalArgumentException("Message cannot be null!");
+		this.uuid = uuid;
+		this.room = room;
+		this.message = message;
+	}
+
+	public UUID getUuid() {
+		return uuid;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
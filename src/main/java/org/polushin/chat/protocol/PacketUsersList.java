@@ -8,17 +8,24 @@ import java.util.Collection;
  */
 public class PacketUsersList implements Packet {
 
+	private final long version;
 	private final Collection<String> users;
 
 	/**
+	 * @param version Версия списка.
 	 * @param users Список онлайн пользователей.
 	 */
-	public PacketUsersList(Collection<String> users) {
+	public PacketUsersList(long version, Collection<String> users) {
 		if (users == null)
 			throw new IllegalArgumentException("Users set cannot be null!");
+		this.version = version;
 		this.users = users;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
 	public Collection<String> getUsers() {
 		return users;
 	}
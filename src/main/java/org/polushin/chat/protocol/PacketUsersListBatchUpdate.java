@@ -0,0 +1,50 @@
+package org.polushin.chat.protocol;
+
+import java.util.Collection;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Уведомляет клиента о накопившихся за окно объединения изменениях списка онлайн пользователей.
+ * Подключение и отключение одного пользователя внутри окна взаимно сокращаются.
+ */
+public class PacketUsersListBatchUpdate implements Packet {
+
+	private final long fromVersion;
+	private final long version;
+	private final Collection<String> joined;
+	private final Collection<String> left;
+
+	/**
+	 * @param fromVersion Версия списка до изменений.
+	 * @param version Версия списка после изменений.
+	 * @param joined Присоединившиеся пользователи.
+	 * @param left Отключившиеся пользователи.
+	 */
+	public PacketUsersListBatchUpdate(long fromVersion, long version, Collection<String> joined,
+	                                  Collection<String> left) {
+		if (joined == null)
+			throw new IllegalArgumentException("Joined users cannot be null!");
+		if (left == null)
+			throw new IllegalArgumentException("Left users cannot be null!");
+		this.fromVersion = fromVersion;
+		this.version = version;
+		this.joined = joined;
+		this.left = left;
+	}
+
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public Collection<String> getJoined() {
+		return joined;
+	}
+
+	public Collection<String> getLeft() {
+		return left;
+	}
+}
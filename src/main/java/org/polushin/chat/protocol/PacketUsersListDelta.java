@@ -0,0 +1,49 @@
+package org.polushin.chat.protocol;
+
+import java.util.Collection;
+
+/**
+ * Отправитель: сервер
+ * Назначение: Возвращает изменения списка онлайн пользователей между двумя версиями.
+ * Каждое имя указывается не более одного раза - в итоговом состоянии.
+ */
+public class PacketUsersListDelta implements Packet {
+
+	private final long fromVersion;
+	private final long version;
+	private final Collection<String> joined;
+	private final Collection<String> left;
+
+	/**
+	 * @param fromVersion Версия, изменения после которой содержит пакет.
+	 * @param version Версия списка после применения изменений.
+	 * @param joined Присоединившиеся пользователи.
+	 * @param left Отключившиеся пользователи.
+	 */
+	public PacketUsersListDelta(long fromVersion, long version, Collection<String> joined, Collection<String> left) {
+		if (joined == null)
+			throw new IllegalArgumentException("Joined users cannot be null!");
+		if (left == null)
+			throw new IllegalArgumentException("Left users cannot be null!");
+		this.fromVersion = fromVersion;
+		this.version = version;
+		this.joined = joined;
+		this.left = left;
+	}
+
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public Collection<String> getJoined() {
+		return joined;
+	}
+
+	public Collection<String> getLeft() {
+		return left;
+	}
+}
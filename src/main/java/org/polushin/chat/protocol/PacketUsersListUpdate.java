@@ -9,16 +9,19 @@ public class PacketUsersListUpdate implements Packet {
 
 	private final boolean newMember;
 	private final String username;
+	private final long version;
 
 	/**
 	 * @param isNewMember Новый участник чата или отключившийся бывший участник.
 	 * @param username Имя пользователя.
+	 * @param version Версия списка после изменения.
 	 */
-	public PacketUsersListUpdate(boolean isNewMember, String username) {
+	public PacketUsersListUpdate(boolean isNewMember, String username, long version) {
 		if (username == null)
 			throw new IllegalArgumentException("Username cannot be null!");
 		newMember = isNewMember;
 		this.username = username;
+		this.version = version;
 	}
 
 	public boolean isNewMember() {
@@ -28,4 +31,8 @@ public class PacketUsersListUpdate implements Packet {
 	public String getUsername() {
 		return username;
 	}
+
+	public long getVersion() {
+		return version;
+	}
 }
@@ -0,0 +1,78 @@
+package org.polushin.chat.protocol;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Символьный поток, декодирующий UTF-8 прямо из буфера.
+ * Некорректные последовательности заменяются на U+FFFD.
+ */
+class Utf8Reader extends Reader {
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private final ByteBuffer in;
+
+	private char pendingLowSurrogate;
+
+	Utf8Reader(ByteBuffer in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read(char[] buffer, int offset, int length) {
+		if (length == 0)
+			return 0;
+		int count = 0;
+		if (pendingLowSurrogate != 0) {
+			buffer[offset + count++] = pendingLowSurrogate;
+			pendingLowSurrogate = 0;
+		}
+		while (count < length && in.hasRemaining()) {
+			int b = in.get() & 0xFF;
+			if (b < 0x80) {
+				buffer[offset + count++] = (char) b;
+				continue;
+			}
+			int code;
+			int extra;
+			if ((b & 0xE0) == 0xC0) {
+				code = b & 0x1F;
+				extra = 1;
+			} else if ((b & 0xF0) == 0xE0) {
+				code = b & 0x0F;
+				extra = 2;
+			} else if ((b & 0xF8) == 0xF0) {
+				code = b & 0x07;
+				extra = 3;
+			} else {
+				buffer[offset + count++] = REPLACEMENT;
+				continue;
+			}
+			boolean valid = true;
+			for (int i = 0; i < extra; i++) {
+				if (!in.hasRemaining() || (in.get(in.position()) & 0xC0) != 0x80) {
+					valid = false;
+					break;
+				}
+				code = code << 6 | in.get() & 0x3F;
+			}
+			if (!valid || !Character.isValidCodePoint(code))
+				buffer[offset + count++] = REPLACEMENT;
+			else if (Character.isBmpCodePoint(code))
+				buffer[offset + count++] = (char) code;
+			else {
+				buffer[offset + count++] = Character.highSurrogate(code);
+				if (count < length)
+					buffer[offset + count++] = Character.lowSurrogate(code);
+				else
+					pendingLowSurrogate = Character.lowSurrogate(code);
+			}
+		}
+		return count == 0 ? -1 : count;
+	}
+
+	@Override
+	public void close() {
+	}
+}
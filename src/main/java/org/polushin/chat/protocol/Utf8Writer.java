@@ -0,0 +1,73 @@
+package org.polushin.chat.protocol;
+
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Символьный поток, кодирующий символы в UTF-8 сразу в {@link BinaryOutput}.
+ */
+class Utf8Writer extends Writer {
+
+	private final BinaryOutput out;
+
+	private char pendingHighSurrogate;
+
+	Utf8Writer(BinaryOutput out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int c) {
+		write(String.valueOf((char) c), 0, 1);
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) {
+		write(CharBuffer.wrap(buffer), offset, offset + length);
+	}
+
+	@Override
+	public void write(String str, int offset, int length) {
+		write((CharSequence) str, offset, offset + length);
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) {
+		write(csq == null ? "null" : csq, start, end);
+		return this;
+	}
+
+	@Override
+	public void flush() {
+		if (pendingHighSurrogate != 0) {
+			out.putUtf8(String.valueOf(pendingHighSurrogate), 0, 1);
+			pendingHighSurrogate = 0;
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	/**
+	 * Суррогатная пара может быть разбита между вызовами, поэтому старший суррогат в конце
+	 * откладывается до следующей записи.
+	 */
+	private void write(CharSequence chars, int start, int end) {
+		if (start == end)
+			return;
+		if (pendingHighSurrogate != 0) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if (Character.isLowSurrogate(chars.charAt(start))) {
+				out.putUtf8(new String(new char[] {high, chars.charAt(start)}), 0, 2);
+				start++;
+			} else
+				out.putUtf8(String.valueOf(high), 0, 1);
+		}
+		if (start < end && Character.isHighSurrogate(chars.charAt(end - 1)))
+			pendingHighSurrogate = chars.charAt(--end);
+		out.putUtf8(chars, start, end);
+	}
+}